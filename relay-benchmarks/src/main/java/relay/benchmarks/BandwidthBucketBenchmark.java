@@ -0,0 +1,52 @@
+package relay.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.bandwidth.BandwidthBucket;
+import relay.bandwidth.units.ByteUnit;
+import relay.latency.Scheduler;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several senders sharing one bucket, as the peers writing to the same receiver do. The bucket is fast enough for
+ * every packet to leave inline, so this measures the cost of admission, i.e., contention on the virtual clock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandwidthBucketBenchmark {
+
+	@Param({"1024"})
+	int payloadSize;
+
+	private BandwidthBucket bucket;
+	private RelayMessage msg;
+	private final Runnable sent = () -> {
+	};
+
+	@Setup
+	public void setup() {
+		List<Host> hosts = Hosts.loopback(2, 10000);
+		bucket = new BandwidthBucket(new Scheduler(hosts, 1), 1, ByteUnit.PB);
+		msg = new RelayAppMessage(0, hosts.get(0), hosts.get(1), 0L, new byte[payloadSize]);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void enqueueUncontended() {
+		bucket.enqueue(msg, sent);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void enqueueContended() {
+		bucket.enqueue(msg, sent);
+	}
+}
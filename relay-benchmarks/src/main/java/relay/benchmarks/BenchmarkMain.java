@@ -0,0 +1,26 @@
+package relay.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, like the JMH launcher, but writes the results as JSON to
+ * {@value #DEFAULT_RESULT} unless told otherwise, so that runs of different versions can be compared.
+ */
+public class BenchmarkMain {
+
+	private static final String DEFAULT_RESULT = "relay-benchmarks.json";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (!cmd.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!cmd.getResult().hasValue())
+			options.result(DEFAULT_RESULT);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,107 @@
+package relay.benchmarks;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import org.openjdk.jmh.annotations.*;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.Relay;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayConnectionOpenMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole path of an application message inside one relay, from {@link Relay#deliverMessage} through the latency
+ * scheduler and the egress batcher to the connection of the receiver, with zero emulated latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardPathBenchmark {
+
+	private static final int MESSAGES = 1000;
+
+	@Param({"64", "4096"})
+	int payloadSize;
+
+	@Param({"false", "true"})
+	boolean highResolution;
+
+	private Relay relay;
+	private EventLoop loop;
+	private Host sender;
+	private Host receiver;
+	private SinkConnection senderConnection;
+	private SinkConnection receiverConnection;
+	private byte[] payload;
+	private long expected;
+	private int seqN;
+
+	private static InputStream stream(String str) {
+		return new ByteArrayInputStream(str.getBytes());
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		List<Host> peers = Hosts.loopback(2, 20000);
+		sender = peers.get(0);
+		receiver = peers.get(1);
+
+		Properties properties = new Properties();
+		properties.put(Relay.ADDRESS_KEY, InetAddress.getLoopbackAddress().getHostAddress());
+		properties.put(Relay.PORT_KEY, String.valueOf(port));
+		properties.put(Relay.NUM_NODES, "2");
+		properties.put(Relay.NUM_RELAYS, "1");
+		properties.put(Relay.RELAY_ID, "0");
+		properties.put(Relay.HIGH_RESOLUTION_KEY, String.valueOf(highResolution));
+		relay = new Relay(properties, stream(Hosts.hostList(peers)),
+				stream(InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "\n"), stream("0 0\n0 0\n"));
+
+		loop = new DefaultEventLoop();
+		senderConnection = new SinkConnection(sender, loop);
+		receiverConnection = new SinkConnection(receiver, loop);
+		relay.inboundConnectionUp(senderConnection);
+		relay.inboundConnectionUp(receiverConnection);
+
+		relay.deliverMessage(new RelayConnectionOpenMessage(seqN++, sender, receiver, System.currentTimeMillis()), senderConnection);
+		expected = 1;
+		awaitReceived();
+
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown
+	public void tearDown() {
+		loop.shutdownGracefully();
+	}
+
+	private void awaitReceived() {
+		while (receiverConnection.getReceived() < expected) {
+			// spin
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void forward() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < MESSAGES; i++)
+			relay.deliverMessage(new RelayAppMessage(seqN++, sender, receiver, now, payload), senderConnection);
+		expected += MESSAGES;
+		awaitReceived();
+	}
+}
@@ -0,0 +1,27 @@
+package relay.benchmarks;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+final class Hosts {
+
+	private Hosts() {
+	}
+
+	static List<Host> loopback(int numHosts, int firstPort) {
+		List<Host> hosts = new ArrayList<>(numHosts);
+		for (int i = 0; i < numHosts; i++)
+			hosts.add(new Host(InetAddress.getLoopbackAddress(), firstPort + i));
+		return hosts;
+	}
+
+	static String hostList(List<Host> hosts) {
+		StringBuilder sb = new StringBuilder();
+		for (Host host : hosts)
+			sb.append(host.getAddress().getHostAddress()).append(':').append(host.getPort()).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package relay.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import relay.latency.LatencyModel;
+import relay.util.HostIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency lookups of random pairs, as done when a link is first seen.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyModelBenchmark {
+
+	private static final int PAIRS = 4096;
+
+	@Param({"1000"})
+	int numHosts;
+
+	@Param({LatencyModel.MATRIX, LatencyModel.REGION, LatencyModel.COORDINATES})
+	String model;
+
+	private LatencyModel latencyModel;
+	private int[] from;
+	private int[] to;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		StringBuilder config = new StringBuilder();
+		switch (model) {
+			case LatencyModel.MATRIX:
+				for (int i = 0; i < numHosts; i++) {
+					for (int j = 0; j < numHosts; j++)
+						config.append(i == j ? 0 : 1 + random.nextInt(300)).append(j + 1 < numHosts ? " " : "\n");
+				}
+				break;
+			case LatencyModel.REGION:
+				config.append("[regions]\n");
+				for (int r = 0; r < 8; r++) {
+					for (int s = 0; s < 8; s++)
+						config.append(r == s ? 1 : 10 * (r + s)).append(s < 7 ? " " : "\n");
+				}
+				config.append("[hosts]\n");
+				for (int i = 0; i < numHosts; i++)
+					config.append(random.nextInt(8)).append(' ').append(random.nextFloat() * 5).append('\n');
+				break;
+			default:
+				config.append("[coordinates]\n");
+				for (int i = 0; i < numHosts; i++)
+					config.append(random.nextFloat() * 100).append(' ').append(random.nextFloat() * 100).append(' ')
+							.append(random.nextFloat() * 100).append(' ').append(random.nextFloat() * 5).append('\n');
+		}
+
+		HostIndex index = new HostIndex(Hosts.loopback(numHosts, 10000));
+		latencyModel = LatencyModel.load(model, index, new ByteArrayInputStream(config.toString().getBytes()), 0, numHosts - 1, true);
+
+		from = new int[PAIRS];
+		to = new int[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			from[i] = random.nextInt(numHosts);
+			to[i] = random.nextInt(numHosts);
+		}
+	}
+
+	@Benchmark
+	public float getLatency() {
+		int i = next++ & (PAIRS - 1);
+		return latencyModel.getLatency(from[i], to[i]);
+	}
+}
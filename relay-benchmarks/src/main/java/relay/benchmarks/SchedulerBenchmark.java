@@ -0,0 +1,65 @@
+package relay.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.latency.Scheduler;
+import relay.latency.SendMessageEvent;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+	@Param({"false", "true"})
+	boolean highResolution;
+
+	@Param({"1"})
+	float delayMs;
+
+	private Scheduler scheduler;
+	private RelayMessage msg;
+
+	@Setup
+	public void setup() {
+		List<Host> hosts = Hosts.loopback(64, 10000);
+		scheduler = new Scheduler(hosts, 2, highResolution);
+		msg = new RelayAppMessage(0, hosts.get(0), hosts.get(1), System.currentTimeMillis(), new byte[0]);
+	}
+
+	/**
+	 * Producer side only: events are fired on the scheduler threads in the background.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(4)
+	public void addEvent() {
+		scheduler.addEvent(new SendMessageEvent(msg, () -> {
+		}, delayMs));
+	}
+
+	/**
+	 * Time from adding an event to it firing; anything above {@link #delayMs} is jitter.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void fire(FiredFlag fired) {
+		fired.value = false;
+		scheduler.addEvent(new SendMessageEvent(msg, () -> fired.value = true, delayMs));
+		while (!fired.value) {
+			// spin
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FiredFlag {
+		volatile boolean value;
+	}
+}
@@ -0,0 +1,75 @@
+package relay.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({"16", "256", "4096", "65536"})
+	int payloadSize;
+
+	@Param({"1", "3"})
+	short wireVersion;
+
+	@Param({"false", "true"})
+	boolean forwarding;
+
+	private List<Host> hosts;
+	private RelayMessageSerializer serializer;
+	private byte[] payload;
+	private ByteBuf out;
+	private ByteBuf encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		hosts = Hosts.loopback(1000, 10000);
+		serializer = new RelayMessageSerializer(new HostIndex(hosts), forwarding);
+		payload = new byte[payloadSize];
+		out = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize + 128);
+		encoded = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize + 128);
+		serializer.serialize(message(), encoded);
+	}
+
+	@TearDown
+	public void tearDown() {
+		out.release();
+		encoded.release();
+	}
+
+	private RelayMessage message() {
+		RelayMessage msg = new RelayAppMessage(1, hosts.get(1), hosts.get(999), 0L, payload);
+		msg.setWireVersion(wireVersion);
+		return msg;
+	}
+
+	@Benchmark
+	public ByteBuf encode() throws IOException {
+		out.clear();
+		serializer.serialize(message(), out);
+		return out;
+	}
+
+	@Benchmark
+	public RelayMessage decode() throws IOException {
+		encoded.readerIndex(0);
+		RelayMessage msg = serializer.deserialize(encoded);
+		msg.release();
+		return msg;
+	}
+}
@@ -0,0 +1,84 @@
+package relay.benchmarks;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Promise;
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Attributes;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.Relay;
+import relay.messaging.RelayBatchMessage;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inbound connection of an emulated peer that counts and drops whatever the relay sends to it.
+ */
+class SinkConnection implements Connection<RelayMessage> {
+
+	private final Host peer;
+	private final Attributes peerAttributes;
+	private final EventLoop loop;
+	private final AtomicLong received;
+
+	SinkConnection(Host peer, EventLoop loop) {
+		this.peer = peer;
+		this.loop = loop;
+		this.received = new AtomicLong();
+		peerAttributes = new Attributes();
+		peerAttributes.putHost(Relay.LISTEN_ADDRESS_ATTRIBUTE, peer);
+		peerAttributes.putShort(Relay.WIRE_VERSION_ATTRIBUTE, RelayMessageSerializer.CURRENT_VERSION);
+	}
+
+	long getReceived() {
+		return received.get();
+	}
+
+	@Override
+	public Host getPeer() {
+		return peer;
+	}
+
+	@Override
+	public Attributes getPeerAttributes() {
+		return peerAttributes;
+	}
+
+	@Override
+	public Attributes getSelfAttributes() {
+		return new Attributes();
+	}
+
+	@Override
+	public void disconnect() {
+	}
+
+	@Override
+	public boolean isInbound() {
+		return true;
+	}
+
+	@Override
+	public boolean isOutbound() {
+		return false;
+	}
+
+	@Override
+	public void sendMessage(RelayMessage msg, Promise<Void> promise) {
+		sendMessage(msg);
+		if (promise != null)
+			promise.trySuccess(null);
+	}
+
+	@Override
+	public void sendMessage(RelayMessage msg) {
+		received.addAndGet(msg instanceof RelayBatchMessage ? ((RelayBatchMessage) msg).getMessages().size() : 1);
+		msg.release();
+	}
+
+	@Override
+	public EventLoop getLoop() {
+		return loop;
+	}
+}
@@ -0,0 +1,53 @@
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import relay.latency.LatencyMatrixFile;
+import relay.latency.LatencyTrace;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class ConvertLatencyMatrix {
+
+	static {
+		System.setProperty("log4j.configurationFile", "log4j2.xml");
+	}
+
+	public static void main(String[] args) throws IOException {
+		Namespace ns = getNamespace(args);
+
+		int quantumNanos = ns.getBoolean("float") ? 0 : ns.getInt("quantum_us") * 1000;
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(ns.getString("output"))))) {
+			if (ns.getBoolean("trace"))
+				LatencyTrace.convert(Paths.get(ns.getString("input")), out, Math.max(quantumNanos, LatencyMatrixFile.DEFAULT_QUANTUM_NANOS));
+			else
+				LatencyMatrixFile.convert(Paths.get(ns.getString("input")), out, quantumNanos, ns.getBoolean("columns"));
+		}
+	}
+
+	private static Namespace getNamespace(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newFor("ConvertLatencyMatrix").build().defaultHelp(true)
+				.description("Converts a text latency matrix or latency trace to the binary format read by the relay");
+		parser.addArgument("input").help("text latency matrix");
+		parser.addArgument("output").help("binary latency matrix");
+		parser.addArgument("-q", "--quantum_us").type(Integer.class).setDefault(LatencyMatrixFile.DEFAULT_QUANTUM_NANOS / 1000)
+				.help("latency resolution in microseconds, raised if the largest latency does not fit in 16 bits");
+		parser.addArgument("-t", "--trace").action(Arguments.storeTrue()).help("convert a latency trace instead of a matrix");
+		parser.addArgument("-f", "--float").action(Arguments.storeTrue()).help("store exact latencies as 32 bit floats");
+		parser.addArgument("-c", "--columns").action(Arguments.storeTrue()).help("also store the matrix column by column, for relays run with --asymmetric_latency");
+
+		try {
+			return parser.parseArgs(args);
+		} catch (ArgumentParserException e) {
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,199 @@
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.AttributeValidator;
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.NetworkManager;
+import pt.unl.fct.di.novasys.network.data.Attributes;
+import pt.unl.fct.di.novasys.network.data.Host;
+import pt.unl.fct.di.novasys.network.listeners.OutConnListener;
+import relay.BWLatencyRelay;
+import relay.Relay;
+import relay.latency.LatencyModel;
+import relay.loadgen.CpuClock;
+import relay.loadgen.InProcessConnection;
+import relay.loadgen.LoadGenerator;
+import relay.loadgen.PeerGraph;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+import relay.util.ConfigUtils;
+import relay.util.HostIndex;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import static relay.Relay.*;
+
+/**
+ * Loads relays with synthetic peers on a single machine, either relays started in this process or relays already
+ * listening on their addresses, and reports throughput, CPU per message and latency emulation error.
+ */
+public class StartLoadGenerator {
+
+	private static final Logger logger = LogManager.getLogger(StartLoadGenerator.class);
+
+	static {
+		System.setProperty("log4j.configurationFile", "log4j2.xml");
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Namespace ns = getNamespace(args);
+
+		int numPeers = ns.getInt("nodes");
+		int numRelays = ns.getInt("relays");
+		List<Host> peerList = ConfigUtils.configToHostList(Files.newInputStream(Paths.get(ns.getString("list_nodes"))), numPeers);
+		List<Host> relayList = ConfigUtils.configToHostList(Files.newInputStream(Paths.get(ns.getString("list_relays"))), numRelays);
+		HostIndex peerIndex = new HostIndex(peerList);
+
+		String model = ns.getString("latency_model");
+		boolean symmetric = !ns.getBoolean("asymmetric_latency");
+		LatencyModel latencyModel;
+		try (InputStream in = new FileInputStream(ns.getString("latency_matrix"))) {
+			latencyModel = LatencyModel.load(model, peerIndex, in, 0, numPeers - 1, symmetric);
+		}
+
+		PeerGraph graph = PeerGraph.valueOf(ns.getString("graph").toUpperCase(Locale.ROOT));
+		LoadGenerator generator = new LoadGenerator(peerList, latencyModel, graph, ns.getInt("degree"),
+				ns.getDouble("rate"), ns.getInt("payload_size"), ns.getLong("seed"));
+
+		CpuClock relayCpu;
+		if (ns.getString("mode").equals("inprocess")) {
+			startInProcess(ns, peerList, relayList, generator);
+			relayCpu = CpuClock.ofThisProcess();
+		} else {
+			connectLoopback(peerList, relayList, peerIndex, generator);
+			relayCpu = ns.getLong("relay_pid") != null ? CpuClock.ofProcess(ns.getLong("relay_pid")) : () -> -1;
+		}
+
+		generator.run(ns.getInt("duration") * 1000L, ns.getInt("report_interval") * 1000L, relayCpu);
+		System.exit(0);
+	}
+
+	private static void startInProcess(Namespace ns, List<Host> peerList, List<Host> relayList, LoadGenerator generator) throws IOException, InterruptedException {
+		int numPeers = peerList.size();
+		int numRelays = relayList.size();
+		EventLoopGroup peerLoops = new DefaultEventLoopGroup();
+		for (int r = 0; r < numRelays; r++) {
+			Properties properties = new Properties();
+			properties.put(ADDRESS_KEY, relayList.get(r).getAddress().getHostAddress());
+			properties.put(PORT_KEY, String.valueOf(relayList.get(r).getPort()));
+			properties.put(NUM_NODES, String.valueOf(numPeers));
+			properties.put(NUM_RELAYS, String.valueOf(numRelays));
+			properties.put(RELAY_ID, String.valueOf(r));
+			properties.put(SLEEP, "500");
+			properties.put(LATENCY_MODEL_KEY, ns.getString("latency_model"));
+			properties.put(ASYMMETRIC_LATENCY_KEY, ns.getBoolean("asymmetric_latency").toString());
+			properties.put(HIGH_RESOLUTION_KEY, ns.getBoolean("high_resolution").toString());
+			properties.put(SHARDED_KEY, ns.getBoolean("sharded").toString());
+			if (ns.getInt("scheduler_threads") != null)
+				properties.put(SCHEDULER_THREADS_KEY, ns.getInt("scheduler_threads").toString());
+			if (ns.getString("link_bandwidth_config") != null)
+				properties.put(LINK_BANDWIDTH_KEY, ns.getString("link_bandwidth_config"));
+
+			InputStream hostsConfig = Files.newInputStream(Paths.get(ns.getString("list_nodes")));
+			InputStream relaysConfig = Files.newInputStream(Paths.get(ns.getString("list_relays")));
+			InputStream latencyConfig = new FileInputStream(ns.getString("latency_matrix"));
+			Relay relay;
+			if (ns.getString("bandwidth_config") == null)
+				relay = new Relay(properties, hostsConfig, relaysConfig, latencyConfig);
+			else
+				relay = new BWLatencyRelay(properties, hostsConfig, relaysConfig, latencyConfig, Files.newInputStream(Paths.get(ns.getString("bandwidth_config"))));
+
+			Pair<Integer, Integer> range = Relay.peerRange(numPeers, r, numRelays);
+			for (int i = range.getLeft(); i <= range.getRight(); i++) {
+				InProcessConnection con = new InProcessConnection(peerList.get(i), peerLoops.next(), generator::deliver);
+				relay.inboundConnectionUp(con);
+				generator.attach(i, msg -> relay.deliverMessage(msg, con));
+			}
+		}
+		// relays connect to each other after their sleep
+		if (numRelays > 1)
+			Thread.sleep(1500);
+	}
+
+	private static void connectLoopback(List<Host> peerList, List<Host> relayList, HostIndex peerIndex, LoadGenerator generator) {
+		NetworkManager<RelayMessage> network = new NetworkManager<>(new RelayMessageSerializer(peerIndex),
+				(msg, con) -> generator.deliver(msg), 0, 0, 1000);
+		OutConnListener<RelayMessage> listener = new OutConnListener<RelayMessage>() {
+			@Override
+			public void outboundConnectionUp(Connection<RelayMessage> connection) {
+				try {
+					int peer = peerIndex.indexOf(connection.getSelfAttributes().getHost(LISTEN_ADDRESS_ATTRIBUTE));
+					generator.attach(peer, connection::sendMessage);
+				} catch (IOException e) {
+					logger.error("Connection without listen address: {}", e.getMessage());
+				}
+			}
+
+			@Override
+			public void outboundConnectionDown(Connection<RelayMessage> connection, Throwable cause) {
+				logger.error("Connection to {} down: {}", connection.getPeer(), cause);
+			}
+
+			@Override
+			public void outboundConnectionFailed(Connection<RelayMessage> connection, Throwable cause) {
+				logger.error("Connection to {} failed: {}", connection.getPeer(), cause);
+			}
+		};
+
+		int numPeers = peerList.size();
+		int numRelays = relayList.size();
+		for (int r = 0; r < numRelays; r++) {
+			Pair<Integer, Integer> range = Relay.peerRange(numPeers, r, numRelays);
+			for (int i = range.getLeft(); i <= range.getRight(); i++) {
+				Attributes attributes = new Attributes();
+				attributes.putShort(AttributeValidator.CHANNEL_MAGIC_ATTRIBUTE, EMULATED_MAGIC_NUMBER);
+				attributes.putHost(LISTEN_ADDRESS_ATTRIBUTE, peerList.get(i));
+				attributes.putShort(WIRE_VERSION_ATTRIBUTE, RelayMessageSerializer.CURRENT_VERSION);
+				network.createConnection(relayList.get(r), attributes, listener);
+			}
+		}
+	}
+
+	private static Namespace getNamespace(String[] args) {
+		ArgumentParser parser = ArgumentParsers.newFor("LoadGenerator").build().defaultHelp(true);
+		parser.addArgument("nodes").type(Integer.class).help("number of synthetic peers");
+		parser.addArgument("relays").type(Integer.class).help("number of relays");
+		parser.addArgument("list_nodes").help("file with node list");
+		parser.addArgument("list_relays").help("file with relay list");
+		parser.addArgument("-m", "--mode").choices("inprocess", "loopback").setDefault("inprocess").help("start the relays in this process, or connect to relays already running");
+		parser.addArgument("-lm", "--latency_matrix").required(true).help("file with latencies, the one given to the relays");
+		parser.addArgument("-lt", "--latency_model").choices(LatencyModel.MATRIX, LatencyModel.REGION, LatencyModel.COORDINATES).setDefault(LatencyModel.MATRIX).help("how the latency file describes latencies");
+		parser.addArgument("-al", "--asymmetric_latency").action(Arguments.storeTrue()).help("latency matrix row i holds latencies from node i");
+		parser.addArgument("-bc", "--bandwidth_config").help("file with bandwidth config for nodes, for relays in this process");
+		parser.addArgument("-lbc", "--link_bandwidth_config").help("file with bandwidth caps between regions or pairs of nodes, used with -bc");
+		parser.addArgument("-hr", "--high_resolution").action(Arguments.storeTrue()).help("sub-millisecond latency emulation, for relays in this process");
+		parser.addArgument("-sh", "--sharded").action(Arguments.storeTrue()).help("run each peer's delays and shaping on its channel's event loop, for relays in this process");
+		parser.addArgument("-st", "--scheduler_threads").type(Integer.class).help("scheduler threads of relays in this process");
+		parser.addArgument("-g", "--graph").choices("full", "ring", "random").setDefault("ring").help("which peers each peer sends to");
+		parser.addArgument("-d", "--degree").type(Integer.class).setDefault(4).help("number of peers each peer sends to, for ring and random graphs");
+		parser.addArgument("-r", "--rate").type(Double.class).setDefault(10.0).help("messages per second sent by each peer");
+		parser.addArgument("-ps", "--payload_size").type(Integer.class).setDefault(64).help("payload size in bytes, at least 8");
+		parser.addArgument("-t", "--duration").type(Integer.class).setDefault(30).help("seconds of load");
+		parser.addArgument("-ri", "--report_interval").type(Integer.class).setDefault(5).help("seconds between reports");
+		parser.addArgument("--seed").type(Long.class).setDefault(42L).help("seed of random graphs");
+		parser.addArgument("--relay_pid").type(Long.class).help("pid of the relay, to report its CPU per message in loopback mode");
+
+		try {
+			return parser.parseArgs(args);
+		} catch (ArgumentParserException e) {
+			parser.handleError(e);
+			System.exit(1);
+		}
+
+		return null;
+	}
+}
@@ -1,10 +1,13 @@
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import relay.BWLatencyRelay;
 import relay.Relay;
+import relay.latency.LatencyModel;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -31,10 +34,41 @@ public class StartRelay {
 		properties.put(NUM_RELAYS, ns.getInt("relays").toString());
 		properties.put(RELAY_ID, ns.getInt("relay_id").toString());
 		properties.put(SLEEP, ns.getInt("sleep").toString());
+		properties.put(ASYMMETRIC_LATENCY_KEY, ns.getBoolean("asymmetric_latency").toString());
+		properties.put(ZERO_COPY_KEY, ns.getBoolean("zero_copy").toString());
+		properties.put(HIGH_RESOLUTION_KEY, ns.getBoolean("high_resolution").toString());
+		properties.put(SHARDED_KEY, ns.getBoolean("sharded").toString());
+		properties.put(LATENCY_MODEL_KEY, ns.getString("latency_model"));
+		if (ns.getString("latency_trace") != null)
+			properties.put(LATENCY_TRACE_KEY, ns.getString("latency_trace"));
+		if (ns.getString("link_bandwidth_config") != null)
+			properties.put(LINK_BANDWIDTH_KEY, ns.getString("link_bandwidth_config"));
+		properties.put(RELAY_STRIPES_KEY, ns.getInt("relay_stripes").toString());
+		properties.put(ACCURACY_WARNING_KEY, ns.getInt("accuracy_warning").toString());
+		if (ns.getString("metrics_file") != null)
+			properties.put(METRICS_FILE_KEY, ns.getString("metrics_file"));
+		if (ns.getInt("metrics_port") != null)
+			properties.put(METRICS_PORT_KEY, ns.getInt("metrics_port").toString());
+		if (ns.getInt("queue_max_messages") != null)
+			properties.put(QUEUE_MAX_MESSAGES_KEY, ns.getInt("queue_max_messages").toString());
+		if (ns.getLong("queue_max_bytes") != null)
+			properties.put(QUEUE_MAX_BYTES_KEY, ns.getLong("queue_max_bytes").toString());
+		properties.put(QUEUE_POLICY_KEY, ns.getString("queue_policy"));
+		if (ns.getLong("memory_budget") != null)
+			properties.put(MEMORY_BUDGET_KEY, String.valueOf(ns.getLong("memory_budget") * 1024 * 1024));
+		properties.put(BACKPRESSURE_KEY, ns.getBoolean("backpressure").toString());
+		if (ns.getLong("backpressure_high") != null)
+			properties.put(BACKPRESSURE_HIGH_KEY, String.valueOf(ns.getLong("backpressure_high") * 1024));
+		if (ns.getLong("backpressure_low") != null)
+			properties.put(BACKPRESSURE_LOW_KEY, String.valueOf(ns.getLong("backpressure_low") * 1024));
+		properties.put(METRICS_INTERVAL_KEY, ns.getInt("metrics_interval").toString());
+		if (ns.getInt("scheduler_threads") != null)
+			properties.put(SCHEDULER_THREADS_KEY, ns.getInt("scheduler_threads").toString());
 
 		InputStream hostsConfig = Files.newInputStream(Paths.get(ns.getString("list_nodes")));
 		InputStream relaysConfig = Files.newInputStream(Paths.get(ns.getString("list_relays")));
-		InputStream latencyConfig = Files.newInputStream(Paths.get(ns.getString("latency_matrix")));
+		// a FileInputStream lets binary matrices be memory mapped
+		InputStream latencyConfig = new FileInputStream(ns.getString("latency_matrix"));
 
 		Relay relay;
 		if (ns.getString("bandwidth_config") == null)
@@ -59,10 +93,30 @@ public class StartRelay {
 		parser.addArgument("list_relays").help("file with relay list");
 		parser.addArgument("-a", "--address").setDefault(InetAddress.getLocalHost().getHostAddress()).help("local private address");
 		parser.addArgument("-p", "--port").type(Integer.class).setDefault(9082).help("relay port");
-		parser.addArgument("-lm", "--latency_matrix").help("file with latency matrix");
+		parser.addArgument("-lm", "--latency_matrix").help("file with latency matrix, as text or converted with ConvertLatencyMatrix");
+		parser.addArgument("-lt", "--latency_model").choices(LatencyModel.MATRIX, LatencyModel.REGION, LatencyModel.COORDINATES).setDefault(LatencyModel.MATRIX).help("how the latency file describes latencies: full matrix, regions with per-host access latency or network coordinates");
+		parser.addArgument("-ltr", "--latency_trace").help("binary file with latency time series, converted with ConvertLatencyMatrix --trace");
+		parser.addArgument("-al", "--asymmetric_latency").action(Arguments.storeTrue()).help("latency matrix row i holds latencies from node i, instead of being symmetric; binary matrices converted without --columns are then read in full");
 		parser.addArgument("-bc", "--bandwidth_config").help("file with bandwidth config for nodes");
+		parser.addArgument("-lbc", "--link_bandwidth_config").help("file with bandwidth caps between regions or pairs of nodes, used with -bc");
 		parser.addArgument("-ec", "--events_config").help("file with scheduled events");
+		parser.addArgument("-zc", "--zero_copy").action(Arguments.storeTrue()).help("forward message payloads in pooled buffers instead of copying them to the heap");
 		parser.addArgument("-s", "--sleep").type(Integer.class).setDefault(4000).help("sleep time in ms before connecting to other relays");
+		parser.addArgument("-hr", "--high_resolution").action(Arguments.storeTrue()).help("sub-millisecond latency emulation, spins on scheduler threads");
+		parser.addArgument("-sh", "--sharded").action(Arguments.storeTrue()).help("run each peer's delays and shaping on its channel's event loop");
+		parser.addArgument("-rs", "--relay_stripes").type(Integer.class).setDefault(1).help("number of parallel connections to each other relay");
+		parser.addArgument("-st", "--scheduler_threads").type(Integer.class).help("number of threads driving the latency scheduler");
+		parser.addArgument("-aw", "--accuracy_warning").type(Integer.class).setDefault(Integer.parseInt(DEFAULT_ACCURACY_WARNING)).help("warn when the p99 emulation error, in us, crosses this");
+		parser.addArgument("-qm", "--queue_max_messages").type(Integer.class).help("messages each host bandwidth queue holds at most");
+		parser.addArgument("-qb", "--queue_max_bytes").type(Long.class).help("bytes each host bandwidth queue holds at most");
+		parser.addArgument("-qp", "--queue_policy").choices("drop-tail", "drop-head", "red").setDefault("drop-tail").help("what full bandwidth queues drop: arriving messages, the oldest ones, or random early drops");
+		parser.addArgument("-mb", "--memory_budget").type(Long.class).help("MB of messages the relay holds at most, application messages beyond it are dropped");
+		parser.addArgument("-bp", "--backpressure").action(Arguments.storeTrue()).help("pause reading from peers and relays that bring in more than the relay can send");
+		parser.addArgument("-bph", "--backpressure_high").type(Long.class).help("KB held for a peer's messages above which reading from it pauses, 4096 by default");
+		parser.addArgument("-bpl", "--backpressure_low").type(Long.class).help("KB held for a peer's messages below which reading from it resumes, a quarter of the high watermark by default");
+		parser.addArgument("-mf", "--metrics_file").help("file rewritten with the metrics in Prometheus text format");
+		parser.addArgument("-mp", "--metrics_port").type(Integer.class).help("loopback port serving the metrics in Prometheus text format on /metrics");
+		parser.addArgument("-mi", "--metrics_interval").type(Integer.class).setDefault(Integer.parseInt(DEFAULT_METRICS_INTERVAL)).help("ms between rewrites of the metrics file");
 
 		try {
 			return parser.parseArgs(args);
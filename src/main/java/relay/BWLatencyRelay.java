@@ -1,51 +1,218 @@
 package relay;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import pt.unl.fct.di.novasys.network.AttributeValidator;
-import pt.unl.fct.di.novasys.network.data.Host;
+import pt.unl.fct.di.novasys.network.Connection;
 import pt.unl.fct.di.novasys.network.listeners.InConnListener;
 import pt.unl.fct.di.novasys.network.listeners.MessageListener;
 import pt.unl.fct.di.novasys.network.listeners.OutConnListener;
+import relay.bandwidth.AggregateBucket;
+import relay.bandwidth.BandwidthBucket;
 import relay.bandwidth.HostBandwidthList;
+import relay.bandwidth.LinkBandwidthCaps;
+import relay.bandwidth.Shaper;
 import relay.latency.SendMessageEvent;
+import relay.link.Link;
 import relay.messaging.RelayMessage;
+import relay.metrics.MetricsRegistry;
+import relay.util.ObjectPool;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 public class BWLatencyRelay extends Relay implements InConnListener<RelayMessage>, OutConnListener<RelayMessage>, MessageListener<RelayMessage>, AttributeValidator {
 
+	private static final Logger logger = LogManager.getLogger(BWLatencyRelay.class);
+
+	private static final int SHAPED_SEND_POOL_CAPACITY = 1 << 14;
+
 	private final HostBandwidthList bwList;
+	private final LinkBandwidthCaps linkCaps;
+	private final ObjectPool<ShapedSend> shapedSends;
 
 	public BWLatencyRelay(Properties properties, InputStream hostsConfig, InputStream relayConfig, InputStream latencyConfig, InputStream bandwidthConfig) throws IOException {
 		super(properties, hostsConfig, relayConfig, latencyConfig);
 
-		bwList = new HostBandwidthList(peerList, bandwidthConfig);
+		shapedSends = new ObjectPool<>(SHAPED_SEND_POOL_CAPACITY, ShapedSend::new);
+
+		bwList = new HostBandwidthList(peerList, bandwidthConfig, scheduler, queueLimits, this::dropped);
+		String caps = properties.getProperty(LINK_BANDWIDTH_KEY);
+		if (caps == null) {
+			linkCaps = null;
+		} else {
+			try (InputStream capsConfig = Files.newInputStream(Paths.get(caps))) {
+				linkCaps = new LinkBandwidthCaps(peerList.size(), capsConfig, scheduler, queueLimits, this::dropped);
+			}
+		}
+		exportBandwidthMetrics();
 	}
 
-	protected void sendMessageWithDelay(RelayMessage msg) {
-		Host receiver = msg.getTo();
-		Host sender = msg.getFrom();
-
-		if (peerToRelayConnections.containsKey(sender)) {
-			float delay = calculateDelay(msg);
-			Host relayHost = assignedRelayPerPeer.get(receiver);
-
-			bwList.getOutBandwidthBucket(sender).enqueue(msg, () -> scheduler.addEvent(new SendMessageEvent(msg, () -> {
-				if (relayHost.equals(self)) {
-					if (!peerToRelayConnections.containsKey(receiver))
-						throw new AssertionError("Null connection to peer " + receiver);
-					bwList.getInBandwidthBucket(receiver).enqueue(msg, () -> sendMessage(msg, peerToRelayConnections.get(receiver)));
-				} else {
-					if (!otherRelayConnections.containsKey(relayHost))
-						throw new AssertionError("Null connection to relay " + relayHost);
-					sendMessage(msg, otherRelayConnections.get(relayHost));
-				}
-			}, delay)));
+	private void exportBandwidthMetrics() {
+		List<String> directions = Arrays.asList("in", "out", "path");
+		List<List<BandwidthBucket>> buckets = Arrays.asList(bwList.getBandwidthBuckets(false), bwList.getBandwidthBuckets(true),
+				linkCaps == null ? Collections.emptyList() : linkCaps.getBandwidthBuckets());
+		MetricsRegistry registry = metrics.getRegistry();
+		registry.gauges("relay_bandwidth_queued_messages", "Messages held back by host bandwidth limits", "direction", directions,
+				d -> () -> buckets.get(d).stream().mapToLong(BandwidthBucket::getQueued).sum());
+		registry.gauges("relay_bandwidth_max_backlog_seconds", "Longest time a host bandwidth bucket needs to send what it holds", "direction", directions,
+				d -> () -> buckets.get(d).stream().mapToLong(BandwidthBucket::getBacklogNanos).max().orElse(0) / 1e9);
+
+		List<List<AggregateBucket>> shared = Arrays.asList(bwList.getSharedBuckets(false), bwList.getSharedBuckets(true));
+		registry.gauges("relay_bandwidth_shared_queued_messages", "Messages held back by links shared by sites and regions", "direction", directions.subList(0, 2),
+				d -> () -> shared.get(d).stream().mapToLong(AggregateBucket::getQueued).sum());
+		registry.gauges("relay_bandwidth_shared_max_backlog_seconds", "Longest time a link shared by a site or region needs to send what it holds", "direction", directions.subList(0, 2),
+				d -> () -> shared.get(d).stream().mapToLong(AggregateBucket::getBacklogNanos).max().orElse(0) / 1e9);
+	}
+
+	@Override
+	protected void initLink(Link link) {
+		super.initLink(link);
+		link.setShapers(bwList.getOutShaper(link.getFrom()), bwList.getInShaper(link.getTo()));
+		if (linkCaps != null)
+			link.setPathShaper(linkCaps.getBucket(link.getFromIndex(), link.getToIndex()));
+	}
+
+	@Override
+	protected void sendMessageWithDelay(RelayMessage msg, Link link) {
+		if (link.isFromLocal()) {
+			if (!hold(msg))
+				return;
+			float delay = calculateDelay(msg, getLatency(link));
+			link.getOutShaper().enqueue(msg, shapedSends.get().leave(msg, link, delay));
 		} else {
-			if (!peerToRelayConnections.containsKey(receiver))
-				throw new AssertionError("Null connection to peer " + receiver);
-			bwList.getInBandwidthBucket(receiver).enqueue(msg, () -> sendMessage(msg, peerToRelayConnections.get(receiver)));
+			Connection<RelayMessage> con = getDestination(link);
+			if (con == null) {
+				logger.debug("No connection to peer {}, dropping message {} from {}", msg.getTo(), msg.getSeqN(), msg.getFrom());
+				msg.release();
+				return;
+			}
+			if (!hold(msg))
+				return;
+			link.getInShaper().enqueue(msg, shapedSends.get().arrive(msg, con));
+		}
+	}
+
+	/**
+	 * Send of a message through the shapers and the delay line of its link, moved to its next stage each time it runs
+	 * and recycled once sent. A message dropped by a shaper leaves its send to the garbage collector.
+	 */
+	private final class ShapedSend implements Runnable {
+
+		private final ObjectPool.Handle<ShapedSend> handle;
+		private final SendMessageEvent event;
+		private Stage stage;
+		private RelayMessage msg;
+		private Link link;
+		private Connection<RelayMessage> con;
+		private float delay;
+		// time spent in bandwidth queues counts as emulation error, 0 when the sender is remote
+		private long deadline;
+
+		ShapedSend(ObjectPool.Handle<ShapedSend> handle) {
+			this.handle = handle;
+			this.event = SendMessageEvent.reusable(this);
+		}
+
+		/**
+		 * Starts the send of a message leaving a local sender, through its out shaper.
+		 */
+		ShapedSend leave(RelayMessage msg, Link link, float delay) {
+			this.stage = Stage.OUT;
+			this.msg = msg;
+			this.link = link;
+			this.delay = delay;
+			this.deadline = deadline(delay);
+			return this;
 		}
+
+		/**
+		 * Starts the send of a message from a remote sender, through the in shaper of its receiver.
+		 */
+		ShapedSend arrive(RelayMessage msg, Connection<RelayMessage> con) {
+			this.stage = Stage.IN;
+			this.msg = msg;
+			this.con = con;
+			return this;
+		}
+
+		@Override
+		public void run() {
+			if (stage == Stage.OUT) {
+				// thin paths between sites shape what already left the sender
+				Shaper path = link.getPathShaper();
+				stage = Stage.PATH;
+				if (path != null) {
+					path.enqueue(msg, this);
+					return;
+				}
+			}
+			if (stage == Stage.PATH) {
+				stage = Stage.DELAY;
+				link.getDelayLine().add(event.reset(msg, deadline(delay)));
+				return;
+			}
+			if (stage == Stage.DELAY) {
+				con = getDestination(link);
+				// the destination went down while the message was in flight
+				if (con == null) {
+					drop();
+					return;
+				}
+				if (link.isToLocal()) {
+					stage = Stage.IN;
+					link.getInShaper().enqueue(msg, this);
+					return;
+				}
+			}
+			send();
+		}
+
+		private void drop() {
+			RelayMessage msg = this.msg;
+			recycle();
+
+			logger.debug("No connection to {}, dropping message {} from {}", msg.getTo(), msg.getSeqN(), msg.getFrom());
+			unhold(msg);
+			msg.release();
+		}
+
+		private void send() {
+			RelayMessage msg = this.msg;
+			Link link = this.link;
+			Connection<RelayMessage> con = this.con;
+			long deadline = this.deadline;
+			recycle();
+
+			if (link != null)
+				accuracy.record(link, deadline);
+			unhold(msg);
+			sendMessage(msg, con);
+		}
+
+		private void recycle() {
+			event.reset(null, 0);
+			stage = null;
+			msg = null;
+			link = null;
+			con = null;
+			deadline = 0;
+			handle.recycle(this);
+		}
+	}
+
+	private enum Stage {
+		// waiting in the shapers of the sender, then of the path to the receiver's site
+		OUT, PATH,
+		// waiting for the latency of the link
+		DELAY,
+		// waiting in the shapers of the receiver
+		IN
 	}
 }
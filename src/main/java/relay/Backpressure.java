@@ -0,0 +1,193 @@
+package relay;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.Connection;
+import relay.messaging.RelayMessage;
+import relay.metrics.Counter;
+import relay.metrics.MetricsRegistry;
+import relay.util.NettyChannels;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+
+/**
+ * Turns overload into TCP backpressure by pausing reads, through {@code autoRead}, on the channels that bring it in:
+ * <ul>
+ *     <li>the channels of a peer, once the bytes the relay holds for messages it sent cross the high watermark, until
+ *     they fall below the low watermark;</li>
+ *     <li>a channel from another relay, once a message it brought is for a peer whose channel is not writable, until
+ *     that channel is writable again.</li>
+ * </ul>
+ * Connections without a Netty channel behind them are never paused.
+ */
+public class Backpressure {
+
+	private static final Logger logger = LogManager.getLogger(Backpressure.class);
+
+	private static final AttributeKey<Set<Channel>> PAUSED_SOURCES = AttributeKey.valueOf("relay.pausedSources");
+
+	private final int firstPeer;
+	private final long highWatermark;
+	private final long lowWatermark;
+	private final IntFunction<ConnectionStripes> peerConnections;
+	private final AtomicLongArray held;
+	private final AtomicIntegerArray paused;
+	private final Counter peerPauses;
+	private final Counter relayPauses;
+	private final ChannelHandler resumer;
+
+	/**
+	 * @param firstPeer       position in the peer list of the first peer of this relay
+	 * @param lastPeer        position in the peer list of the last peer of this relay
+	 * @param peerConnections inbound connections of each peer, by position in the peer list, null if not connected
+	 */
+	public Backpressure(int firstPeer, int lastPeer, long highWatermark, long lowWatermark, IntFunction<ConnectionStripes> peerConnections, MetricsRegistry registry) {
+		if (lowWatermark > highWatermark)
+			throw new IllegalArgumentException("Low watermark " + lowWatermark + " above high watermark " + highWatermark);
+		this.firstPeer = firstPeer;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.peerConnections = peerConnections;
+		int numPeers = Math.max(0, lastPeer - firstPeer + 1);
+		held = new AtomicLongArray(numPeers);
+		paused = new AtomicIntegerArray(numPeers);
+
+		Counter[] pauses = registry.counters("relay_backpressure_pauses_total", "Times reads were paused on a channel", "source", Arrays.asList("peer", "relay"));
+		peerPauses = pauses[0];
+		relayPauses = pauses[1];
+		registry.gauge("relay_backpressure_paused_peers", "Peers whose channels are paused", () -> {
+			int count = 0;
+			for (int i = 0; i < paused.length(); i++)
+				count += paused.get(i);
+			return count;
+		});
+		resumer = new Resumer();
+	}
+
+	/**
+	 * Accounts for bytes the relay now holds for a message from {@code peer}, ignored if it is not a peer of this
+	 * relay.
+	 */
+	public void hold(int peer, int bytes) {
+		int i = peer - firstPeer;
+		if (i < 0 || i >= held.length())
+			return;
+		if (held.addAndGet(i, bytes) >= highWatermark && paused.get(i) == 0)
+			toggle(peer, i);
+	}
+
+	/**
+	 * Accounts for a message from {@code peer} that left the relay.
+	 */
+	public void release(int peer, int bytes) {
+		int i = peer - firstPeer;
+		if (i < 0 || i >= held.length())
+			return;
+		if (held.addAndGet(i, -bytes) <= lowWatermark && paused.get(i) == 1)
+			toggle(peer, i);
+	}
+
+	/**
+	 * Pauses or resumes reads from the peer, in a single thread at a time so the last decision is the one that sticks.
+	 * <p>
+	 * A hold or release that crossed a watermark while the flag was about to change read the old flag and left the
+	 * decision to this thread, so the held bytes are checked again after every change.
+	 */
+	private synchronized void toggle(int peer, int i) {
+		while (true) {
+			long bytes = held.get(i);
+			if (paused.get(i) == 0 && bytes >= highWatermark) {
+				paused.set(i, 1);
+				if (setAutoRead(peerConnections.apply(peer), false))
+					peerPauses.increment();
+				logger.debug("Paused reads from peer {}, holding {} bytes", peer, bytes);
+			} else if (paused.get(i) == 1 && bytes <= lowWatermark) {
+				paused.set(i, 0);
+				setAutoRead(peerConnections.apply(peer), true);
+				logger.debug("Resumed reads from peer {}", peer);
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static boolean setAutoRead(ConnectionStripes stripes, boolean autoRead) {
+		if (stripes == null)
+			return false;
+		boolean changed = false;
+		for (int i = 0; i < stripes.size(); i++) {
+			Connection<RelayMessage> con = stripes.get(i);
+			Channel channel = con == null ? null : NettyChannels.channelOf(con);
+			if (channel != null) {
+				channel.config().setAutoRead(autoRead);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Makes the connection resume paused relay channels once it is writable again. Called once per connection to a
+	 * peer.
+	 */
+	public void watch(Connection<RelayMessage> destination) {
+		Channel channel = NettyChannels.channelOf(destination);
+		if (channel != null) {
+			channel.attr(PAUSED_SOURCES).setIfAbsent(ConcurrentHashMap.newKeySet());
+			// ahead of the network layer handlers, which need not pass the event on
+			channel.pipeline().addFirst(resumer);
+		}
+	}
+
+	/**
+	 * Pauses reads from {@code source}, a connection to another relay, if {@code destination} cannot take more.
+	 */
+	public void forwarding(Connection<RelayMessage> source, Connection<RelayMessage> destination) {
+		Channel out = NettyChannels.channelOf(destination);
+		if (out == null || out.isWritable())
+			return;
+		Channel in = NettyChannels.channelOf(source);
+		Set<Channel> sources = out.attr(PAUSED_SOURCES).get();
+		if (in == null || sources == null || !in.config().isAutoRead())
+			return;
+
+		sources.add(in);
+		in.config().setAutoRead(false);
+		relayPauses.increment();
+		logger.debug("Paused reads from relay {}, {} is not writable", source.getPeer(), destination.getPeer());
+		// writable again before the source was registered
+		if (out.isWritable())
+			resume(sources);
+	}
+
+	private static void resume(Set<Channel> sources) {
+		for (Channel source : sources) {
+			sources.remove(source);
+			source.config().setAutoRead(true);
+		}
+	}
+
+	@ChannelHandler.Sharable
+	private static final class Resumer extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+			Channel channel = ctx.channel();
+			Set<Channel> sources = channel.attr(PAUSED_SOURCES).get();
+			if (channel.isWritable() && sources != null && !sources.isEmpty()) {
+				resume(sources);
+				logger.debug("Resumed reads from relays, {} is writable", channel.remoteAddress());
+			}
+			super.channelWritabilityChanged(ctx);
+		}
+	}
+}
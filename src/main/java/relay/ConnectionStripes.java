@@ -0,0 +1,65 @@
+package relay;
+
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayMessage;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The parallel connections to one relay or peer. Traffic is spread over them by (sender, receiver) pair, so every
+ * pair always uses the same connection and keeps its ordering.
+ */
+public class ConnectionStripes {
+
+	private final AtomicReferenceArray<Connection<RelayMessage>> stripes;
+
+	public ConnectionStripes(int numStripes) {
+		stripes = new AtomicReferenceArray<>(numStripes);
+	}
+
+	public int size() {
+		return stripes.length();
+	}
+
+	/**
+	 * @return the connection previously in that stripe
+	 */
+	public Connection<RelayMessage> set(int stripe, Connection<RelayMessage> con) {
+		return stripes.getAndSet(stripe, con);
+	}
+
+	/**
+	 * @return the connection in that stripe, null if it is down
+	 */
+	public Connection<RelayMessage> get(int stripe) {
+		return stripes.get(stripe);
+	}
+
+	public boolean contains(Connection<RelayMessage> con) {
+		for (int i = 0; i < stripes.length(); i++) {
+			if (stripes.get(i) == con)
+				return true;
+		}
+		return false;
+	}
+
+	public void remove(Connection<RelayMessage> con) {
+		for (int i = 0; i < stripes.length(); i++)
+			stripes.compareAndSet(i, con, null);
+	}
+
+	/**
+	 * @return the connection for messages from {@code from} to {@code to}, or the next one up if it is down
+	 */
+	public Connection<RelayMessage> get(Host from, Host to) {
+		int n = stripes.length();
+		int start = Math.floorMod(31 * from.hashCode() + to.hashCode(), n);
+		for (int i = 0; i < n; i++) {
+			Connection<RelayMessage> con = stripes.get((start + i) % n);
+			if (con != null)
+				return con;
+		}
+		return null;
+	}
+}
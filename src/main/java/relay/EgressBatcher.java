@@ -0,0 +1,211 @@
+package relay;
+
+import io.netty.channel.Channel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.Connection;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayBatchMessage;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+import relay.util.MpscRingBuffer;
+import relay.util.NettyChannels;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Gathers the messages due for each destination connection, in a {@link MpscRingBuffer}, and hands them over in one
+ * task per event-loop turn of that connection.
+ * <p>
+ * The network layer writes and flushes every message on its own, so each channel also gets a
+ * {@link FlushConsolidationHandler}: the writes of one batch run back to back on the channel's loop and share a
+ * single flush at the end of the turn.
+ * <p>
+ * Messages are released once the network layer completes their write, through a {@link ReleasePromise}.
+ * <p>
+ * On connections that negotiated {@link RelayMessageSerializer#V3} or later, the messages of a turn are also packed
+ * into {@link RelayBatchMessage}s, so they share one frame and its header.
+ * <p>
+ * Once a connection is removed, the messages still queued for it and those sent to it later are released instead of
+ * written.
+ */
+public class EgressBatcher {
+
+	private static final Logger logger = LogManager.getLogger(EgressBatcher.class);
+
+	private static final int OUTBOX_CAPACITY = 1 << 10;
+
+	private final Map<Connection<RelayMessage>, Outbox> outboxes;
+	// guarded by this, kept until the connection is no longer referenced
+	private final Set<Connection<RelayMessage>> removed;
+	private final LongAdder flushes;
+	private final LongAdder flushedMessages;
+	private final LongAdder batches;
+
+	public EgressBatcher() {
+		outboxes = new ConcurrentHashMap<>();
+		removed = Collections.newSetFromMap(new WeakHashMap<>());
+		flushes = new LongAdder();
+		flushedMessages = new LongAdder();
+		batches = new LongAdder();
+	}
+
+	public void send(RelayMessage msg, Connection<RelayMessage> con) {
+		Outbox outbox = outboxes.get(con);
+		if (outbox == null)
+			outbox = open(con);
+		if (outbox == null)
+			msg.release();
+		else
+			outbox.add(msg);
+	}
+
+	/**
+	 * @return null if the connection was removed
+	 */
+	private synchronized Outbox open(Connection<RelayMessage> con) {
+		return removed.contains(con) ? null : outboxes.computeIfAbsent(con, Outbox::new);
+	}
+
+	/**
+	 * Stops sending to a connection that went down, releasing the messages queued for it.
+	 */
+	public synchronized void remove(Connection<RelayMessage> con) {
+		removed.add(con);
+		Outbox outbox = outboxes.remove(con);
+		if (outbox != null)
+			outbox.close();
+	}
+
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	public long getFlushedMessages() {
+		return flushedMessages.sum();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public double getMessagesPerFlush() {
+		long f = flushes.sum();
+		return f == 0 ? 0 : (double) flushedMessages.sum() / f;
+	}
+
+	private class Outbox implements Runnable, Consumer<RelayMessage> {
+
+		private final Connection<RelayMessage> con;
+		private final MpscRingBuffer<RelayMessage> pending;
+		private final AtomicBoolean scheduled;
+		private final List<RelayMessage> batch;
+		private int batchBytes;
+		private volatile boolean closed;
+		// only touched on the connection's loop
+		private boolean started;
+
+		Outbox(Connection<RelayMessage> con) {
+			this.con = con;
+			this.pending = new MpscRingBuffer<>(OUTBOX_CAPACITY);
+			this.scheduled = new AtomicBoolean();
+			this.batch = new ArrayList<>(RelayBatchMessage.MAX_MESSAGES);
+		}
+
+		void add(RelayMessage msg) {
+			if (closed) {
+				msg.release();
+				return;
+			}
+			pending.offer(msg);
+			schedule();
+		}
+
+		/**
+		 * Releases the queued messages on the connection's loop, which alone may drain them.
+		 */
+		void close() {
+			closed = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (!scheduled.get() && scheduled.compareAndSet(false, true))
+				con.getLoop().execute(this);
+		}
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			if (closed) {
+				pending.drain(RelayMessage::release);
+				return;
+			}
+			if (!started) {
+				started = true;
+				consolidateFlushes();
+			}
+
+			int batched = pending.drain(this);
+			sendBatch();
+
+			if (batched > 0) {
+				flushes.increment();
+				flushedMessages.add(batched);
+				if (logger.isTraceEnabled())
+					logger.trace("Flushed {} messages to {}", batched, con.getPeer());
+			}
+		}
+
+		@Override
+		public void accept(RelayMessage msg) {
+			if (msg.getWireVersion() >= RelayMessageSerializer.V3)
+				addToBatch(msg);
+			else
+				write(msg);
+		}
+
+		private void addToBatch(RelayMessage msg) {
+			batch.add(msg);
+			if (msg instanceof RelayAppMessage)
+				batchBytes += ((RelayAppMessage) msg).getPayloadSize();
+			if (batch.size() == RelayBatchMessage.MAX_MESSAGES || batchBytes >= RelayBatchMessage.MAX_PAYLOAD_BYTES)
+				sendBatch();
+		}
+
+		private void sendBatch() {
+			if (batch.size() == 1) {
+				write(batch.get(0));
+			} else if (batch.size() > 1) {
+				RelayBatchMessage batchMsg = RelayBatchMessage.newInstance(batch);
+				batchMsg.setWireVersion(batch.get(0).getWireVersion());
+				write(batchMsg);
+				batches.increment();
+			}
+			batch.clear();
+			batchBytes = 0;
+		}
+
+		private void write(RelayMessage msg) {
+			con.sendMessage(msg, new ReleasePromise(con.getLoop(), msg));
+		}
+
+		private void consolidateFlushes() {
+			Channel channel = NettyChannels.channelOf(con);
+			if (channel == null)
+				logger.warn("Cannot consolidate flushes to {}, every message is flushed on its own", con.getPeer());
+			else if (channel.isActive() && channel.pipeline().get(FlushConsolidationHandler.class) == null)
+				channel.pipeline().addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package relay;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import relay.link.Link;
+import relay.util.Histogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Measures how far from their intended time messages leave the relay, i.e., the time at which a message is handed to
+ * its destination connection minus the sent time plus the latency of its link.
+ * <p>
+ * Errors are kept per {@link LinkClass} and per receiving peer. They include the time messages spend in bandwidth
+ * queues, so on a {@link BWLatencyRelay} they also grow when peers send more than their bandwidth allows, not only when
+ * the scheduler falls behind.
+ * <p>
+ * Each {@link #report()} logs the errors since the previous one and warns when their 99th percentile crosses the
+ * configured threshold, for a link class or for any peer.
+ */
+public class EmulationAccuracy {
+
+	private static final Logger logger = LogManager.getLogger(EmulationAccuracy.class);
+
+	// per-peer histograms are many, so they give up some precision to stay small
+	private static final int PEER_SUB_BUCKET_BITS = 4;
+	private static final int MAX_LATE_PEERS_LOGGED = 5;
+
+	public enum LinkClass {
+		/**
+		 * Both peers belong to this relay.
+		 */
+		LOCAL,
+		/**
+		 * The sender belongs to another relay, which forwarded the message.
+		 */
+		FROM_RELAY,
+		/**
+		 * The receiver belongs to another relay, the message is forwarded there.
+		 */
+		TO_RELAY;
+
+		public static LinkClass of(Link link) {
+			if (!link.isToLocal())
+				return TO_RELAY;
+			return link.isFromLocal() ? LOCAL : FROM_RELAY;
+		}
+	}
+
+	private final long warningNanos;
+	private final Map<LinkClass, Histogram> current;
+	private final Map<LinkClass, Histogram> total;
+	private final AtomicReferenceArray<Histogram> currentPerPeer;
+	private final AtomicReferenceArray<Histogram> totalPerPeer;
+
+	/**
+	 * @param warningNanos 99th percentile of the error above which reports warn
+	 */
+	public EmulationAccuracy(int numPeers, long warningNanos) {
+		this.warningNanos = warningNanos;
+		current = new EnumMap<>(LinkClass.class);
+		total = new EnumMap<>(LinkClass.class);
+		for (LinkClass linkClass : LinkClass.values()) {
+			current.put(linkClass, new Histogram());
+			total.put(linkClass, new Histogram());
+		}
+		currentPerPeer = new AtomicReferenceArray<>(numPeers);
+		totalPerPeer = new AtomicReferenceArray<>(numPeers);
+	}
+
+	/**
+	 * Records a message of {@code link} leaving now.
+	 *
+	 * @param intended time at which the message should have left, in {@link System#nanoTime()} units
+	 */
+	public void record(Link link, long intended) {
+		long error = System.nanoTime() - intended;
+		current.get(LinkClass.of(link)).record(error);
+
+		int peer = link.getToIndex();
+		if (peer < 0 || peer >= currentPerPeer.length())
+			return;
+		Histogram histogram = currentPerPeer.get(peer);
+		if (histogram == null) {
+			currentPerPeer.compareAndSet(peer, null, new Histogram(PEER_SUB_BUCKET_BITS));
+			histogram = currentPerPeer.get(peer);
+		}
+		histogram.record(error);
+	}
+
+	/**
+	 * @return errors recorded for the link class up to the last report, in nanoseconds
+	 */
+	public Histogram getHistogram(LinkClass linkClass) {
+		return total.get(linkClass);
+	}
+
+	/**
+	 * @return errors recorded for messages to the peer up to the last report, in nanoseconds, null if there were none
+	 */
+	public Histogram getPeerHistogram(int peer) {
+		return totalPerPeer.get(peer);
+	}
+
+	/**
+	 * Logs the errors recorded since the previous report and adds them to the totals.
+	 */
+	public void report() {
+		Histogram interval = new Histogram();
+		for (LinkClass linkClass : LinkClass.values()) {
+			current.get(linkClass).drainTo(interval);
+			if (interval.getCount() > 0) {
+				long p99 = interval.getPercentile(99);
+				if (p99 > warningNanos)
+					logger.warn("Emulation error of {} links above {}us: {}", linkClass, toMicros(warningNanos), describe(interval));
+				else
+					logger.info("Emulation error of {} links: {}", linkClass, describe(interval));
+			}
+			interval.drainTo(total.get(linkClass));
+		}
+
+		Histogram peerInterval = new Histogram(PEER_SUB_BUCKET_BITS);
+		List<long[]> latePeers = new ArrayList<>();
+		for (int peer = 0; peer < currentPerPeer.length(); peer++) {
+			Histogram histogram = currentPerPeer.get(peer);
+			if (histogram == null)
+				continue;
+			histogram.drainTo(peerInterval);
+			long p99 = peerInterval.getPercentile(99);
+			if (peerInterval.getCount() > 0 && p99 > warningNanos)
+				latePeers.add(new long[]{peer, p99});
+
+			Histogram peerTotal = totalPerPeer.get(peer);
+			if (peerTotal == null) {
+				totalPerPeer.compareAndSet(peer, null, new Histogram(PEER_SUB_BUCKET_BITS));
+				peerTotal = totalPerPeer.get(peer);
+			}
+			peerInterval.drainTo(peerTotal);
+		}
+
+		if (!latePeers.isEmpty()) {
+			latePeers.sort((a, b) -> Long.compare(b[1], a[1]));
+			StringBuilder worst = new StringBuilder();
+			for (int i = 0; i < Math.min(MAX_LATE_PEERS_LOGGED, latePeers.size()); i++)
+				worst.append(i == 0 ? "" : ", ").append(latePeers.get(i)[0]).append(": ").append(toMicros(latePeers.get(i)[1])).append("us");
+			logger.warn("Emulation error p99 above {}us for messages to {} peers, worst {}", toMicros(warningNanos), latePeers.size(), worst);
+		}
+	}
+
+	private static String describe(Histogram histogram) {
+		return String.format("%d msgs, p50 %dus p99 %dus p99.9 %dus max %dus", histogram.getCount(),
+				toMicros(histogram.getPercentile(50)), toMicros(histogram.getPercentile(99)),
+				toMicros(histogram.getPercentile(99.9)), toMicros(histogram.getMax()));
+	}
+
+	private static long toMicros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -13,17 +13,35 @@ import pt.unl.fct.di.novasys.network.data.Host;
 import pt.unl.fct.di.novasys.network.listeners.InConnListener;
 import pt.unl.fct.di.novasys.network.listeners.MessageListener;
 import pt.unl.fct.di.novasys.network.listeners.OutConnListener;
-import relay.latency.LatencyMatrix;
+import relay.bandwidth.BandwidthBucket;
+import relay.bandwidth.DropListener;
+import relay.bandwidth.QueueLimits;
+import relay.latency.DelayLine;
+import relay.latency.LatencyModel;
+import relay.latency.LatencyTrace;
 import relay.latency.Scheduler;
 import relay.latency.SendMessageEvent;
+import relay.link.Link;
+import relay.link.LinkTable;
 import relay.messaging.*;
+import relay.metrics.MetricsExporter;
+import relay.metrics.MetricsMBean;
+import relay.metrics.MetricsRegistry;
+import relay.metrics.RelayMetrics;
 import relay.util.ConfigUtils;
+import relay.util.HostIndex;
+import relay.util.MemoryBudget;
+import relay.util.ObjectPool;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class Relay implements InConnListener<RelayMessage>, OutConnListener<RelayMessage>, MessageListener<RelayMessage>, AttributeValidator {
 
@@ -37,33 +55,71 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 	public static final String NUM_RELAYS = "num_relays";
 	public static final String NUM_NODES = "num_peers";
 	public static final String SLEEP = "sleep";
+	public static final String SCHEDULER_THREADS_KEY = "scheduler_threads";
+	public static final String HIGH_RESOLUTION_KEY = "high_resolution";
+	public static final String SHARDED_KEY = "sharded";
+	public static final String ASYMMETRIC_LATENCY_KEY = "asymmetric_latency";
+	public static final String ZERO_COPY_KEY = "zero_copy";
+	public static final String RELAY_STRIPES_KEY = "relay_stripes";
+	public static final String LATENCY_MODEL_KEY = "latency_model";
+	public static final String LATENCY_TRACE_KEY = "latency_trace";
+	public static final String ACCURACY_WARNING_KEY = "accuracy_warning_us";
+	public static final String LINK_BANDWIDTH_KEY = "link_bandwidth";
+	public static final String QUEUE_MAX_MESSAGES_KEY = "queue_max_messages";
+	public static final String QUEUE_MAX_BYTES_KEY = "queue_max_bytes";
+	public static final String QUEUE_POLICY_KEY = "queue_policy";
+	public static final String MEMORY_BUDGET_KEY = "memory_budget";
+	public static final String BACKPRESSURE_KEY = "backpressure";
+	public static final String BACKPRESSURE_HIGH_KEY = "backpressure_high";
+	public static final String BACKPRESSURE_LOW_KEY = "backpressure_low";
+	public static final String METRICS_FILE_KEY = "metrics_file";
+	public static final String METRICS_PORT_KEY = "metrics_port";
+	public static final String METRICS_INTERVAL_KEY = "metrics_interval";
 	public static final String WORKER_GROUP_KEY = "workerGroup";
 	public static final String LISTEN_ADDRESS_ATTRIBUTE = "listen_address";
+	public static final String WIRE_VERSION_ATTRIBUTE = "relay_wire_version";
+	public static final String STRIPE_ATTRIBUTE = "relay_stripe";
+	public static final String NUM_STRIPES_ATTRIBUTE = "relay_stripes";
 	public static final String DEFAULT_PORT = "9082";
 	public static final String DEFAULT_HB_INTERVAL = "0";
 	public static final String DEFAULT_HB_TOLERANCE = "0";
 	public static final String DEFAULT_CONNECT_TIMEOUT = "1000";
+	public static final String DEFAULT_ACCURACY_WARNING = "2000";
+	public static final String DEFAULT_METRICS_INTERVAL = "5000";
+	public static final String DEFAULT_BACKPRESSURE_HIGH = String.valueOf(4 * 1024 * 1024);
 
 	private static final float DEFAULT_LATENCY = 0;
+	private static final long REPORT_INTERVAL = 10000;
+	private static final int DELAYED_SEND_POOL_CAPACITY = 1 << 14;
 	private static final Logger logger = LogManager.getLogger(Relay.class);
-	private static final Short EMULATED_MAGIC_NUMBER = 0x1369;
+	public static final Short EMULATED_MAGIC_NUMBER = 0x1369;
 
-	protected final Map<Host, Connection<RelayMessage>> peerToRelayConnections;
-	protected final Map<Host, Connection<RelayMessage>> otherRelayConnections;
+	protected final Map<Host, ConnectionStripes> peerToRelayConnections;
+	protected final Map<Host, ConnectionStripes> otherRelayConnections;
 	protected final Map<Host, Host> assignedRelayPerPeer;
 	protected final Host self;
 	protected final List<Host> peerList;
+	protected final HostIndex peerIndex;
 	protected final Scheduler scheduler;
+	protected final EgressBatcher egress;
+	protected final EmulationAccuracy accuracy;
+	protected final RelayMetrics metrics;
+	protected final QueueLimits queueLimits;
+	protected final MemoryBudget memoryBudget;
+	protected final Backpressure backpressure;
 
 	private final NetworkManager<RelayMessage> network;
 	private final Attributes attributes;
-	// left -> right
-	private final Set<Pair<Host, Host>> peerToPeerConnections;
+	private final short relayStripes;
+	private final LinkTable links;
 	private final Set<Host> disconnectedPeers;
-	private final LatencyMatrix latencyMatrix;
+	private final LatencyModel latencyModel;
+	private final LatencyTrace latencyTrace;
 	private final int relayID;
 	private final List<Host> relayList;
 	private final Set<Host> relaySet;
+	private final Map<Connection<RelayMessage>, Short> wireVersions;
+	private final ObjectPool<DelayedSend> delayedSends;
 
 
 	public Relay(Properties properties, InputStream hostsConfig, InputStream relayConfig, InputStream latencyConfig) throws IOException {
@@ -84,35 +140,91 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 
 		int numPeersOfThisRelay = numPeersOfRelay(numPeers, relayID, numRelays);
 
+		peerList = ConfigUtils.configToHostList(hostsConfig, numPeers);
+		peerIndex = new HostIndex(peerList);
+		metrics = new RelayMetrics(new MetricsRegistry(), peerIndex);
+		queueLimits = new QueueLimits(Integer.parseInt(properties.getProperty(QUEUE_MAX_MESSAGES_KEY, "0")),
+				Long.parseLong(properties.getProperty(QUEUE_MAX_BYTES_KEY, "0")),
+				QueueLimits.Policy.parse(properties.getProperty(QUEUE_POLICY_KEY, QueueLimits.Policy.DROP_TAIL.name())));
+		memoryBudget = new MemoryBudget(Long.parseLong(properties.getProperty(MEMORY_BUDGET_KEY, "0")));
+		metrics.getRegistry().gauge("relay_memory_budget_used_bytes", "Bytes of messages the relay holds", memoryBudget::getUsed);
+
 		EventLoopGroup eventExecutors = properties.containsKey(WORKER_GROUP_KEY) ? (EventLoopGroup) properties.get(WORKER_GROUP_KEY) : NetworkManager.createNewWorkerGroup();
-		RelayMessageSerializer tRelayMessageSerializer = new RelayMessageSerializer();
+		boolean zeroCopy = Boolean.parseBoolean(properties.getProperty(ZERO_COPY_KEY, "false"));
+		RelayMessageSerializer tRelayMessageSerializer = new RelayMessageSerializer(peerIndex, zeroCopy, metrics);
 		network = new NetworkManager<>(tRelayMessageSerializer, this, hbInterval, hbTolerance, connTimeout);
 		network.createServerSocket(this, self, this, eventExecutors);
 
-		attributes = new Attributes();
-		attributes.putShort(AttributeValidator.CHANNEL_MAGIC_ATTRIBUTE, EMULATED_MAGIC_NUMBER);
-		attributes.putHost(LISTEN_ADDRESS_ATTRIBUTE, self);
+		relayStripes = Short.parseShort(properties.getProperty(RELAY_STRIPES_KEY, "1"));
+		attributes = relayAttributes((short) 0);
+		wireVersions = new ConcurrentHashMap<>(numPeersOfThisRelay + numRelays);
 
 		peerToRelayConnections = new ConcurrentHashMap<>(numPeersOfThisRelay);
 
-		peerToPeerConnections = ConcurrentHashMap.newKeySet(numPeersOfThisRelay * (numPeers - 1));
-
 		disconnectedPeers = ConcurrentHashMap.newKeySet(numPeersOfThisRelay);
 
 		otherRelayConnections = new ConcurrentHashMap<>(numRelays - 1);
 		assignedRelayPerPeer = new HashMap<>(numPeers);
 
-		peerList = ConfigUtils.configToHostList(hostsConfig, numPeers);
 		Pair<Integer, Integer> range = peerRange(numPeers, relayID, numRelays);
-		latencyMatrix = new LatencyMatrix(peerList, latencyConfig, range.getLeft(), range.getRight());
+		if (Boolean.parseBoolean(properties.getProperty(BACKPRESSURE_KEY, "false"))) {
+			long high = Long.parseLong(properties.getProperty(BACKPRESSURE_HIGH_KEY, DEFAULT_BACKPRESSURE_HIGH));
+			long low = Long.parseLong(properties.getProperty(BACKPRESSURE_LOW_KEY, String.valueOf(high / 4)));
+			backpressure = new Backpressure(range.getLeft(), range.getRight(), high, low,
+					i -> peerToRelayConnections.get(peerList.get(i)), metrics.getRegistry());
+		} else {
+			backpressure = null;
+		}
+		boolean symmetric = !Boolean.parseBoolean(properties.getProperty(ASYMMETRIC_LATENCY_KEY, "false"));
+		String model = properties.getProperty(LATENCY_MODEL_KEY, LatencyModel.MATRIX);
+		latencyModel = LatencyModel.load(model, peerIndex, latencyConfig, range.getLeft(), range.getRight(), symmetric);
+		String trace = properties.getProperty(LATENCY_TRACE_KEY);
+		latencyTrace = trace == null ? null : new LatencyTrace(Paths.get(trace), latencyModel);
 
 		relayList = ConfigUtils.configToHostList(relayConfig, numRelays);
 		relaySet = new HashSet<>(relayList);
 
-		scheduler = new Scheduler(peerList);
+		int schedulerThreads = Integer.parseInt(properties.getProperty(SCHEDULER_THREADS_KEY, String.valueOf(Scheduler.DEFAULT_THREADS)));
+		boolean highResolution = Boolean.parseBoolean(properties.getProperty(HIGH_RESOLUTION_KEY, "false"));
+		if (Boolean.parseBoolean(properties.getProperty(SHARDED_KEY, "false"))) {
+			if (highResolution)
+				logger.warn("High resolution firing is not available on event loops, ignoring it");
+			scheduler = new Scheduler(peerList, eventExecutors);
+		} else {
+			scheduler = new Scheduler(peerList, schedulerThreads, highResolution);
+		}
 
 		assignPeersToRelays(numRelays, numPeers);
 
+		links = new LinkTable(peerIndex, peer -> self.equals(assignedRelayPerPeer.get(peer)), this::initLink);
+
+		egress = new EgressBatcher();
+		delayedSends = new ObjectPool<>(DELAYED_SEND_POOL_CAPACITY, DelayedSend::new);
+		long accuracyWarning = Long.parseLong(properties.getProperty(ACCURACY_WARNING_KEY, DEFAULT_ACCURACY_WARNING));
+		accuracy = new EmulationAccuracy(numPeers, TimeUnit.MICROSECONDS.toNanos(accuracyWarning));
+		new Timer(true).scheduleAtFixedRate(new TimerTask() {
+			private long lastFlushes;
+			private long lastDropped;
+
+			@Override
+			public void run() {
+				long flushes = egress.getFlushes();
+				if (flushes != lastFlushes)
+					logger.info("Egress: {} flushes, {} messages per flush, {} batches", flushes, String.format("%.2f", egress.getMessagesPerFlush()), egress.getBatches());
+				lastFlushes = flushes;
+				long dropped = metrics.getDropped();
+				if (dropped != lastDropped)
+					logger.warn("Dropped {} messages since the last report: {} so far, holding {} bytes", dropped - lastDropped, metrics.describeDrops(), memoryBudget.getUsed());
+				lastDropped = dropped;
+				accuracy.report();
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL);
+
+		exportMetrics(properties);
+
+		if (latencyTrace != null)
+			latencyTrace.start();
+
 		if (numRelays > 1) {
 			int sleep = Integer.parseInt(properties.getProperty(SLEEP));
 			new Timer().schedule(new TimerTask() {
@@ -124,12 +236,44 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		}
 	}
 
+	private void exportMetrics(Properties properties) throws IOException {
+		MetricsRegistry registry = metrics.getRegistry();
+		List<String> threads = new ArrayList<>();
+		for (int i = 0; i < scheduler.getNumThreads(); i++)
+			threads.add(String.valueOf(i));
+		registry.gauges("relay_scheduler_queued_events", "Events waiting to fire in each scheduler thread", "thread", threads,
+				i -> () -> scheduler.getQueued(i));
+
+		try {
+			new MetricsMBean(registry).register(self.toString());
+		} catch (JMException e) {
+			logger.error("Cannot register metrics MBean: {}", e.getMessage());
+		}
+
+		MetricsExporter exporter = new MetricsExporter(registry);
+		if (properties.containsKey(METRICS_PORT_KEY))
+			exporter.startHttp(Integer.parseInt(properties.getProperty(METRICS_PORT_KEY)));
+		if (properties.containsKey(METRICS_FILE_KEY)) {
+			Path file = Paths.get(properties.getProperty(METRICS_FILE_KEY));
+			long interval = Long.parseLong(properties.getProperty(METRICS_INTERVAL_KEY, DEFAULT_METRICS_INTERVAL));
+			new Timer(true).scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					exporter.writeFile(file);
+				}
+			}, interval, interval);
+		}
+	}
+
 	private static int numPeersOfRelay(int numPeers, int relayID, int numRelays) {
 		int r = numPeers % numRelays;
 		return numPeers / numRelays + ((r > relayID) ? 1 : 0);
 	}
 
-	private static Pair<Integer, Integer> peerRange(int numPeers, int relayID, int numRelays) {
+	/**
+	 * @return first and last position in the peer list of the peers assigned to relay {@code relayID}
+	 */
+	public static Pair<Integer, Integer> peerRange(int numPeers, int relayID, int numRelays) {
 		int r = numPeers % numRelays;
 		int size = numPeers / numRelays + ((r > relayID) ? 1 : 0);
 		int start = relayID * (numPeers / numRelays) + Math.max(0, Math.min(r, relayID));
@@ -138,12 +282,42 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		return new ImmutablePair<>(start, end);
 	}
 
+	private Attributes relayAttributes(short stripe) {
+		Attributes attrs = new Attributes();
+		attrs.putShort(AttributeValidator.CHANNEL_MAGIC_ATTRIBUTE, EMULATED_MAGIC_NUMBER);
+		attrs.putHost(LISTEN_ADDRESS_ATTRIBUTE, self);
+		attrs.putShort(WIRE_VERSION_ATTRIBUTE, RelayMessageSerializer.CURRENT_VERSION);
+		attrs.putShort(STRIPE_ATTRIBUTE, stripe);
+		attrs.putShort(NUM_STRIPES_ATTRIBUTE, relayStripes);
+		return attrs;
+	}
+
 	private void connectToRelays(int numRelays) {
 		for (int i = relayID + 1; i < numRelays; i++) {
-			network.createConnection(relayList.get(i), attributes, this);
+			for (short stripe = 0; stripe < relayStripes; stripe++)
+				network.createConnection(relayList.get(i), stripe == 0 ? attributes : relayAttributes(stripe), this);
 		}
 	}
 
+	private static short getShortAttribute(Attributes attrs, String key, short defaultValue) {
+		Short value = attrs == null ? null : attrs.getShort(key);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @return the connection previously in the same stripe
+	 */
+	private Connection<RelayMessage> addStripe(Map<Host, ConnectionStripes> connections, Host host, Attributes attrs, Connection<RelayMessage> connection) {
+		short stripe = getShortAttribute(attrs, STRIPE_ATTRIBUTE, (short) 0);
+		short numStripes = getShortAttribute(attrs, NUM_STRIPES_ATTRIBUTE, (short) 1);
+		ConnectionStripes stripes = connections.computeIfAbsent(host, k -> new ConnectionStripes(numStripes));
+		if (stripe < 0 || stripe >= stripes.size()) {
+			logger.fatal("Connection with " + host + " in stripe " + stripe + " out of " + stripes.size());
+			return null;
+		}
+		return stripes.set(stripe, connection);
+	}
+
 	private void assignPeersToRelays(int numRelays, int numPeers) {
 		for (int i = 0; i < numRelays; i++) {
 			Pair<Integer, Integer> range = peerRange(numPeers, i, numRelays);
@@ -167,26 +341,22 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		}
 
 		//send disconnect notification instantly to peer getting disconnected, it is assumed it is connected to this relay
-		sendMessage(new RelayPeerDisconnectedMessage(peer, peer, new IOException("Node " + peer + " disconnected")), peerToRelayConnections.get(peer));
+		sendMessage(new RelayPeerDisconnectedMessage(peer, peer, new IOException("Node " + peer + " disconnected")), peerToRelayConnections.get(peer).get(peer, peer));
 
 		sendPeerDisconnectNotifications(peer);
 	}
 
 	private void sendPeerDisconnectNotifications(Host peer) {
-		Iterator<Pair<Host, Host>> it = peerToPeerConnections.iterator();
+		for (Link link : links.linksOf(peer)) {
+			Host other = link.getTo();
 
-		while (it.hasNext()) {
-			Pair<Host, Host> pair = it.next();
-			Host other;
-			if (pair.getLeft().equals(peer)) {
-				other = pair.getRight();
-			} else if (pair.getRight().equals(peer)) {
-				other = pair.getLeft();
-			} else continue;
+			// one notification per connection between both peers
+			if (link.getState() != Link.State.CLOSED)
+				sendMessageWithDelay(new RelayPeerDisconnectedMessage(peer, other, new IOException("Node " + peer + " disconnected")), link);
+			if (link.getReverse().getState() != Link.State.CLOSED)
+				sendMessageWithDelay(new RelayPeerDisconnectedMessage(peer, other, new IOException("Node " + peer + " disconnected")), link);
 
-			sendMessageWithDelay(new RelayPeerDisconnectedMessage(peer, other, new IOException("Node " + peer + " disconnected")));
-
-			it.remove();
+			links.remove(link);
 		}
 	}
 
@@ -201,7 +371,7 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		if (!disconnectedPeers.remove(peer)) logger.debug("Reconnecting peer: Peer already connected.");
 		else
 			//send signal that peer is reconnected to network
-			sendMessage(new RelayPeerDisconnectedMessage(peer, peer, new IOException("Node " + peer + " reconnected")), peerToRelayConnections.get(peer));
+			sendMessage(new RelayPeerDisconnectedMessage(peer, peer, new IOException("Node " + peer + " reconnected")), peerToRelayConnections.get(peer).get(peer, peer));
 	}
 
 	@Override
@@ -218,22 +388,33 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		} else {
 
 			logger.debug("InboundConnectionUp {}", clientSocket);
+			negotiateWireVersion(connection);
 			Connection<RelayMessage> old;
 			if (relaySet.contains(clientSocket)) {
 				logger.info("Relay {} connected", clientSocket);
-				old = otherRelayConnections.put(clientSocket, connection);
+				old = addStripe(otherRelayConnections, clientSocket, connection.getPeerAttributes(), connection);
 			} else {
 				logger.info("Peer {} connected", clientSocket);
-				old = peerToRelayConnections.put(clientSocket, connection);
+				old = addStripe(peerToRelayConnections, clientSocket, connection.getPeerAttributes(), connection);
+				// the first stripe's loop owns the peer
+				if (getShortAttribute(connection.getPeerAttributes(), STRIPE_ATTRIBUTE, (short) 0) == 0)
+					scheduler.assign(clientSocket, connection.getLoop());
+				if (backpressure != null)
+					backpressure.watch(connection);
+				// resolved again with the new connection on the next message
+				for (Link link : links.linksOf(clientSocket))
+					link.getReverse().setDestination(null);
 			}
 
 			if (old != null)
-				logger.fatal("Double incoming connection from: " + clientSocket + " (" + connection.getPeer() + ")");
+				logger.fatal("Double incoming connection in the same stripe from: " + clientSocket + " (" + connection.getPeer() + ")");
 		}
 	}
 
 	@Override
 	public void inboundConnectionDown(Connection<RelayMessage> connection, Throwable cause) {
+		wireVersions.remove(connection);
+		egress.remove(connection);
 		Host clientSocket = null;
 		try {
 			clientSocket = connection.getPeerAttributes().getHost(LISTEN_ADDRESS_ATTRIBUTE);
@@ -244,6 +425,11 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		if (clientSocket == null) {
 			logger.fatal("Inbound connection without LISTEN_ADDRESS: " + connection.getPeer() + " " + connection.getPeerAttributes());
 		} else {
+			ConnectionStripes stripes = (relaySet.contains(clientSocket) ? otherRelayConnections : peerToRelayConnections).get(clientSocket);
+			if (stripes != null)
+				stripes.remove(connection);
+			// links fall back to the next stripe up
+			links.forgetDestination(connection);
 			if (relaySet.contains(clientSocket))
 				logger.fatal("Relay " + clientSocket + " disconnected from relay unexpectedly! cause:" + ((cause == null) ? "" : " " + Arrays.toString(cause.getStackTrace())));
 			else
@@ -256,14 +442,17 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		Host clientSocket = connection.getPeer();
 
 		logger.debug("OutboundConnectionUp {}", clientSocket);
-		Connection<RelayMessage> old = this.otherRelayConnections.put(clientSocket, connection);
+		negotiateWireVersion(connection);
+		Connection<RelayMessage> old = addStripe(otherRelayConnections, clientSocket, connection.getSelfAttributes(), connection);
 
 		if (old != null)
-			logger.fatal("Double outgoing connection with: " + clientSocket + " (" + connection.getPeer() + ")");
+			logger.fatal("Double outgoing connection in the same stripe with: " + clientSocket + " (" + connection.getPeer() + ")");
 	}
 
 	@Override
 	public void outboundConnectionDown(Connection<RelayMessage> connection, Throwable cause) {
+		wireVersions.remove(connection);
+		egress.remove(connection);
 		Host clientSocket = null;
 		try {
 			clientSocket = connection.getPeerAttributes().getHost(LISTEN_ADDRESS_ATTRIBUTE);
@@ -274,10 +463,25 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		if (clientSocket == null) {
 			logger.fatal("Outbound connection without LISTEN_ADDRESS: " + connection.getPeer() + " " + connection.getPeerAttributes());
 		} else {
+			ConnectionStripes stripes = otherRelayConnections.get(connection.getPeer());
+			if (stripes != null)
+				stripes.remove(connection);
+			links.forgetDestination(connection);
 			logger.fatal("Relay " + clientSocket + " disconnected unexpectedly! cause:" + ((cause == null) ? "" : " " + Arrays.toString(cause.getStackTrace())));
 		}
 	}
 
+	/**
+	 * Peers that do not advertise a wire version only understand v1 framing.
+	 */
+	private void negotiateWireVersion(Connection<RelayMessage> connection) {
+		Attributes peerAttributes = connection.getPeerAttributes();
+		Short peerVersion = peerAttributes == null ? null : peerAttributes.getShort(WIRE_VERSION_ATTRIBUTE);
+		short version = peerVersion == null ? RelayMessageSerializer.V1 : (short) Math.min(peerVersion, RelayMessageSerializer.CURRENT_VERSION);
+		wireVersions.put(connection, version);
+		logger.debug("Using wire version {} with {}", version, connection.getPeer());
+	}
+
 	@Override
 	public void outboundConnectionFailed(Connection<RelayMessage> connection, Throwable cause) {
 		outboundConnectionDown(connection, cause);
@@ -303,17 +507,29 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 
 		RelayMessage.Type type = msg.getType();
 
-		logger.trace("Received {} message {} to {} from {}", type.name(), msg.getSeqN(), to, from);
+		if (logger.isTraceEnabled())
+			logger.trace("Received {} message {} to {} from {}", type.name(), msg.getSeqN(), to, from);
+
+		if (type == RelayMessage.Type.BATCH) {
+			RelayBatchMessage batch = (RelayBatchMessage) msg;
+			List<RelayMessage> messages = batch.getMessages();
+			for (int i = 0; i < messages.size(); i++)
+				deliverMessage(messages.get(i), connection);
+			batch.recycle();
+			return;
+		}
+		metrics.received(msg);
 
-		if (disconnectedPeers.contains(to)) {
+		if (isDisconnected(to)) {
 			if (type == RelayMessage.Type.CONN_OPEN)
 				sendMessageWithDelay(new RelayConnectionFailMessage(to, from, new IOException("Peer " + to + " is disconnected.")));
+			msg.release();
 			return;
 		}
 
 		switch (type) {
 			case APP_MSG:
-				handleAppMessage((RelayAppMessage) msg);
+				handleAppMessage((RelayAppMessage) msg, connection);
 				break;
 			case CONN_OPEN:
 				handleConnectionRequest((RelayConnectionOpenMessage) msg);
@@ -336,12 +552,15 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 
 		logger.debug("Connection close message to {} from {}", to, from);
 
-		if (!peerToPeerConnections.remove(new ImmutablePair<>(from, to))) {
+		Link link = links.get(from, to);
+		if (link == null || !link.close()) {
 			logger.debug("Connection close with no out connection from {} to {}", from, to);
 			return;
 		}
+		if (!link.isUsable())
+			links.remove(link);
 
-		sendMessageWithDelay(msg);
+		sendMessageWithDelay(msg, link);
 	}
 
 	private void handleConnectionAccept(RelayConnectionAcceptMessage msg) {
@@ -350,26 +569,36 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 
 		logger.debug("Connection accepted message to {} from {}", to, from);
 
-		if (!peerToPeerConnections.contains(new ImmutablePair<>(to, from))) {
+		Link link = links.get(from, to);
+		if (link == null || !link.getReverse().accept()) {
 			logger.debug("Connection accept with no out connection from {} to {}", to, from);
 			return;
 		}
 
-		sendMessageWithDelay(msg);
+		sendMessageWithDelay(msg, link);
 	}
 
-	private void handleAppMessage(RelayAppMessage msg) {
+	private void handleAppMessage(RelayAppMessage msg, Connection<RelayMessage> connection) {
 		Host to = msg.getTo();
 		Host from = msg.getFrom();
 
 		logger.debug("Message to {} from {}", to, from);
 
-		if (!peerToPeerConnections.contains(new ImmutablePair<>(from, to)) && !peerToPeerConnections.contains(new ImmutablePair<>(to, from))) {
+		Link link = links.get(from, to);
+		if (link == null || !link.isUsable()) {
 			logger.debug("No connection between {} and {}", from, to);
+			msg.release();
 			return;
 		}
 
-		sendMessageWithDelay(msg);
+		// forwarded by another relay to one of our peers
+		if (backpressure != null && !link.isFromLocal() && link.isToLocal()) {
+			Connection<RelayMessage> destination = getDestination(link);
+			if (destination != null)
+				backpressure.forwarding(connection, destination);
+		}
+
+		sendMessageWithDelay(msg, link);
 	}
 
 	private void handleConnectionRequest(RelayConnectionOpenMessage msg) {
@@ -378,14 +607,13 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 
 		logger.debug("Connection request to {} from {}", to, from);
 
-		Pair<Host, Host> pair = new ImmutablePair<>(from, to);
-		if (peerToPeerConnections.contains(new ImmutablePair<>(from, to))) {
+		Link link = links.getOrCreate(from, to);
+		if (!link.open()) {
 			logger.debug("Connection request when already existing connection: {}-{}", from, to);
 			return;
 		}
 
-		sendMessageWithDelay(msg);
-		peerToPeerConnections.add(pair);
+		sendMessageWithDelay(msg, link);
 	}
 
 	@Override
@@ -394,40 +622,178 @@ public class Relay implements InConnListener<RelayMessage>, OutConnListener<Rela
 		return channel != null && channel.equals(EMULATED_MAGIC_NUMBER);
 	}
 
+	protected void initLink(Link link) {
+		link.setIndices(peerIndex.indexOf(link.getFrom()), peerIndex.indexOf(link.getTo()));
+		link.setLatency(getLatency(link.getFrom(), link.getTo()));
+		link.setDelayLine(new DelayLine(scheduler));
+	}
+
+	protected Connection<RelayMessage> getDestination(Link link) {
+		Connection<RelayMessage> con = link.getDestination();
+		if (con == null) {
+			Host receiver = link.getTo();
+			ConnectionStripes stripes = link.isToLocal() ? peerToRelayConnections.get(receiver) : otherRelayConnections.get(assignedRelayPerPeer.get(receiver));
+			con = stripes == null ? null : stripes.get(link.getFrom(), receiver);
+			link.setDestination(con);
+			// the stripe may have gone down meanwhile, too early to forget this link
+			if (con != null && !stripes.contains(con))
+				link.setDestination(null);
+		}
+		return con;
+	}
+
 	protected void sendMessageWithDelay(RelayMessage msg) {
-		Host receiver = msg.getTo();
+		Link link = links.get(msg.getFrom(), msg.getTo());
+		sendMessageWithDelay(msg, link != null ? link : links.getOrCreate(msg.getFrom(), msg.getTo()));
+	}
 
-		Connection<RelayMessage> con;
-		if ((con = peerToRelayConnections.get(receiver)) != null) {
-			float delay = calculateDelay(msg);
-			scheduler.addEvent(new SendMessageEvent(msg, () -> sendMessage(msg, con), delay));
+	protected void sendMessageWithDelay(RelayMessage msg, Link link) {
+		Connection<RelayMessage> con = getDestination(link);
+		if (link.isToLocal()) {
+			if (!hold(msg))
+				return;
+			long deadline = deadline(calculateDelay(msg, getLatency(link)));
+			link.getDelayLine().add(delayedSends.get().set(msg, link, con, deadline));
 		} else {
-			sendMessage(msg, otherRelayConnections.get(assignedRelayPerPeer.get(receiver)));
+			sendMessage(msg, con);
 		}
 	}
 
-	public float calculateDelay(RelayMessage msg) {
-		Host sender = msg.getFrom();
-		Host receiver = msg.getTo();
+	/**
+	 * Accounts for a message the relay will hold until it is due, against the memory budget and the backpressure
+	 * watermarks of its sender. Application messages that do not fit in the memory budget are dropped; control
+	 * messages are always held.
+	 *
+	 * @return false if the message was dropped
+	 */
+	protected boolean hold(RelayMessage msg) {
+		int size = BandwidthBucket.sizeOf(msg);
+		if (msg.getType() != RelayMessage.Type.APP_MSG) {
+			memoryBudget.acquire(size);
+		} else if (!memoryBudget.tryAcquire(size)) {
+			metrics.droppedOverBudget();
+			msg.release();
+			return false;
+		}
+		if (backpressure != null)
+			backpressure.hold(peerIndex.indexOf(msg.getFrom()), size);
+		return true;
+	}
+
+	/**
+	 * Stops accounting for a held message, once it leaves.
+	 */
+	protected void unhold(RelayMessage msg) {
+		int size = BandwidthBucket.sizeOf(msg);
+		memoryBudget.release(size);
+		if (backpressure != null)
+			backpressure.release(peerIndex.indexOf(msg.getFrom()), size);
+	}
+
+	/**
+	 * Drops a held message for which there is no room.
+	 */
+	protected void dropped(RelayMessage msg, DropListener.Reason reason) {
+		unhold(msg);
+		metrics.dropped(reason);
+		logger.debug("Dropped message {} from {} to {}: {}", msg.getSeqN(), msg.getFrom(), msg.getTo(), reason);
+		msg.release();
+	}
+
+	/**
+	 * @return latency of the link in the current epoch of the latency trace, if there is one
+	 */
+	protected float getLatency(Link link) {
+		if (latencyTrace == null)
+			return link.getLatency();
+		return latencyTrace.getLatency(link.getFromIndex(), link.getToIndex(), link.getLatency());
+	}
 
-		Float latency = latencyMatrix.getProperty(sender, receiver);
-		if (latency == null) {
+	private float getLatency(Host sender, Host receiver) {
+		float latency = latencyModel.getLatency(sender, receiver);
+		if (Float.isNaN(latency)) {
 			logger.error("Null latency: {}-{}", sender, receiver);
 			latency = DEFAULT_LATENCY;
 		}
+		return latency;
+	}
 
+	public float calculateDelay(RelayMessage msg) {
+		float latency = getLatency(msg.getFrom(), msg.getTo());
+		if (latencyTrace != null)
+			latency = latencyTrace.getLatency(peerIndex.indexOf(msg.getFrom()), peerIndex.indexOf(msg.getTo()), latency);
+		return calculateDelay(msg, latency);
+	}
+
+	public float calculateDelay(RelayMessage msg, float latency) {
 		return latency - (System.currentTimeMillis() - msg.getSentTime());
 	}
 
+	/**
+	 * @param delay delay in milliseconds, as given by {@link #calculateDelay(RelayMessage, float)}
+	 * @return time at which a message with that delay should leave, in {@link System#nanoTime()} units
+	 */
+	protected static long deadline(float delay) {
+		return System.nanoTime() + (long) (delay * 1_000_000D);
+	}
+
+	// spares hashing the host, which allocates, while every peer is connected
+	private boolean isDisconnected(Host peer) {
+		return !disconnectedPeers.isEmpty() && disconnectedPeers.contains(peer);
+	}
+
 	protected void sendMessage(RelayMessage msg, Connection<RelayMessage> con) {
-		if (!disconnectedPeers.contains(msg.getTo())) {
+		if (!isDisconnected(msg.getTo())) {
 			if (con == null) {
 				logger.error("Null connection with msg {}", msg);
+				msg.release();
 			} else {
-				con.sendMessage(msg);
-				logger.trace("Sending {} message {} to {} from {}", msg.getType().name(), msg.getSeqN(), msg.getTo(), msg.getFrom());
+				msg.setWireVersion(wireVersions.getOrDefault(con, RelayMessageSerializer.V1));
+				metrics.sent(msg);
+				if (logger.isTraceEnabled())
+					logger.trace("Sending {} message {} to {} from {}", msg.getType().name(), msg.getSeqN(), msg.getTo(), msg.getFrom());
+				egress.send(msg, con);
 			}
+		} else {
+			msg.release();
 		}
 	}
 
+	/**
+	 * Send of a message to a local peer once it is due, recycled as it fires.
+	 */
+	private final class DelayedSend implements Runnable {
+
+		private final ObjectPool.Handle<DelayedSend> handle;
+		private final SendMessageEvent event;
+		private Link link;
+		private Connection<RelayMessage> con;
+
+		DelayedSend(ObjectPool.Handle<DelayedSend> handle) {
+			this.handle = handle;
+			this.event = SendMessageEvent.reusable(this);
+		}
+
+		SendMessageEvent set(RelayMessage msg, Link link, Connection<RelayMessage> con, long deadline) {
+			this.link = link;
+			this.con = con;
+			return event.reset(msg, deadline);
+		}
+
+		@Override
+		public void run() {
+			RelayMessage msg = event.getMsg();
+			long deadline = event.getDeadline();
+			Link link = this.link;
+			Connection<RelayMessage> con = this.con;
+			event.reset(null, 0);
+			this.link = null;
+			this.con = null;
+			handle.recycle(this);
+
+			accuracy.record(link, deadline);
+			unhold(msg);
+			sendMessage(msg, con);
+		}
+	}
 }
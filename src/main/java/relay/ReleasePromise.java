@@ -0,0 +1,42 @@
+package relay;
+
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.Connection;
+import relay.messaging.RelayMessage;
+
+/**
+ * Releases a message handed to {@link Connection#sendMessage(Object, Promise)} once the network layer completes the
+ * write, successfully or not. Serializers leave the messages they frame untouched, so the relay owns a message until
+ * its write completes.
+ * <p>
+ * A plain promise of the connection's loop, so the network layer and the handlers of the pipeline may listen to it,
+ * wait on it or complete it more than once like any other. Writes of batched messages share one promise per batch.
+ */
+final class ReleasePromise extends DefaultPromise<Void> {
+
+	private static final Logger logger = LogManager.getLogger(ReleasePromise.class);
+
+	private static final GenericFutureListener<ReleasePromise> RELEASE = ReleasePromise::release;
+
+	private final RelayMessage msg;
+
+	/**
+	 * @param executor loop that notifies the listeners of the promise, that of the connection
+	 */
+	ReleasePromise(EventExecutor executor, RelayMessage msg) {
+		super(executor);
+		this.msg = msg;
+		addListener(RELEASE);
+	}
+
+	private void release() {
+		if (!isSuccess() && logger.isDebugEnabled())
+			logger.debug("Failed to send {}: {}", msg, cause() == null ? "cancelled" : cause().getMessage());
+		msg.release();
+	}
+}
@@ -0,0 +1,233 @@
+package relay.bandwidth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import relay.bandwidth.PacketQueue.Packet;
+import relay.latency.Scheduler;
+import relay.latency.SendMessageEvent;
+import relay.messaging.RelayMessage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Shapes the traffic of several children, such as the hosts of a site or the sites of a region, to the rate of the
+ * link they share, like an inner class of a hierarchical token bucket.
+ * <p>
+ * Each child has a FIFO of its own. While the shared link is idle a child may use all of it, up to its own rate,
+ * enforced by its own shaper ahead of this one. Once the link is congested, backlogged children are served by deficit
+ * round robin with a quantum proportional to their rate, so each gets a share of the link in proportion to its rate
+ * and a busy child cannot starve the others. Departures use a {@link VirtualClock}, and only the next one is handed
+ * to the shared {@link Scheduler}.
+ * <p>
+ * Once the queues hold as much as {@link QueueLimits} allow in total, application messages are dropped by the same
+ * policies as in a {@link BandwidthBucket}, applied to all children together: {@link QueueLimits.Policy#DROP_HEAD}
+ * drops the oldest message of any child, and {@link QueueLimits.Policy#RED} follows the average fill of the link.
+ */
+public class AggregateBucket {
+
+	private static final Logger logger = LogManager.getLogger(AggregateBucket.class);
+
+	// a child gets about one millisecond worth of its rate per round, and at least one full frame
+	private static final int MIN_QUANTUM = 1500;
+	private static final double QUANTUM_SECONDS = 0.001;
+
+	private final Scheduler scheduler;
+	private final QueueLimits limits;
+	private final DropListener dropListener;
+	private final SendMessageEvent drainEvent;
+
+	// guarded by this
+	private final VirtualClock clock;
+	private final ArrayDeque<Child> active;
+	private int queued;
+	private long queuedBytes;
+	private long arrivals;
+	private double averageFill;
+	private boolean drainScheduled;
+
+	/**
+	 * @param bytesPerSecond rate of the shared link, in bytes per second
+	 * @param burstBytes     bytes that may leave back to back, 0 for one second worth of traffic
+	 */
+	public AggregateBucket(Scheduler scheduler, double bytesPerSecond, long burstBytes, QueueLimits limits, DropListener dropListener) {
+		this.scheduler = scheduler;
+		this.clock = new VirtualClock(bytesPerSecond, burstBytes);
+		this.limits = limits;
+		this.dropListener = dropListener;
+		this.drainEvent = SendMessageEvent.reusable(this::drain);
+		this.active = new ArrayDeque<>();
+	}
+
+	/**
+	 * @param bytesPerSecond rate of the child, which sets its share of the link under congestion
+	 * @return shaper of the traffic of the child through this link
+	 */
+	public Shaper addChild(double bytesPerSecond) {
+		return new Child(Math.max(MIN_QUANTUM, (int) Math.min(Integer.MAX_VALUE, bytesPerSecond * QUANTUM_SECONDS)));
+	}
+
+	private synchronized void enqueue(Child child, RelayMessage msg, Runnable runnable) {
+		int size = BandwidthBucket.sizeOf(msg);
+		long now = System.nanoTime();
+		if (active.isEmpty() && clock.depart(size, now)) {
+			runnable.run();
+			return;
+		}
+
+		DropListener.Reason dropped = msg.getType() == RelayMessage.Type.APP_MSG ? admit(size) : null;
+		if (dropped != null) {
+			dropListener.dropped(msg, dropped);
+			return;
+		}
+
+		if (child.queue.isEmpty()) {
+			child.deficit = 0;
+			active.add(child);
+		}
+		child.queue.add(msg, runnable, size).order = arrivals++;
+		queued++;
+		queuedBytes += size;
+		scheduleDrain(now);
+	}
+
+	/**
+	 * Makes room for an application message according to the drop policy, over the queues of all children.
+	 *
+	 * @return why the arriving message must be dropped instead, null if it fits
+	 */
+	private DropListener.Reason admit(int size) {
+		if (!limits.isBounded())
+			return null;
+
+		if (limits.getPolicy() == QueueLimits.Policy.RED) {
+			averageFill += QueueLimits.RED_WEIGHT * (limits.fill(queued, queuedBytes) - averageFill);
+			if (averageFill > QueueLimits.RED_MIN_FILL) {
+				double probability = QueueLimits.RED_MAX_PROBABILITY * (averageFill - QueueLimits.RED_MIN_FILL) / (1 - QueueLimits.RED_MIN_FILL);
+				if (ThreadLocalRandom.current().nextDouble() < probability)
+					return DropListener.Reason.EARLY;
+			}
+		}
+
+		while (!limits.fits(queued + 1, queuedBytes + size)) {
+			if (limits.getPolicy() != QueueLimits.Policy.DROP_HEAD || !dropOldest())
+				return DropListener.Reason.QUEUE_FULL;
+		}
+		return null;
+	}
+
+	/**
+	 * Drops the application message that arrived first among those of every child.
+	 */
+	private boolean dropOldest() {
+		Child oldest = null;
+		long oldestOrder = Long.MAX_VALUE;
+		// a full turn of the round robin leaves it as it was, without the iterator a for-each allocates
+		for (int i = active.size(); i > 0; i--) {
+			Child child = active.poll();
+			active.add(child);
+			Packet packet = child.queue.peekOldestApp();
+			if (packet != null && packet.order < oldestOrder) {
+				oldest = child;
+				oldestOrder = packet.order;
+			}
+		}
+		if (oldest == null)
+			return false;
+
+		Packet packet = oldest.queue.pollOldestApp();
+		queued--;
+		queuedBytes -= packet.size;
+		if (oldest.queue.isEmpty())
+			active.remove(oldest);
+		RelayMessage msg = packet.msg;
+		packet.recycle();
+		dropListener.dropped(msg, DropListener.Reason.QUEUE_FULL);
+		return true;
+	}
+
+	/**
+	 * Moves the round robin on until the child at its front may send its head.
+	 */
+	private Child next() {
+		while (true) {
+			Child child = active.peek();
+			if (child == null || child.deficit >= child.queue.peek().size)
+				return child;
+			child.deficit += child.quantum;
+			active.add(active.poll());
+		}
+	}
+
+	private void scheduleDrain(long now) {
+		Child child;
+		if (drainScheduled || (child = next()) == null)
+			return;
+		Packet head = child.queue.peek();
+		long departure = clock.departure(head.size, now);
+		drainScheduled = true;
+		scheduler.addEvent(drainEvent.reset(head.msg, departure));
+		if (logger.isTraceEnabled())
+			logger.trace("Shaping {} queued messages of {} children, next departure in {}us", queued, active.size(), (departure - now) / 1000);
+	}
+
+	private synchronized void drain() {
+		drainScheduled = false;
+		long now = System.nanoTime();
+		Child child;
+		while ((child = next()) != null && clock.depart(child.queue.peek().size, now)) {
+			Packet head = child.queue.poll();
+			child.deficit -= head.size;
+			queued--;
+			queuedBytes -= head.size;
+			if (child.queue.isEmpty())
+				active.poll();
+			RelayMessage msg = head.msg;
+			Runnable runnable = head.runnable;
+			head.recycle();
+			try {
+				runnable.run();
+			} catch (Throwable t) {
+				logger.error("Error sending shaped message {}: {}", msg, t.getMessage());
+			}
+		}
+		scheduleDrain(now);
+	}
+
+	public synchronized int getQueued() {
+		return queued;
+	}
+
+	public synchronized long getBacklogNanos() {
+		return clock.backlogNanos(queuedBytes, System.nanoTime());
+	}
+
+	private final class Child implements Shaper {
+		final int quantum;
+		// guarded by the bucket
+		final PacketQueue queue;
+		long deficit;
+
+		Child(int quantum) {
+			this.quantum = quantum;
+			this.queue = new PacketQueue();
+		}
+
+		@Override
+		public void enqueue(RelayMessage msg, Runnable runnable) {
+			AggregateBucket.this.enqueue(this, msg, runnable);
+		}
+
+		@Override
+		public int getQueued() {
+			synchronized (AggregateBucket.this) {
+				return queue.size();
+			}
+		}
+
+		@Override
+		public long getBacklogNanos() {
+			return AggregateBucket.this.getBacklogNanos();
+		}
+	}
+}
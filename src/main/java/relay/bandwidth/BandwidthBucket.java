@@ -1,115 +1,184 @@
 package relay.bandwidth;
 
-import io.netty.channel.DefaultEventLoop;
-import io.netty.channel.EventLoop;
-import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import relay.bandwidth.PacketQueue.Packet;
 import relay.bandwidth.units.BitUnit;
 import relay.bandwidth.units.ByteUnit;
+import relay.latency.Scheduler;
+import relay.latency.SendMessageEvent;
 import relay.messaging.RelayAppMessage;
 import relay.messaging.RelayMessage;
 
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class BandwidthBucket {
+/**
+ * Shapes traffic with a {@link VirtualClock} instead of a periodically drained bucket.
+ * <p>
+ * Packets that cannot leave right away wait in a FIFO queue, bounded by {@link QueueLimits}, whose head is handed to
+ * the shared {@link Scheduler} for its departure.
+ */
+public class BandwidthBucket implements Shaper {
 
 	private static final Logger logger = LogManager.getLogger(BandwidthBucket.class);
 
 	private static final short CONTROL_PACKET_SIZE = 20;
-	private static final int FREQUENCY = 1;
 	private static final ByteUnit BUCKET_UNIT = ByteUnit.BYTE;
 
-	private final Timer timer;
-	private final Queue<MutablePair<Double, Runnable>> queue;
-	private double capacity;
-	private double currentSize;
-	private final EventLoop loop;
-
-	private BandwidthBucket() {
-		this.currentSize = 0;
-		this.queue = new LinkedList<>();
-		this.timer = new Timer();
-		this.loop = new DefaultEventLoop();
-		startTimer();
+	private final Scheduler scheduler;
+	private final double bytesPerSecond;
+	private final QueueLimits limits;
+	private final DropListener dropListener;
+	private final SendMessageEvent drainEvent;
+
+	// guarded by this
+	private final VirtualClock clock;
+	private final PacketQueue queue;
+	private long queuedBytes;
+	private double averageFill;
+	private boolean drainScheduled;
+
+	/**
+	 * @param bytesPerSecond bandwidth in bytes per second
+	 * @param burstBytes     bytes that may leave back to back, 0 for one second worth of traffic
+	 */
+	public BandwidthBucket(Scheduler scheduler, double bytesPerSecond, long burstBytes, QueueLimits limits, DropListener dropListener) {
+		this.scheduler = scheduler;
+		this.bytesPerSecond = bytesPerSecond;
+		this.clock = new VirtualClock(bytesPerSecond, burstBytes);
+		this.limits = limits;
+		this.dropListener = dropListener;
+		this.queue = new PacketQueue();
+		this.drainEvent = SendMessageEvent.reusable(this::drain);
 	}
 
-	public BandwidthBucket(double capacity, ByteUnit unit) {
-		this();
-		this.capacity = BUCKET_UNIT.convert(capacity, unit);
+	public BandwidthBucket(Scheduler scheduler, double capacity, ByteUnit unit) {
+		this(scheduler, capacity, unit, QueueLimits.UNBOUNDED, DropListener.RELEASE);
 	}
 
-	public BandwidthBucket(double capacity, BitUnit unit) {
-		this();
-		this.capacity = BUCKET_UNIT.convert(capacity, unit);
+	public BandwidthBucket(Scheduler scheduler, double capacity, BitUnit unit) {
+		this(scheduler, capacity, unit, QueueLimits.UNBOUNDED, DropListener.RELEASE);
 	}
 
-	private void addNormalPacket(int contentSize, Runnable runnable) {
-		addToBucket(CONTROL_PACKET_SIZE + contentSize, runnable);
+	public BandwidthBucket(Scheduler scheduler, double capacity, ByteUnit unit, QueueLimits limits, DropListener dropListener) {
+		this(scheduler, BUCKET_UNIT.convert(capacity, unit), 0, limits, dropListener);
 	}
 
-	private void addControlPacket(Runnable runnable) {
-		addToBucket(CONTROL_PACKET_SIZE, runnable);
+	public BandwidthBucket(Scheduler scheduler, double capacity, BitUnit unit, QueueLimits limits, DropListener dropListener) {
+		this(scheduler, BUCKET_UNIT.convert(capacity, unit), 0, limits, dropListener);
 	}
 
-	private void addToBucket(double amount, Runnable runnable) {
-		if (amount <= 0)
+
+	/**
+	 * @return bytes the message takes on the emulated link
+	 */
+	public static int sizeOf(RelayMessage msg) {
+		if (msg.getType() == RelayMessage.Type.APP_MSG)
+			return CONTROL_PACKET_SIZE + ((RelayAppMessage) msg).getPayloadSize();
+		return CONTROL_PACKET_SIZE;
+	}
+
+	@Override
+	public synchronized void enqueue(RelayMessage msg, Runnable runnable) {
+		int size = sizeOf(msg);
+		long now = System.nanoTime();
+		if (queue.isEmpty() && clock.depart(size, now)) {
+			runnable.run();
 			return;
+		}
 
-		if (isFull()) {
-			queue.add(new MutablePair<>(amount, runnable));
-			logger.trace("Queue done. {}/{}, {}", currentSize, capacity, queue.size());
-		} else {
-			currentSize += amount;
-			if (isFull()) {
-				queue.add(new MutablePair<>(0D, runnable));
-				logger.trace("Queue done. {}/{}, {}", currentSize, capacity, queue.size());
-			} else
-				loop.submit(runnable);
+		DropListener.Reason dropped = msg.getType() == RelayMessage.Type.APP_MSG ? admit(size) : null;
+		if (dropped != null) {
+			dropListener.dropped(msg, dropped);
+			return;
 		}
 
+		queue.add(msg, runnable, size);
+		queuedBytes += size;
+		scheduleDrain(now);
 	}
 
-	private void startTimer() {
-		timer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				currentSize = Math.max(currentSize - capacity * ((float) FREQUENCY / 1000), 0);
-				while (!isFull() && !queue.isEmpty()) {
-					MutablePair<Double, Runnable> p = queue.peek();
-					if (p != null) {
-						currentSize += p.getLeft();
-						if (isFull())
-							p.setLeft(0D);
-						else {
-							queue.remove();
-							logger.trace("Dequeue done. {}/{}, {}", currentSize, capacity, queue.size());
-							loop.submit(p.getRight());
-						}
-					}
-				}
+	/**
+	 * Makes room for an application message according to the drop policy.
+	 *
+	 * @return why the arriving message must be dropped instead, null if it fits
+	 */
+	private DropListener.Reason admit(int size) {
+		if (!limits.isBounded())
+			return null;
+
+		if (limits.getPolicy() == QueueLimits.Policy.RED) {
+			averageFill += QueueLimits.RED_WEIGHT * (limits.fill(queue.size(), queuedBytes) - averageFill);
+			if (averageFill > QueueLimits.RED_MIN_FILL) {
+				double probability = QueueLimits.RED_MAX_PROBABILITY * (averageFill - QueueLimits.RED_MIN_FILL) / (1 - QueueLimits.RED_MIN_FILL);
+				if (ThreadLocalRandom.current().nextDouble() < probability)
+					return DropListener.Reason.EARLY;
 			}
-		}, FREQUENCY, FREQUENCY);
+		}
+
+		while (!limits.fits(queue.size() + 1, queuedBytes + size)) {
+			if (limits.getPolicy() != QueueLimits.Policy.DROP_HEAD || !dropOldest())
+				return DropListener.Reason.QUEUE_FULL;
+		}
+		return null;
+	}
+
+	private boolean dropOldest() {
+		Packet packet = queue.pollOldestApp();
+		if (packet == null)
+			return false;
+		queuedBytes -= packet.size;
+		RelayMessage msg = packet.msg;
+		packet.recycle();
+		dropListener.dropped(msg, DropListener.Reason.QUEUE_FULL);
+		return true;
 	}
 
-	private boolean isFull() {
-		return currentSize > capacity;
+	private void scheduleDrain(long now) {
+		if (drainScheduled || queue.isEmpty())
+			return;
+		Packet head = queue.peek();
+		long departure = clock.departure(head.size, now);
+		drainScheduled = true;
+		scheduler.addEvent(drainEvent.reset(head.msg, departure));
+		if (logger.isTraceEnabled())
+			logger.trace("Shaping {} queued messages, next departure in {}us", queue.size(), (departure - now) / 1000);
 	}
 
-	public void enqueue(RelayMessage msg, Runnable runnable) {
-		switch (msg.getType()) {
-			case APP_MSG:
-				addNormalPacket(((RelayAppMessage) msg).getPayload().length, runnable);
-				break;
-			case CONN_OPEN:
-			case CONN_CLOSE:
-			case CONN_ACCEPT:
-			case CONN_FAIL:
-			case PEER_DISCONNECTED:
-				addControlPacket(runnable);
+	private synchronized void drain() {
+		drainScheduled = false;
+		long now = System.nanoTime();
+		Packet head;
+		while ((head = queue.peek()) != null && clock.depart(head.size, now)) {
+			queue.poll();
+			queuedBytes -= head.size;
+			RelayMessage msg = head.msg;
+			Runnable runnable = head.runnable;
+			head.recycle();
+			try {
+				runnable.run();
+			} catch (Throwable t) {
+				logger.error("Error sending shaped message {}: {}", msg, t.getMessage());
+			}
 		}
+		scheduleDrain(now);
+	}
+
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	@Override
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	@Override
+	public synchronized long getBacklogNanos() {
+		return clock.backlogNanos(queuedBytes, System.nanoTime());
 	}
 }
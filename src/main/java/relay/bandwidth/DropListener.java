@@ -0,0 +1,25 @@
+package relay.bandwidth;
+
+import relay.messaging.RelayMessage;
+
+/**
+ * Told of every message a {@link BandwidthBucket} drops, and responsible for releasing it.
+ */
+@FunctionalInterface
+public interface DropListener {
+
+	DropListener RELEASE = (msg, reason) -> msg.release();
+
+	enum Reason {
+		/**
+		 * The queue was full.
+		 */
+		QUEUE_FULL,
+		/**
+		 * Dropped early by {@link QueueLimits.Policy#RED}.
+		 */
+		EARLY
+	}
+
+	void dropped(RelayMessage msg, Reason reason);
+}
@@ -5,53 +5,233 @@ import org.apache.commons.lang3.tuple.Pair;
 import pt.unl.fct.di.novasys.network.data.Host;
 import relay.bandwidth.units.BitUnit;
 import relay.bandwidth.units.ByteUnit;
+import relay.latency.Scheduler;
+import relay.util.ConfigUtils;
 import relay.util.HostPropertyList;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Bandwidth of every host, one {@code <in> <out> [site]} line per host in host list order, optionally followed by
+ * the links shared by the hosts of a site and by the sites of a region, in sections as read by
+ * {@link ConfigUtils#readSections}:
+ * <ul>
+ *     <li>{@code [sites]}: one {@code <in> <out> [region]} line per site;</li>
+ *     <li>{@code [regions]}: one {@code <in> <out>} line per region.</li>
+ * </ul>
+ * Bandwidths are a quantity followed by its unit, such as {@code 10mbps} or {@code 1.5MB}, optionally followed by the
+ * burst in bytes after a slash, such as {@code 1gbps/256KB}. A shared link may be left uncapped in one direction
+ * with {@code -}.
+ * <p>
+ * Traffic leaving a host goes through its own {@link BandwidthBucket} and then through the {@link AggregateBucket}s of
+ * its site and of its region; arriving traffic goes through them in the opposite order. Every bucket is driven by the
+ * one {@link Scheduler} of the relay.
+ */
 public class HostBandwidthList extends HostPropertyList<Pair<BandwidthBucket, BandwidthBucket>> {
 
+	static final String SITES_SECTION = "sites";
+	static final String REGIONS_SECTION = "regions";
+	static final String UNCAPPED = "-";
+
 	private static final Pattern PATTERN = Pattern.compile("(\\d+([.]\\d*)?|[.]\\d+)(.+)");
 
-	public HostBandwidthList(List<Host> hostList, InputStream bandwidthConfig) throws IOException {
-		super(hostList, bandwidthConfig);
+	private final Scheduler scheduler;
+	private final QueueLimits limits;
+	private final DropListener dropListener;
+	// filled while parsing the host lines, in host list order
+	private final List<Integer> hostSites;
+	private final Map<Host, Shaper> inShapers;
+	private final Map<Host, Shaper> outShapers;
+	private final List<AggregateBucket> sharedIn;
+	private final List<AggregateBucket> sharedOut;
+
+	public HostBandwidthList(List<Host> hostList, InputStream bandwidthConfig, Scheduler scheduler) throws IOException {
+		this(hostList, bandwidthConfig, scheduler, QueueLimits.UNBOUNDED, DropListener.RELEASE);
 	}
 
-	private static BandwidthBucket parseBandwidth(Matcher match) {
-		double bandwidth;
+	/**
+	 * @param limits       limits of the queue of every bucket
+	 * @param dropListener told of the messages any bucket drops
+	 */
+	public HostBandwidthList(List<Host> hostList, InputStream bandwidthConfig, Scheduler scheduler, QueueLimits limits, DropListener dropListener) throws IOException {
+		super();
+		this.scheduler = scheduler;
+		this.limits = limits;
+		this.dropListener = dropListener;
+		this.hostSites = new ArrayList<>(hostList.size());
+		this.inShapers = new HashMap<>(hostList.size());
+		this.outShapers = new HashMap<>(hostList.size());
+		this.sharedIn = new ArrayList<>();
+		this.sharedOut = new ArrayList<>();
+
+		List<String> lines = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(bandwidthConfig));
+		String line;
+		while ((line = reader.readLine()) != null)
+			lines.add(line);
+		int hostLines = 0;
+		while (hostLines < lines.size() && !lines.get(hostLines).trim().startsWith("["))
+			hostLines++;
+
+		readConfig(hostList, toStream(lines.subList(0, hostLines)));
+		Map<String, List<String[]>> sections = ConfigUtils.readSections(toStream(lines.subList(hostLines, lines.size())));
+		buildHierarchy(hostList, sections);
+	}
+
+	private static InputStream toStream(List<String> lines) {
+		return new ByteArrayInputStream(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void buildHierarchy(List<Host> hostList, Map<String, List<String[]>> sections) throws IOException {
+		List<String[]> regions = sections.getOrDefault(REGIONS_SECTION, Collections.emptyList());
+		Rate[][] regionRates = new Rate[regions.size()][];
+		AggregateBucket[][] regionBuckets = new AggregateBucket[regions.size()][];
+		for (int r = 0; r < regions.size(); r++) {
+			regionRates[r] = parseLink(regions.get(r), "Region " + r);
+			regionBuckets[r] = shared(regionRates[r]);
+		}
+
+		List<String[]> sites = sections.getOrDefault(SITES_SECTION, Collections.emptyList());
+		Rate[][] siteRates = new Rate[sites.size()][];
+		AggregateBucket[][] siteBuckets = new AggregateBucket[sites.size()][];
+		// the share of each site in its region
+		Shaper[][] siteInRegion = new Shaper[sites.size()][2];
+		for (int s = 0; s < sites.size(); s++) {
+			String[] site = sites.get(s);
+			siteRates[s] = parseLink(site, "Site " + s);
+			siteBuckets[s] = shared(siteRates[s]);
+			if (site.length < 3)
+				continue;
+			int region = Integer.parseInt(site[2]);
+			if (region < 0 || region >= regions.size())
+				throw new IOException("Site " + s + " in unknown region " + region);
+			for (int d = 0; d < 2; d++) {
+				if (regionBuckets[region][d] != null) {
+					Rate share = siteRates[s][d] != null ? siteRates[s][d] : regionRates[region][d];
+					siteInRegion[s][d] = regionBuckets[region][d].addChild(share.bytesPerSecond);
+				}
+			}
+		}
+
+		for (int i = 0; i < hostList.size(); i++) {
+			Host host = hostList.get(i);
+			Pair<BandwidthBucket, BandwidthBucket> buckets = propertyList.get(host);
+			Shaper in = buckets.getLeft();
+			Shaper out = buckets.getRight();
+			int site = hostSites.get(i);
+			if (site >= sites.size())
+				throw new IOException("Host " + i + " in unknown site " + site);
+			if (site >= 0) {
+				if (siteBuckets[site][0] != null)
+					in = siteBuckets[site][0].addChild(buckets.getLeft().getBytesPerSecond()).then(in);
+				if (siteInRegion[site][0] != null)
+					in = siteInRegion[site][0].then(in);
+				if (siteBuckets[site][1] != null)
+					out = out.then(siteBuckets[site][1].addChild(buckets.getRight().getBytesPerSecond()));
+				if (siteInRegion[site][1] != null)
+					out = out.then(siteInRegion[site][1]);
+			}
+			inShapers.put(host, in);
+			outShapers.put(host, out);
+		}
+	}
+
+	/**
+	 * @return the in and out rates of a shared link, null where uncapped
+	 */
+	private static Rate[] parseLink(String[] link, String name) throws IOException {
+		if (link.length < 2)
+			throw new IOException(name + " must have an in and an out bandwidth: " + String.join(" ", link));
+		return new Rate[]{parseRate(link[0]), parseRate(link[1])};
+	}
+
+	private AggregateBucket[] shared(Rate[] rates) {
+		AggregateBucket[] buckets = new AggregateBucket[2];
+		for (int d = 0; d < 2; d++) {
+			if (rates[d] != null) {
+				buckets[d] = new AggregateBucket(scheduler, rates[d].bytesPerSecond, rates[d].burstBytes, limits, dropListener);
+				(d == 0 ? sharedIn : sharedOut).add(buckets[d]);
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * @param bandwidth rate, and optionally burst, as in the configuration file
+	 */
+	static BandwidthBucket parseBandwidth(String bandwidth, Scheduler scheduler, QueueLimits limits, DropListener dropListener) {
+		Rate rate = parseRate(bandwidth);
+		if (rate == null)
+			throw new IllegalArgumentException("Bandwidth of a host or pair must be capped: " + bandwidth);
+		return new BandwidthBucket(scheduler, rate.bytesPerSecond, rate.burstBytes, limits, dropListener);
+	}
+
+	/**
+	 * @return the rate and burst of a bandwidth such as {@code 10mbps} or {@code 1gbps/256KB}, null if uncapped
+	 */
+	static Rate parseRate(String bandwidth) {
+		if (bandwidth.equals(UNCAPPED))
+			return null;
+		int slash = bandwidth.indexOf('/');
+		String rate = slash < 0 ? bandwidth : bandwidth.substring(0, slash);
+		long burst = slash < 0 ? 0 : Math.round(toBytes(bandwidth.substring(slash + 1), true));
+		if (slash >= 0 && burst <= 0)
+			throw new IllegalArgumentException("Burst must be positive: " + bandwidth);
+		return new Rate(toBytes(rate, false), burst);
+	}
+
+	/**
+	 * @return bytes per second of a rate, or bytes of a size
+	 */
+	private static double toBytes(String str, boolean size) {
+		Matcher match = PATTERN.matcher(str);
+		double quantity;
 		ThroughputType type;
 		if (match.find()) {
-			bandwidth = Double.parseDouble(match.group(1));
+			quantity = Double.parseDouble(match.group(1));
 			type = ThroughputType.valueOf(match.group(3).toUpperCase());
 		} else
-			throw new IllegalArgumentException("Bandwidth configuration usage per line: <in_bw_quant><throughput_type_in> <out_bw_quant><throughput_type_out>");
+			throw new IllegalArgumentException("Bandwidth configuration usage per line: <in_bw_quant><throughput_type_in>[/<burst>] <out_bw_quant><throughput_type_out>[/<burst>] [site]");
 
 		switch (type) {
-			case BPS:
-				return new BandwidthBucket(bandwidth, BitUnit.BIT);
-			case KBPS:
-				return new BandwidthBucket(bandwidth, BitUnit.KBIT);
-			case MBPS:
-				return new BandwidthBucket(bandwidth, BitUnit.MBIT);
-			case GBPS:
-				return new BandwidthBucket(bandwidth, BitUnit.GBIT);
-			case PBPS:
-				return new BandwidthBucket(bandwidth, BitUnit.PBIT);
 			case B:
-				return new BandwidthBucket(bandwidth, ByteUnit.BYTE);
+				return ByteUnit.BYTE.convert(quantity, ByteUnit.BYTE);
 			case KB:
-				return new BandwidthBucket(bandwidth, ByteUnit.KB);
+				return ByteUnit.BYTE.convert(quantity, ByteUnit.KB);
 			case MB:
-				return new BandwidthBucket(bandwidth, ByteUnit.MB);
+				return ByteUnit.BYTE.convert(quantity, ByteUnit.MB);
 			case GB:
-				return new BandwidthBucket(bandwidth, ByteUnit.GB);
+				return ByteUnit.BYTE.convert(quantity, ByteUnit.GB);
 			case PB:
-				return new BandwidthBucket(bandwidth, ByteUnit.PB);
+				return ByteUnit.BYTE.convert(quantity, ByteUnit.PB);
+			default:
+				if (size)
+					throw new IllegalArgumentException("Burst must be in bytes: " + str);
+		}
+		switch (type) {
+			case BPS:
+				return ByteUnit.BYTE.convert(quantity, BitUnit.BIT);
+			case KBPS:
+				return ByteUnit.BYTE.convert(quantity, BitUnit.KBIT);
+			case MBPS:
+				return ByteUnit.BYTE.convert(quantity, BitUnit.MBIT);
+			case GBPS:
+				return ByteUnit.BYTE.convert(quantity, BitUnit.GBIT);
+			case PBPS:
+				return ByteUnit.BYTE.convert(quantity, BitUnit.PBIT);
 			default:
 				throw new IllegalStateException("Illegal throughput type: " + type + "Valid ones " + Arrays.toString(ThroughputType.values()));
 		}
@@ -59,15 +239,13 @@ public class HostBandwidthList extends HostPropertyList<Pair<BandwidthBucket, Ba
 
 	@Override
 	protected Pair<BandwidthBucket, BandwidthBucket> parseString(String input) {
-		String[] parts = input.split(" ");
+		String[] parts = input.trim().split("\\s+");
 		String inStr = parts[0];
 		String outStr = parts[1];
 
-		Matcher matcherIn = PATTERN.matcher(inStr);
-		BandwidthBucket inBandwidth = parseBandwidth(matcherIn);
-
-		Matcher matcherOut = PATTERN.matcher(outStr);
-		BandwidthBucket outBandwidth = parseBandwidth(matcherOut);
+		BandwidthBucket inBandwidth = parseBandwidth(inStr, scheduler, limits, dropListener);
+		BandwidthBucket outBandwidth = parseBandwidth(outStr, scheduler, limits, dropListener);
+		hostSites.add(parts.length > 2 ? Integer.parseInt(parts[2]) : -1);
 
 		return new ImmutablePair<>(inBandwidth, outBandwidth);
 	}
@@ -80,6 +258,47 @@ public class HostBandwidthList extends HostPropertyList<Pair<BandwidthBucket, Ba
 		return propertyList.get(host).getRight();
 	}
 
+	/**
+	 * @return shaper of the traffic arriving at the host, through its region, its site and then the host itself
+	 */
+	public Shaper getInShaper(Host host) {
+		return inShapers.get(host);
+	}
+
+	/**
+	 * @return shaper of the traffic leaving the host, through the host itself, its site and then its region
+	 */
+	public Shaper getOutShaper(Host host) {
+		return outShapers.get(host);
+	}
+
+	/**
+	 * @return outbound buckets of all hosts if {@code out}, their inbound buckets otherwise
+	 */
+	public List<BandwidthBucket> getBandwidthBuckets(boolean out) {
+		List<BandwidthBucket> buckets = new ArrayList<>(propertyList.size());
+		for (Pair<BandwidthBucket, BandwidthBucket> pair : propertyList.values())
+			buckets.add(out ? pair.getRight() : pair.getLeft());
+		return buckets;
+	}
+
+	/**
+	 * @return outbound links shared by sites and regions if {@code out}, their inbound links otherwise
+	 */
+	public List<AggregateBucket> getSharedBuckets(boolean out) {
+		return out ? sharedOut : sharedIn;
+	}
+
+	static final class Rate {
+		final double bytesPerSecond;
+		final long burstBytes;
+
+		Rate(double bytesPerSecond, long burstBytes) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.burstBytes = burstBytes;
+		}
+	}
+
 	private enum ThroughputType {
 		BPS, KBPS, MBPS, GBPS, PBPS, //bits
 		B, KB, MB, GB, PB             //bytes
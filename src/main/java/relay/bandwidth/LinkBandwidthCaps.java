@@ -0,0 +1,120 @@
+package relay.bandwidth;
+
+import relay.latency.Scheduler;
+import relay.util.ConfigUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bandwidth caps on the paths between hosts, applied on top of the bandwidth of each host.
+ * <p>
+ * The configuration is split in sections, as read by {@link ConfigUtils#readSections}, all of them optional:
+ * <ul>
+ *     <li>{@code [hosts]}: the region of each host, one per line in host list order;</li>
+ *     <li>{@code [regions]}: the inter-region matrix, where row {@code r} holds the caps from region {@code r} and
+ *     {@code -} leaves a pair of regions uncapped. All traffic from one region to another shares the cap;</li>
+ *     <li>{@code [pairs]}: one {@code from to bandwidth} line per pair of hosts, by position in the host list, whose
+ *     traffic is capped on its own instead of by the cap of their regions.</li>
+ * </ul>
+ * Caps are one-way, like the rest of the bandwidth configuration. Region caps are kept in a dense matrix and pair
+ * caps in a map, so memory grows with the regions and the capped pairs rather than with every pair of hosts.
+ */
+public class LinkBandwidthCaps {
+
+	static final String HOSTS_SECTION = "hosts";
+	static final String REGIONS_SECTION = "regions";
+	static final String PAIRS_SECTION = "pairs";
+	static final String UNCAPPED = "-";
+
+	private final int numRegions;
+	private final int[] region;
+	// [from * numRegions + to], null if uncapped
+	private final BandwidthBucket[] regionBuckets;
+	private final Map<Long, BandwidthBucket> pairBuckets;
+
+	/**
+	 * @param numHosts     hosts in the host list
+	 * @param limits       limits of the queue of every cap
+	 * @param dropListener told of the messages any cap drops
+	 */
+	public LinkBandwidthCaps(int numHosts, InputStream config, Scheduler scheduler, QueueLimits limits, DropListener dropListener) throws IOException {
+		Map<String, List<String[]>> sections = ConfigUtils.readSections(config);
+
+		List<String[]> regions = sections.getOrDefault(REGIONS_SECTION, Collections.emptyList());
+		numRegions = regions.size();
+		regionBuckets = new BandwidthBucket[numRegions * numRegions];
+		for (int r = 0; r < numRegions; r++) {
+			String[] row = regions.get(r);
+			if (row.length != numRegions)
+				throw new IOException("Region bandwidth row " + r + " has " + row.length + " columns, expected " + numRegions);
+			for (int s = 0; s < numRegions; s++) {
+				if (!row[s].equals(UNCAPPED))
+					regionBuckets[r * numRegions + s] = HostBandwidthList.parseBandwidth(row[s], scheduler, limits, dropListener);
+			}
+		}
+
+		List<String[]> hosts = sections.getOrDefault(HOSTS_SECTION, Collections.emptyList());
+		if (numRegions > 0 && hosts.size() < numHosts)
+			throw new IOException("Region bandwidth caps have " + hosts.size() + " hosts, expected " + numHosts);
+		region = new int[numRegions > 0 ? numHosts : 0];
+		for (int i = 0; i < region.length; i++) {
+			region[i] = Integer.parseInt(hosts.get(i)[0]);
+			if (region[i] < 0 || region[i] >= numRegions)
+				throw new IOException("Host " + i + " in unknown region " + region[i]);
+		}
+
+		pairBuckets = new HashMap<>();
+		for (String[] pair : sections.getOrDefault(PAIRS_SECTION, Collections.emptyList())) {
+			if (pair.length != 3)
+				throw new IOException("Bandwidth cap must be \"from to bandwidth\": " + String.join(" ", pair));
+			int from = parseHost(pair[0], numHosts);
+			int to = parseHost(pair[1], numHosts);
+			pairBuckets.put(pairKey(from, to), HostBandwidthList.parseBandwidth(pair[2], scheduler, limits, dropListener));
+		}
+	}
+
+	private static int parseHost(String str, int numHosts) throws IOException {
+		int host = Integer.parseInt(str);
+		if (host < 0 || host >= numHosts)
+			throw new IOException("Bandwidth cap for unknown host " + host);
+		return host;
+	}
+
+	private static long pairKey(int from, int to) {
+		return ((long) from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return cap of the path from {@code from} to {@code to}, by position in the host list, null if uncapped
+	 */
+	public BandwidthBucket getBucket(int from, int to) {
+		if (from < 0 || to < 0)
+			return null;
+		if (!pairBuckets.isEmpty()) {
+			BandwidthBucket bucket = pairBuckets.get(pairKey(from, to));
+			if (bucket != null)
+				return bucket;
+		}
+		if (from >= region.length || to >= region.length)
+			return null;
+		return regionBuckets[region[from] * numRegions + region[to]];
+	}
+
+	/**
+	 * @return every cap, once
+	 */
+	public List<BandwidthBucket> getBandwidthBuckets() {
+		List<BandwidthBucket> buckets = new ArrayList<>(pairBuckets.values());
+		for (BandwidthBucket bucket : regionBuckets) {
+			if (bucket != null)
+				buckets.add(bucket);
+		}
+		return buckets;
+	}
+}
@@ -0,0 +1,118 @@
+package relay.bandwidth;
+
+import relay.messaging.RelayMessage;
+import relay.util.ObjectPool;
+
+/**
+ * FIFO of the messages a shaper holds back, linked through pooled nodes: a shaper that stays over its rate queues
+ * every message it gets, and neither the nodes nor a backing array are allocated for them once the pool holds as many
+ * nodes as there are messages queued.
+ * <p>
+ * Not thread-safe, guarded by the shaper that owns it.
+ */
+final class PacketQueue {
+
+	private static final int POOL_CAPACITY = 1 << 14;
+	private static final ObjectPool<Packet> pool = new ObjectPool<>(POOL_CAPACITY, Packet::new);
+
+	private Packet head;
+	private Packet tail;
+	private int size;
+
+	/**
+	 * @return the node of the message, owned by the queue
+	 */
+	Packet add(RelayMessage msg, Runnable runnable, int size) {
+		Packet packet = pool.get();
+		packet.msg = msg;
+		packet.runnable = runnable;
+		packet.size = size;
+		if (tail == null)
+			head = packet;
+		else
+			tail.next = packet;
+		tail = packet;
+		this.size++;
+		return packet;
+	}
+
+	Packet peek() {
+		return head;
+	}
+
+	/**
+	 * @return the head, no longer in the queue, which the caller recycles once done with it
+	 */
+	Packet poll() {
+		Packet packet = head;
+		if (packet != null)
+			unlink(null, packet);
+		return packet;
+	}
+
+	/**
+	 * @return the oldest application message, still in the queue, or null if there is none
+	 */
+	Packet peekOldestApp() {
+		for (Packet packet = head; packet != null; packet = packet.next) {
+			if (packet.msg.getType() == RelayMessage.Type.APP_MSG)
+				return packet;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the oldest application message, no longer in the queue, which the caller recycles once done with it, or
+	 * null if there is none
+	 */
+	Packet pollOldestApp() {
+		Packet prev = null;
+		for (Packet packet = head; packet != null; prev = packet, packet = packet.next) {
+			if (packet.msg.getType() == RelayMessage.Type.APP_MSG) {
+				unlink(prev, packet);
+				return packet;
+			}
+		}
+		return null;
+	}
+
+	private void unlink(Packet prev, Packet packet) {
+		if (prev == null)
+			head = packet.next;
+		else
+			prev.next = packet.next;
+		if (tail == packet)
+			tail = prev;
+		packet.next = null;
+		size--;
+	}
+
+	boolean isEmpty() {
+		return head == null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	static final class Packet {
+
+		private final ObjectPool.Handle<Packet> handle;
+		RelayMessage msg;
+		Runnable runnable;
+		int size;
+		// arrival order among the queues of a shared link
+		long order;
+		private Packet next;
+
+		private Packet(ObjectPool.Handle<Packet> handle) {
+			this.handle = handle;
+		}
+
+		void recycle() {
+			msg = null;
+			runnable = null;
+			handle.recycle(this);
+		}
+	}
+}
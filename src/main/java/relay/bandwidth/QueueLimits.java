@@ -0,0 +1,92 @@
+package relay.bandwidth;
+
+import java.util.Locale;
+
+/**
+ * How much a {@link BandwidthBucket} may hold back, and what it drops once that is reached.
+ * <p>
+ * Only application messages are dropped: connection control messages always get in, so both ends of a link keep
+ * agreeing on its state, but they count towards the limits.
+ */
+public class QueueLimits {
+
+	public static final QueueLimits UNBOUNDED = new QueueLimits(0, 0, Policy.DROP_TAIL);
+
+	public enum Policy {
+		/**
+		 * Drops arriving messages that do not fit.
+		 */
+		DROP_TAIL,
+		/**
+		 * Drops the oldest queued messages until the arriving one fits, so the queue holds the freshest traffic.
+		 */
+		DROP_HEAD,
+		/**
+		 * Random early detection: drops arriving messages with a probability that grows with the average fill of the
+		 * queue, above {@link #RED_MIN_FILL}, and drops them all once the queue is full.
+		 */
+		RED;
+
+		public static Policy parse(String name) {
+			return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+		}
+	}
+
+	public static final double RED_MIN_FILL = 0.5;
+	public static final double RED_MAX_PROBABILITY = 0.1;
+	// weight of each arrival in the moving average of the fill
+	public static final double RED_WEIGHT = 0.002;
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final Policy policy;
+
+	/**
+	 * @param maxMessages messages held at most, 0 for no limit
+	 * @param maxBytes    bytes held at most, 0 for no limit
+	 */
+	public QueueLimits(int maxMessages, long maxBytes, Policy policy) {
+		if (maxMessages < 0 || maxBytes < 0)
+			throw new IllegalArgumentException("Queue limits cannot be negative: " + maxMessages + " messages, " + maxBytes + " bytes");
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	public boolean isBounded() {
+		return maxMessages > 0 || maxBytes > 0;
+	}
+
+	/**
+	 * @return fraction of the tightest limit used by the given contents, 0 if unbounded
+	 */
+	double fill(int messages, long bytes) {
+		double fill = 0;
+		if (maxMessages > 0)
+			fill = (double) messages / maxMessages;
+		if (maxBytes > 0)
+			fill = Math.max(fill, (double) bytes / maxBytes);
+		return fill;
+	}
+
+	boolean fits(int messages, long bytes) {
+		return (maxMessages == 0 || messages <= maxMessages) && (maxBytes == 0 || bytes <= maxBytes);
+	}
+
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	@Override
+	public String toString() {
+		return isBounded() ? policy + " at " + maxMessages + " messages/" + maxBytes + " bytes" : "unbounded";
+	}
+}
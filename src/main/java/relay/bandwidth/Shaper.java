@@ -0,0 +1,32 @@
+package relay.bandwidth;
+
+import relay.messaging.RelayMessage;
+
+/**
+ * Holds messages back until the emulated link they cross can carry them.
+ */
+public interface Shaper {
+
+	/**
+	 * Runs {@code runnable} once the message may leave, or hands the message to the {@link DropListener} if there is no
+	 * room for it. Messages leave in the order they were enqueued.
+	 */
+	void enqueue(RelayMessage msg, Runnable runnable);
+
+	/**
+	 * @return messages waiting for their departure
+	 */
+	int getQueued();
+
+	/**
+	 * @return time until everything accepted so far has left, in nanoseconds
+	 */
+	long getBacklogNanos();
+
+	/**
+	 * @return a shaper that lets messages through this one and then through {@code next}
+	 */
+	default Shaper then(Shaper next) {
+		return new ShaperChain(this, next);
+	}
+}
@@ -0,0 +1,73 @@
+package relay.bandwidth;
+
+import relay.messaging.RelayMessage;
+import relay.util.ObjectPool;
+
+/**
+ * Lets messages through one shaper and then through the next, handing each message over with a pooled hop instead
+ * of a closure per message.
+ */
+final class ShaperChain implements Shaper {
+
+	private static final int HOP_POOL_CAPACITY = 1 << 14;
+	private static final ObjectPool<Hop> hops = new ObjectPool<>(HOP_POOL_CAPACITY, Hop::new);
+
+	private final Shaper first;
+	private final Shaper next;
+
+	ShaperChain(Shaper first, Shaper next) {
+		this.first = first;
+		this.next = next;
+	}
+
+	@Override
+	public void enqueue(RelayMessage msg, Runnable runnable) {
+		// a message the first shaper drops leaves its hop to the garbage collector
+		first.enqueue(msg, hops.get().set(next, msg, runnable));
+	}
+
+	@Override
+	public int getQueued() {
+		return first.getQueued() + next.getQueued();
+	}
+
+	@Override
+	public long getBacklogNanos() {
+		return first.getBacklogNanos() + next.getBacklogNanos();
+	}
+
+	/**
+	 * Hands a message that left one shaper to the next, recycled as it runs.
+	 */
+	private static final class Hop implements Runnable {
+
+		private final ObjectPool.Handle<Hop> handle;
+		private Shaper next;
+		private RelayMessage msg;
+		private Runnable runnable;
+
+		Hop(ObjectPool.Handle<Hop> handle) {
+			this.handle = handle;
+		}
+
+		Hop set(Shaper next, RelayMessage msg, Runnable runnable) {
+			this.next = next;
+			this.msg = msg;
+			this.runnable = runnable;
+			return this;
+		}
+
+		@Override
+		public void run() {
+			Shaper next = this.next;
+			RelayMessage msg = this.msg;
+			Runnable runnable = this.runnable;
+			this.next = null;
+			this.msg = null;
+			this.runnable = null;
+			handle.recycle(this);
+
+			next.enqueue(msg, runnable);
+		}
+	}
+}
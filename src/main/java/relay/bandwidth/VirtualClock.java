@@ -0,0 +1,68 @@
+package relay.bandwidth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transmission clock of a shaped link: the instant at which everything sent so far would have finished transmitting.
+ * Each packet pushes it forward by its transmission time, and leaves once the backlog ahead of it fits in the burst.
+ * <p>
+ * Times are kept as fixed-point nanoseconds (with {@link #FRACTION_BITS} fractional bits) relative to the creation
+ * of the clock, so sub-nanosecond per-byte costs of fast links do not get rounded away. Not thread-safe, guarded by
+ * its owner.
+ */
+final class VirtualClock {
+
+	private static final int FRACTION_BITS = 10;
+	// the previous timer-drained bucket let up to one second worth of traffic through at once
+	static final long DEFAULT_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final long origin;
+	private final long nanosPerByte;
+	private final long burst;
+	private long clock;
+
+	/**
+	 * @param burstBytes bytes that may leave back to back, 0 for one second worth of traffic
+	 */
+	VirtualClock(double bytesPerSecond, long burstBytes) {
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException("Bandwidth must be positive: " + bytesPerSecond);
+		if (burstBytes < 0)
+			throw new IllegalArgumentException("Burst must not be negative: " + burstBytes);
+
+		origin = System.nanoTime();
+		nanosPerByte = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / bytesPerSecond * (1L << FRACTION_BITS)));
+		burst = burstBytes == 0 ? DEFAULT_BURST_NANOS << FRACTION_BITS : burstBytes * nanosPerByte;
+	}
+
+	private long fixed(long now) {
+		return (now - origin) << FRACTION_BITS;
+	}
+
+	/**
+	 * Advances the clock if a packet of {@code size} bytes may leave now.
+	 */
+	boolean depart(int size, long now) {
+		long nowFixed = fixed(now);
+		long finish = Math.max(clock, nowFixed) + size * nanosPerByte;
+		if (finish - burst > nowFixed)
+			return false;
+		clock = finish;
+		return true;
+	}
+
+	/**
+	 * @return instant, in {@link System#nanoTime()} units, at which a packet of {@code size} bytes may leave
+	 */
+	long departure(int size, long now) {
+		return origin + ((Math.max(clock, fixed(now)) + size * nanosPerByte - burst) >> FRACTION_BITS);
+	}
+
+	/**
+	 * @return time until everything accepted so far, plus {@code queuedBytes}, has left, in nanoseconds
+	 */
+	long backlogNanos(long queuedBytes, long now) {
+		long nowFixed = fixed(now);
+		return Math.max(0, (Math.max(clock, nowFixed) + queuedBytes * nanosPerByte - burst - nowFixed) >> FRACTION_BITS);
+	}
+}
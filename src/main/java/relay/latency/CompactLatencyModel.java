@@ -0,0 +1,142 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.ConfigUtils;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Base of the models that derive latencies from per-host data, so memory grows linearly with the number of hosts.
+ * <p>
+ * Their configuration is split in sections, as read by {@link ConfigUtils#readSections}. Every model accepts an
+ * optional {@code [overrides]} section, with one {@code from to latency} line per pair whose latency does not follow
+ * the model. Overrides, and later calls to {@link #changeLatency}, apply to both directions when the model is
+ * symmetric.
+ * <p>
+ * Overrides are kept as sorted pair keys with their latencies, replaced as a whole on every change, so lookups neither
+ * lock nor box.
+ */
+abstract class CompactLatencyModel implements LatencyModel {
+
+	static final String OVERRIDES_SECTION = "overrides";
+
+	private final HostIndex index;
+	private final boolean symmetric;
+	private volatile Overrides overrides;
+
+	protected CompactLatencyModel(HostIndex index, boolean symmetric) {
+		this.index = index;
+		this.symmetric = symmetric;
+		this.overrides = Overrides.NONE;
+	}
+
+	/**
+	 * @return latency given by the model, ignoring overrides
+	 */
+	protected abstract float modelLatency(int from, int to);
+
+	protected int numHosts() {
+		return index.size();
+	}
+
+	@Override
+	public float getLatency(int from, int to) {
+		if (from == to)
+			return 0;
+		Overrides overrides = this.overrides;
+		if (overrides.keys.length > 0) {
+			int i = Arrays.binarySearch(overrides.keys, pairKey(from, to));
+			if (i >= 0)
+				return overrides.latencies[i];
+		}
+		return modelLatency(from, to);
+	}
+
+	@Override
+	public float getLatency(Host from, Host to) {
+		int i = index.indexOf(from);
+		int j = index.indexOf(to);
+		if (i == HostIndex.UNKNOWN || j == HostIndex.UNKNOWN)
+			return Float.NaN;
+		return getLatency(i, j);
+	}
+
+	@Override
+	public synchronized void changeLatency(int from, int to, float latency) {
+		SortedMap<Long, Float> changed = overrides.toMap();
+		put(changed, from, to, latency);
+		overrides = new Overrides(changed);
+	}
+
+	private void put(Map<Long, Float> overrides, int from, int to, float latency) {
+		overrides.put(pairKey(from, to), latency);
+		if (symmetric)
+			overrides.put(pairKey(to, from), latency);
+	}
+
+	private static long pairKey(int from, int to) {
+		return ((long) from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	protected synchronized void readOverrides(Map<String, List<String[]>> sections) throws IOException {
+		SortedMap<Long, Float> read = overrides.toMap();
+		for (String[] override : section(sections, OVERRIDES_SECTION, false)) {
+			if (override.length != 3)
+				throw new IOException("Latency override must be \"from to latency\": " + String.join(" ", override));
+			int from = parseHost(override[0]);
+			int to = parseHost(override[1]);
+			put(read, from, to, Float.parseFloat(override[2]));
+		}
+		overrides = new Overrides(read);
+	}
+
+	private int parseHost(String str) throws IOException {
+		int host = Integer.parseInt(str);
+		if (host < 0 || host >= numHosts())
+			throw new IOException("Latency override for unknown host " + host);
+		return host;
+	}
+
+	protected static List<String[]> section(Map<String, List<String[]>> sections, String name, boolean required) throws IOException {
+		List<String[]> lines = sections.get(name);
+		if (lines == null) {
+			if (required)
+				throw new IOException("Latency model without [" + name + "] section");
+			return new ArrayList<>();
+		}
+		return lines;
+	}
+
+	private static final class Overrides {
+
+		static final Overrides NONE = new Overrides(new TreeMap<>());
+
+		// sorted (from << 32 | to) of each overridden pair
+		final long[] keys;
+		final float[] latencies;
+
+		Overrides(SortedMap<Long, Float> overrides) {
+			keys = new long[overrides.size()];
+			latencies = new float[overrides.size()];
+			int i = 0;
+			for (Map.Entry<Long, Float> override : overrides.entrySet()) {
+				keys[i] = override.getKey();
+				latencies[i++] = override.getValue();
+			}
+		}
+
+		SortedMap<Long, Float> toMap() {
+			SortedMap<Long, Float> map = new TreeMap<>();
+			for (int i = 0; i < keys.length; i++)
+				map.put(keys[i], latencies[i]);
+			return map;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package relay.latency;
+
+import relay.util.ConfigUtils;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hosts placed in a synthetic network coordinate space: the latency between two hosts is the euclidean distance
+ * between their coordinates plus the height of each, the latency of their access links.
+ * <p>
+ * The {@code [coordinates]} section holds one line per host, in host list order, with its coordinates followed by its
+ * height. All hosts must have the same number of coordinates.
+ */
+public class CoordinateLatencyModel extends CompactLatencyModel {
+
+	static final String COORDINATES_SECTION = "coordinates";
+
+	private final int dimensions;
+	// coordinates[i * dimensions + d]
+	private final float[] coordinates;
+	private final float[] height;
+
+	public CoordinateLatencyModel(HostIndex index, InputStream config, boolean symmetric) throws IOException {
+		super(index, symmetric);
+		Map<String, List<String[]>> sections = ConfigUtils.readSections(config);
+
+		List<String[]> hosts = section(sections, COORDINATES_SECTION, true);
+		if (hosts.size() < numHosts())
+			throw new IOException("Coordinate model has " + hosts.size() + " hosts, expected " + numHosts());
+		dimensions = hosts.get(0).length - 1;
+		if (dimensions < 1)
+			throw new IOException("Host coordinates need at least one dimension and a height");
+
+		coordinates = new float[numHosts() * dimensions];
+		height = new float[numHosts()];
+		for (int i = 0; i < numHosts(); i++) {
+			String[] host = hosts.get(i);
+			if (host.length != dimensions + 1)
+				throw new IOException("Host " + i + " has " + (host.length - 1) + " coordinates, expected " + dimensions);
+			for (int d = 0; d < dimensions; d++)
+				coordinates[i * dimensions + d] = Float.parseFloat(host[d]);
+			height[i] = Float.parseFloat(host[dimensions]);
+		}
+
+		readOverrides(sections);
+	}
+
+	@Override
+	protected float modelLatency(int from, int to) {
+		double sum = 0;
+		for (int d = 0; d < dimensions; d++) {
+			double diff = coordinates[from * dimensions + d] - coordinates[to * dimensions + d];
+			sum += diff * diff;
+		}
+		return (float) Math.sqrt(sum) + height[from] + height[to];
+	}
+}
@@ -0,0 +1,77 @@
+package relay.latency;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import relay.messaging.RelayMessage;
+
+import java.util.ArrayDeque;
+
+/**
+ * FIFO of the delayed sends of one link, of which only the head waits in the {@link Scheduler}.
+ * <p>
+ * Latency is constant per link, so its events are nearly in deadline order already and appending them is O(1); the
+ * scheduler then holds one event per busy link instead of one per message in flight. Like a TCP connection, a link
+ * never reorders: an event fires at its deadline or right after the one ahead of it, whichever comes last, even if a
+ * clock skew between senders or a latency drop in the trace gives it an earlier deadline.
+ * <p>
+ * The head waits in the scheduler as a single event of the line, reset for every new head. Every head goes to the wheel
+ * the first one went to, so the line stays on one thread even if the scheduler reassigns its peers.
+ */
+public class DelayLine {
+
+	private static final Logger logger = LogManager.getLogger(DelayLine.class);
+
+	private final Scheduler scheduler;
+
+	// guarded by this
+	private final ArrayDeque<SendMessageEvent> queue;
+	private final SendMessageEvent headEvent;
+	private boolean headScheduled;
+	private TimingWheel wheel;
+
+	public DelayLine(Scheduler scheduler) {
+		this.scheduler = scheduler;
+		this.queue = new ArrayDeque<>();
+		this.headEvent = SendMessageEvent.reusable(this::fire);
+	}
+
+	public synchronized void add(SendMessageEvent event) {
+		queue.add(event);
+		if (!headScheduled)
+			scheduleHead();
+	}
+
+	private void scheduleHead() {
+		SendMessageEvent head = queue.peek();
+		if (head == null)
+			return;
+		headScheduled = true;
+		if (wheel == null)
+			wheel = scheduler.wheelFor(head.getMsg());
+		wheel.add(headEvent.reset(head.getMsg(), head.getDeadline()));
+	}
+
+	private synchronized void fire() {
+		headScheduled = false;
+		long now = System.nanoTime();
+		SendMessageEvent head;
+		while ((head = queue.peek()) != null && head.getDeadline() - now <= 0) {
+			queue.poll();
+			// the event may be recycled as it runs
+			RelayMessage msg = head.getMsg();
+			try {
+				head.getRunnable().run();
+			} catch (Throwable t) {
+				logger.error("Error firing delayed event for {}: {}", msg, t.getMessage());
+			}
+		}
+		scheduleHead();
+	}
+
+	/**
+	 * @return events waiting for their deadline
+	 */
+	public synchronized int size() {
+		return queue.size();
+	}
+}
@@ -0,0 +1,56 @@
+package relay.latency;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits until a {@link System#nanoTime()} deadline by parking while the deadline is far away and spinning for the
+ * last stretch. The spin window is calibrated against how late {@link LockSupport#parkNanos(long)} actually wakes
+ * up on this machine.
+ */
+class HybridWaiter {
+
+	private static final Logger logger = LogManager.getLogger(HybridWaiter.class);
+
+	private static final int CALIBRATION_SAMPLES = 200;
+	private static final long CALIBRATION_PARK_NANOS = 50_000L;
+	private static final long MIN_SPIN_NANOS = 10_000L;
+	private static final long MAX_SPIN_NANOS = 2_000_000L;
+
+	static final HybridWaiter PARK_ONLY = new HybridWaiter(0);
+
+	private final long spinThreshold;
+
+	private HybridWaiter(long spinThreshold) {
+		this.spinThreshold = spinThreshold;
+	}
+
+	static HybridWaiter calibrate() {
+		long[] overshoot = new long[CALIBRATION_SAMPLES];
+		for (int i = 0; i < CALIBRATION_SAMPLES; i++) {
+			long start = System.nanoTime();
+			LockSupport.parkNanos(CALIBRATION_PARK_NANOS);
+			overshoot[i] = Math.max(0, System.nanoTime() - start - CALIBRATION_PARK_NANOS);
+		}
+		Arrays.sort(overshoot);
+
+		long median = overshoot[CALIBRATION_SAMPLES / 2];
+		long p99 = overshoot[CALIBRATION_SAMPLES * 99 / 100];
+		long threshold = Math.min(MAX_SPIN_NANOS, Math.max(MIN_SPIN_NANOS, p99));
+		logger.info("Timer slack calibrated: median {}us, p99 {}us, spinning for the last {}us", median / 1000, p99 / 1000, threshold / 1000);
+
+		return new HybridWaiter(threshold);
+	}
+
+	void awaitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > spinThreshold)
+			LockSupport.parkNanos(remaining - spinThreshold);
+		while (deadline - System.nanoTime() > 0) {
+			// spin
+		}
+	}
+}
@@ -1,24 +1,213 @@
 package relay.latency;
 
 import pt.unl.fct.di.novasys.network.data.Host;
-import relay.util.HostPropertySymmetricMatrix;
+import relay.util.HostIndex;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 
-public class LatencyMatrix extends HostPropertySymmetricMatrix<Float> {
+/**
+ * Latencies, in milliseconds, between the hosts handled by this relay and every other host, kept in primitive
+ * arrays indexed by position in the host list.
+ * <p>
+ * Only the rows of the local range are stored. When the matrix is asymmetric, the latency from {@code i} to
+ * {@code j} is read from row {@code i} and the columns of the local range are stored as well, so latencies towards
+ * local hosts are available too. Binary matrices converted with their columns give those directly; otherwise every
+ * row has to be read for them.
+ * <p>
+ * The matrix is read either as text, one row of space-separated latencies per line, or in the binary format of
+ * {@link LatencyMatrixFile}, which is memory mapped when given as a {@link FileInputStream}.
+ */
+public class LatencyMatrix implements LatencyModel {
 
-	public LatencyMatrix(List<Host> hostList, InputStream matrixConfig) throws IOException {
-		super(hostList, matrixConfig);
+	private final HostIndex index;
+	private final int start;
+	private final int end;
+	private final boolean symmetric;
+	// rows[i - start][j]: latency from local host i to host j
+	private final float[][] rows;
+	// columns[j - start][i]: latency from host i to local host j, only for asymmetric matrices
+	private final float[][] columns;
+
+	public LatencyMatrix(HostIndex index, InputStream matrixConfig) throws IOException {
+		this(index, matrixConfig, 0, index.size() - 1, true);
+	}
+
+	public LatencyMatrix(HostIndex index, InputStream matrixConfig, int start, int end, boolean symmetric) throws IOException {
+		this.index = index;
+		this.start = start;
+		this.end = end;
+		this.symmetric = symmetric;
+
+		int numHosts = index.size();
+		int numLocal = end - start + 1;
+		rows = new float[numLocal][];
+		columns = symmetric ? null : new float[numLocal][numHosts];
+
+		RowReader reader = openRows(matrixConfig);
+		boolean byColumn = !symmetric && reader.hasColumns();
+		if (byColumn)
+			for (int j = start; j <= end; j++)
+				reader.readColumn(j, columns[j - start]);
+		float[] localColumns = symmetric ? null : new float[numHosts];
+		for (int i = 0; i < numHosts; i++) {
+			if (isLocal(i)) {
+				float[] row = new float[numHosts];
+				reader.read(i, row, 0, numHosts - 1);
+				rows[i - start] = row;
+				if (!symmetric && !byColumn)
+					for (int j = start; j <= end; j++)
+						columns[j - start][i] = row[j];
+			} else if (!symmetric && !byColumn) {
+				reader.read(i, localColumns, start, end);
+				for (int j = start; j <= end; j++)
+					columns[j - start][i] = localColumns[j];
+			} else {
+				reader.skip(i);
+			}
+		}
+	}
+
+	private RowReader openRows(InputStream matrixConfig) throws IOException {
+		LatencyMatrixFile binary = null;
+		InputStream in = matrixConfig;
+		if (in instanceof FileInputStream) {
+			FileChannel channel = ((FileInputStream) in).getChannel();
+			if (LatencyMatrixFile.isBinary(channel))
+				binary = LatencyMatrixFile.map(channel);
+		} else {
+			if (!in.markSupported())
+				in = new BufferedInputStream(in);
+			byte[] magic = new byte[Integer.BYTES];
+			in.mark(magic.length);
+			int n = in.read(magic);
+			in.reset();
+			if (n == magic.length && LatencyMatrixFile.isBinary(magic))
+				binary = LatencyMatrixFile.read(in);
+		}
+
+		if (binary != null) {
+			if (binary.getNumHosts() != index.size())
+				throw new IOException("Latency matrix has " + binary.getNumHosts() + " hosts, expected " + index.size());
+			LatencyMatrixFile file = binary;
+			return new RowReader() {
+				@Override
+				public void read(int i, float[] row, int from, int to) {
+					file.readRow(i, row, from, to);
+				}
+
+				@Override
+				public void skip(int i) {
+				}
+
+				@Override
+				public boolean hasColumns() {
+					return file.hasColumns();
+				}
+
+				@Override
+				public void readColumn(int j, float[] column) {
+					file.readColumn(j, column, 0, column.length - 1);
+				}
+			};
+		}
+
+		BufferedReader text = new BufferedReader(new InputStreamReader(in));
+		return new RowReader() {
+			private String nextLine(int i) throws IOException {
+				String line = text.readLine();
+				if (line == null)
+					throw new IOException("Latency matrix has " + i + " rows, expected " + index.size());
+				return line;
+			}
+
+			@Override
+			public void read(int i, float[] row, int from, int to) throws IOException {
+				parseRow(nextLine(i), row, from, to);
+			}
+
+			@Override
+			public void skip(int i) throws IOException {
+				nextLine(i);
+			}
+		};
 	}
 
-	public LatencyMatrix(List<Host> hostList, InputStream matrixConfig, int relayID, int numRelays) throws IOException {
-		super(hostList, matrixConfig, relayID, numRelays);
+	private static void parseRow(String line, float[] row, int from, int to) throws IOException {
+		int column = 0;
+		int pos = 0;
+		int length = line.length();
+		while (pos < length && column <= to) {
+			int next = line.indexOf(' ', pos);
+			if (next < 0)
+				next = length;
+			if (next > pos) {
+				if (column >= from)
+					row[column] = Float.parseFloat(line.substring(pos, next));
+				column++;
+			}
+			pos = next + 1;
+		}
+		if (column <= to)
+			throw new IOException("Latency matrix row has " + column + " columns, expected at least " + (to + 1));
 	}
 
+	private boolean isLocal(int i) {
+		return i >= start && i <= end;
+	}
+
+	/**
+	 * @return latency from {@code from} to {@code to}, or {@link Float#NaN} if neither is a local host
+	 */
 	@Override
-	protected Float parseString(String input) {
-		return Float.parseFloat(input);
+	public float getLatency(int from, int to) {
+		if (isLocal(from))
+			return rows[from - start][to];
+		if (isLocal(to))
+			return symmetric ? rows[to - start][from] : columns[to - start][from];
+		return Float.NaN;
+	}
+
+	@Override
+	public float getLatency(Host from, Host to) {
+		int i = index.indexOf(from);
+		int j = index.indexOf(to);
+		if (i == HostIndex.UNKNOWN || j == HostIndex.UNKNOWN)
+			return Float.NaN;
+		return getLatency(i, j);
+	}
+
+	@Override
+	public void changeLatency(int from, int to, float latency) {
+		if (isLocal(from))
+			rows[from - start][to] = latency;
+		if (isLocal(to)) {
+			if (symmetric)
+				rows[to - start][from] = latency;
+			else
+				columns[to - start][from] = latency;
+		}
+	}
+
+	/**
+	 * Rows are requested in order, each at most once, after any columns.
+	 */
+	private interface RowReader {
+		void read(int i, float[] row, int from, int to) throws IOException;
+
+		void skip(int i) throws IOException;
+
+		default boolean hasColumns() {
+			return false;
+		}
+
+		default void readColumn(int j, float[] column) throws IOException {
+			throw new UnsupportedOperationException();
+		}
 	}
 }
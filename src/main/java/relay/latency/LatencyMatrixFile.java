@@ -0,0 +1,277 @@
+package relay.latency;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Binary latency matrix, read through a memory mapping so that a relay only pages in the rows it needs.
+ * <p>
+ * The file starts with a 16 byte header: the {@link #MAGIC}, a format version, the cell encoding, the number of
+ * hosts and, for quantized cells, the quantum in nanoseconds. It is followed by the cells in row-major order, all
+ * big-endian. Cells are either:
+ * <ul>
+ *     <li>{@link #FLOAT32}: the latency in milliseconds;</li>
+ *     <li>{@link #UINT16}: the latency as an unsigned number of quanta, with 0xFFFF for missing values.</li>
+ * </ul>
+ * In {@link #TRANSPOSED_FORMAT_VERSION} files the cells follow once more in column-major order, so that a relay
+ * reading an asymmetric matrix only pages in the columns of its hosts too, instead of a cell of every row.
+ */
+public class LatencyMatrixFile {
+
+	private static final Logger logger = LogManager.getLogger(LatencyMatrixFile.class);
+
+	public static final int MAGIC = 0x524C4D58; // "RLMX"
+	public static final short FORMAT_VERSION = 1;
+	public static final short TRANSPOSED_FORMAT_VERSION = 2;
+	public static final short FLOAT32 = 0;
+	public static final short UINT16 = 1;
+	public static final int DEFAULT_QUANTUM_NANOS = 10_000;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int UNKNOWN = 0xFFFF;
+	private static final int MAX_QUANTA = UNKNOWN - 1;
+	// cells held in memory at a time while transposing
+	private static final long TRANSPOSE_BLOCK_CELLS = 64L * 1024 * 1024;
+
+	private final Cells rows;
+	private final Cells columns;
+	private final int numHosts;
+	private final short encoding;
+	private final int cellSize;
+	private final float msPerQuantum;
+
+	private LatencyMatrixFile(ByteBuffer header, ChunkMapper mapper) throws IOException {
+		if (header.getInt(0) != MAGIC)
+			throw new IOException("Not a binary latency matrix");
+		short version = header.getShort(4);
+		if (version != FORMAT_VERSION && version != TRANSPOSED_FORMAT_VERSION)
+			throw new IOException("Unsupported latency matrix format version " + version);
+		encoding = header.getShort(6);
+		if (encoding != FLOAT32 && encoding != UINT16)
+			throw new IOException("Unknown latency matrix encoding " + encoding);
+		numHosts = header.getInt(8);
+		msPerQuantum = header.getInt(12) / 1_000_000F;
+		cellSize = encoding == FLOAT32 ? Float.BYTES : Short.BYTES;
+
+		rows = new Cells(mapper, HEADER_SIZE);
+		columns = version == TRANSPOSED_FORMAT_VERSION ? new Cells(mapper, HEADER_SIZE + (long) numHosts * numHosts * cellSize) : null;
+	}
+
+	/**
+	 * Maps the file lazily: nothing is read until a row is.
+	 */
+	public static LatencyMatrixFile map(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		return new LatencyMatrixFile(header, (position, size) -> channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+	}
+
+	/**
+	 * Reads the whole stream to memory, for matrices that do not come from a file.
+	 */
+	public static LatencyMatrixFile read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		ByteBuffer contents = ByteBuffer.wrap(out.toByteArray());
+		if (contents.remaining() < HEADER_SIZE)
+			throw new IOException("Truncated latency matrix header");
+		return new LatencyMatrixFile(contents, (position, size) -> {
+			if (position + size > contents.capacity())
+				throw new IOException("Truncated latency matrix");
+			ByteBuffer chunk = contents.duplicate();
+			chunk.position((int) position).limit((int) (position + size));
+			return chunk.slice();
+		});
+	}
+
+	public static boolean isBinary(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+		return channel.read(magic, 0) == Integer.BYTES && magic.getInt(0) == MAGIC;
+	}
+
+	public static boolean isBinary(byte[] start) {
+		return start.length >= Integer.BYTES && ByteBuffer.wrap(start).getInt() == MAGIC;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0)
+				throw new IOException("Truncated latency matrix header");
+		}
+	}
+
+	public int getNumHosts() {
+		return numHosts;
+	}
+
+	/**
+	 * Decodes columns {@code from} to {@code to} of row {@code i} into the same positions of {@code row}.
+	 */
+	public void readRow(int i, float[] row, int from, int to) {
+		rows.read(i, row, from, to);
+	}
+
+	/**
+	 * @return whether the file also holds the cells in column-major order
+	 */
+	public boolean hasColumns() {
+		return columns != null;
+	}
+
+	/**
+	 * Decodes rows {@code from} to {@code to} of column {@code j} into the same positions of {@code column}.
+	 *
+	 * @throws IllegalStateException if the file has no columns
+	 */
+	public void readColumn(int j, float[] column, int from, int to) {
+		if (columns == null)
+			throw new IllegalStateException("Latency matrix has no columns");
+		columns.read(j, column, from, to);
+	}
+
+	public static void convert(Path text, OutputStream binary, int quantumNanos) throws IOException {
+		convert(text, binary, quantumNanos, false);
+	}
+
+	/**
+	 * Converts a text matrix, with one row of whitespace-separated latencies in milliseconds per line.
+	 * <p>
+	 * The text is read twice: once to size the matrix and pick a quantum that fits the largest latency, and once to
+	 * write the cells. The column-major copy takes one more pass for each block of columns that fits in memory.
+	 *
+	 * @param quantumNanos smallest quantum to use, 0 to store the latencies as floats
+	 * @param columns      also store the cells in column-major order
+	 */
+	public static void convert(Path text, OutputStream binary, int quantumNanos, boolean columns) throws IOException {
+		int numHosts = 0;
+		float max = 0;
+		try (BufferedReader reader = Files.newBufferedReader(text)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				for (String cell : line.trim().split("\\s+")) {
+					float latency = Float.parseFloat(cell);
+					if (!Float.isNaN(latency))
+						max = Math.max(max, latency);
+				}
+				numHosts++;
+			}
+		}
+
+		short encoding = quantumNanos > 0 ? UINT16 : FLOAT32;
+		if (encoding == UINT16) {
+			int minQuantum = (int) Math.ceil(max * 1_000_000D / MAX_QUANTA);
+			if (minQuantum > quantumNanos) {
+				logger.warn("Latencies up to {}ms do not fit {}ns quanta, using {}ns", max, quantumNanos, minQuantum);
+				quantumNanos = minQuantum;
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(binary);
+		out.writeInt(MAGIC);
+		out.writeShort(columns ? TRANSPOSED_FORMAT_VERSION : FORMAT_VERSION);
+		out.writeShort(encoding);
+		out.writeInt(numHosts);
+		out.writeInt(Math.max(0, quantumNanos));
+
+		try (BufferedReader reader = Files.newBufferedReader(text)) {
+			String line;
+			int i = 0;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				String[] cells = line.trim().split("\\s+");
+				if (cells.length != numHosts)
+					throw new IOException("Latency matrix row " + i + " has " + cells.length + " columns, expected " + numHosts);
+				for (String cell : cells)
+					writeCell(out, encoding, quantumNanos, Float.parseFloat(cell));
+				i++;
+			}
+		}
+
+		if (columns) {
+			int blockColumns = (int) Math.max(1, Math.min(numHosts, TRANSPOSE_BLOCK_CELLS / Math.max(1, numHosts)));
+			float[] block = new float[blockColumns * numHosts];
+			for (int first = 0; first < numHosts; first += blockColumns) {
+				int last = Math.min(numHosts, first + blockColumns) - 1;
+				try (BufferedReader reader = Files.newBufferedReader(text)) {
+					String line;
+					int i = 0;
+					while ((line = reader.readLine()) != null) {
+						if (line.trim().isEmpty())
+							continue;
+						String[] cells = line.trim().split("\\s+");
+						for (int j = first; j <= last; j++)
+							block[(j - first) * numHosts + i] = Float.parseFloat(cells[j]);
+						i++;
+					}
+				}
+				for (int c = 0; c < (last - first + 1) * numHosts; c++)
+					writeCell(out, encoding, quantumNanos, block[c]);
+			}
+		}
+		out.flush();
+		logger.info("Converted {}x{} latency matrix{}", numHosts, numHosts, columns ? " with columns" : "");
+	}
+
+	private static void writeCell(DataOutputStream out, short encoding, int quantumNanos, float latency) throws IOException {
+		if (encoding == FLOAT32)
+			out.writeFloat(latency);
+		else
+			out.writeShort(Float.isNaN(latency) ? UNKNOWN : (int) Math.round(latency * 1_000_000D / quantumNanos));
+	}
+
+	/**
+	 * A square of cells in line-major order, rows or columns, mapped in chunks of whole lines: a single buffer cannot
+	 * span more than 2GB.
+	 */
+	private final class Cells {
+		private final ByteBuffer[] chunks;
+		private final int linesPerChunk;
+
+		Cells(ChunkMapper mapper, long position) throws IOException {
+			long lineBytes = (long) numHosts * cellSize;
+			linesPerChunk = (int) Math.max(1, Math.min(numHosts, Integer.MAX_VALUE / Math.max(1, lineBytes)));
+			chunks = new ByteBuffer[(numHosts + linesPerChunk - 1) / linesPerChunk];
+			for (int c = 0; c < chunks.length; c++) {
+				int lines = Math.min(linesPerChunk, numHosts - c * linesPerChunk);
+				chunks[c] = mapper.map(position + c * linesPerChunk * lineBytes, lines * lineBytes);
+			}
+		}
+
+		void read(int line, float[] cells, int from, int to) {
+			ByteBuffer chunk = chunks[line / linesPerChunk];
+			int offset = (line % linesPerChunk) * numHosts * cellSize;
+			for (int k = from; k <= to; k++) {
+				int pos = offset + k * cellSize;
+				if (encoding == FLOAT32) {
+					cells[k] = chunk.getFloat(pos);
+				} else {
+					int quanta = chunk.getShort(pos) & 0xFFFF;
+					cells[k] = quanta == UNKNOWN ? Float.NaN : quanta * msPerQuantum;
+				}
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface ChunkMapper {
+		ByteBuffer map(long position, long size) throws IOException;
+	}
+}
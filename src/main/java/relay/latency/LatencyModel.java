@@ -0,0 +1,44 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of the latency, in milliseconds, between two hosts, identified by their position in the host list.
+ */
+public interface LatencyModel {
+
+	String MATRIX = "matrix";
+	String REGION = "region";
+	String COORDINATES = "coordinates";
+
+	/**
+	 * @return latency from {@code from} to {@code to}, or {@link Float#NaN} if it is not known
+	 */
+	float getLatency(int from, int to);
+
+	float getLatency(Host from, Host to);
+
+	void changeLatency(int from, int to, float latency);
+
+	/**
+	 * @param model one of {@link #MATRIX}, {@link #REGION} or {@link #COORDINATES}
+	 * @param start first host handled by this relay, only models that store per-pair latencies use it
+	 * @param end   last host handled by this relay
+	 */
+	static LatencyModel load(String model, HostIndex index, InputStream config, int start, int end, boolean symmetric) throws IOException {
+		switch (model) {
+			case MATRIX:
+				return new LatencyMatrix(index, config, start, end, symmetric);
+			case REGION:
+				return new RegionLatencyModel(index, config, symmetric);
+			case COORDINATES:
+				return new CoordinateLatencyModel(index, config, symmetric);
+			default:
+				throw new IllegalArgumentException("Unknown latency model: " + model);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package relay.latency;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency time series, one per link or per region pair, that replace the latencies of the {@link LatencyModel} as
+ * the experiment goes on. Each series holds one latency per epoch of fixed duration, and the trace starts over once
+ * its last epoch ends.
+ * <p>
+ * The values of the current epoch are decoded into an immutable snapshot, which a timer thread swaps at every epoch
+ * boundary. Lookups only read the current snapshot, without locking or allocating.
+ * <p>
+ * The binary file starts with a 24 byte header: {@link #MAGIC}, a format version, the kind of series, the number of
+ * series, the number of epochs, the epoch duration in milliseconds and the quantum in nanoseconds. The sorted
+ * {@code (from, to)} int pairs identifying each series follow, then one column per epoch with a uint16 number of
+ * quanta per series, 0xFFFF keeping the latency of the model. Everything is big-endian.
+ */
+public class LatencyTrace {
+
+	private static final Logger logger = LogManager.getLogger(LatencyTrace.class);
+
+	public static final int MAGIC = 0x524C5452; // "RLTR"
+	public static final short FORMAT_VERSION = 1;
+	public static final short LINK = 0;
+	public static final short REGION = 1;
+
+	private static final int HEADER_SIZE = 24;
+	private static final int UNCHANGED = 0xFFFF;
+	private static final int MAX_QUANTA = UNCHANGED - 1;
+
+	private final short kind;
+	private final int numSeries;
+	private final int numEpochs;
+	private final long epochMillis;
+	private final float msPerQuantum;
+	// sorted (from << 32 | to) of each series
+	private final long[] keys;
+	private final ByteBuffer columns;
+	private final RegionLatencyModel regions;
+	private final long start;
+
+	private volatile Snapshot current;
+	private Timer timer;
+
+	/**
+	 * @param model latency model of the relay, must be a {@link RegionLatencyModel} for per-region traces
+	 */
+	public LatencyTrace(Path file, LatencyModel model) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException("Not a latency trace: " + file);
+			if (header.getShort(4) != FORMAT_VERSION)
+				throw new IOException("Unsupported latency trace format version " + header.getShort(4));
+			kind = header.getShort(6);
+			numSeries = header.getInt(8);
+			numEpochs = header.getInt(12);
+			epochMillis = header.getInt(16);
+			msPerQuantum = header.getInt(20) / 1_000_000F;
+			if (kind != LINK && kind != REGION)
+				throw new IOException("Unknown latency trace kind " + kind);
+			if (numEpochs < 1 || epochMillis < 1)
+				throw new IOException("Latency trace without epochs");
+
+			ByteBuffer keyBuffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) numSeries * 2 * Integer.BYTES);
+			keys = new long[numSeries];
+			for (int i = 0; i < numSeries; i++)
+				keys[i] = pairKey(keyBuffer.getInt(), keyBuffer.getInt());
+
+			// the mapping stays valid once the channel is closed
+			columns = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) numSeries * 2 * Integer.BYTES,
+					(long) numEpochs * numSeries * Short.BYTES);
+		}
+
+		if (kind == REGION) {
+			if (!(model instanceof RegionLatencyModel))
+				throw new IllegalArgumentException("Per-region latency traces need the region latency model");
+			regions = (RegionLatencyModel) model;
+		} else {
+			regions = null;
+		}
+
+		start = System.nanoTime();
+		current = snapshot(0);
+		logger.info("Loaded latency trace with {} {} series of {} epochs of {}ms", numSeries, kind == LINK ? "link" : "region", numEpochs, epochMillis);
+	}
+
+	/**
+	 * Starts swapping snapshots at every epoch boundary.
+	 */
+	public void start() {
+		timer = new Timer("LatencyTrace", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				int epoch = (int) ((elapsed / epochMillis) % numEpochs);
+				if (epoch != current.epoch) {
+					current = snapshot(epoch);
+					logger.debug("Latency trace epoch {}", epoch);
+				}
+			}
+		}, epochMillis, epochMillis);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel();
+	}
+
+	private Snapshot snapshot(int epoch) {
+		int offset = epoch * numSeries * Short.BYTES;
+		if (kind == LINK) {
+			float[] values = new float[numSeries];
+			for (int i = 0; i < numSeries; i++)
+				values[i] = decode(columns.getShort(offset + i * Short.BYTES));
+			return new Snapshot(epoch, values, null, 0);
+		}
+
+		// region pairs are few, so a dense table of differences to the model is cheaper to look up
+		int numRegions = regions.getNumRegions();
+		float[] deltas = new float[numRegions * numRegions];
+		for (int i = 0; i < numSeries; i++) {
+			int r = (int) (keys[i] >> 32);
+			int s = (int) keys[i];
+			float value = decode(columns.getShort(offset + i * Short.BYTES));
+			if (r < 0 || r >= numRegions || s < 0 || s >= numRegions || Float.isNaN(value))
+				continue;
+			deltas[r * numRegions + s] = value - regions.getRegionLatency(r, s);
+		}
+		return new Snapshot(epoch, null, deltas, numRegions);
+	}
+
+	private float decode(short cell) {
+		int quanta = cell & 0xFFFF;
+		return quanta == UNCHANGED ? Float.NaN : quanta * msPerQuantum;
+	}
+
+	/**
+	 * @param latency latency given by the model
+	 * @return latency from {@code from} to {@code to} in the current epoch
+	 */
+	public float getLatency(int from, int to, float latency) {
+		if (from < 0 || to < 0 || from == to)
+			return latency;
+
+		Snapshot snapshot = current;
+		if (snapshot.values != null) {
+			int i = Arrays.binarySearch(keys, pairKey(from, to));
+			return i < 0 || Float.isNaN(snapshot.values[i]) ? latency : snapshot.values[i];
+		}
+		return latency + snapshot.deltas[regions.getRegion(from) * snapshot.numRegions + regions.getRegion(to)];
+	}
+
+	public int getEpoch() {
+		return current.epoch;
+	}
+
+	private static long pairKey(int from, int to) {
+		return ((long) from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Converts a text trace. The first line holds the kind of series ({@code link} or {@code region}) and the epoch
+	 * duration in milliseconds; each following line holds the {@code from} and {@code to} of a series and its
+	 * latency in every epoch, with {@code -} keeping the latency of the model.
+	 */
+	public static void convert(Path text, OutputStream binary, int quantumNanos) throws IOException {
+		short kind;
+		int epochMillis;
+		List<long[]> keys = new ArrayList<>();
+		List<float[]> series = new ArrayList<>();
+		float max = 0;
+		try (BufferedReader reader = Files.newBufferedReader(text)) {
+			String line = reader.readLine();
+			if (line == null)
+				throw new IOException("Empty latency trace");
+			String[] header = line.trim().split("\\s+");
+			if (header.length != 2 || !(header[0].equals("link") || header[0].equals("region")))
+				throw new IOException("Latency trace must start with \"link|region epoch_ms\": " + line);
+			kind = header[0].equals("link") ? LINK : REGION;
+			epochMillis = Integer.parseInt(header[1]);
+
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] cells = line.split("\\s+");
+				float[] values = new float[cells.length - 2];
+				for (int e = 0; e < values.length; e++) {
+					values[e] = cells[e + 2].equals("-") ? Float.NaN : Float.parseFloat(cells[e + 2]);
+					if (!Float.isNaN(values[e]))
+						max = Math.max(max, values[e]);
+				}
+				if (!series.isEmpty() && values.length != series.get(0).length)
+					throw new IOException("Latency trace series have different lengths: " + line);
+				keys.add(new long[]{pairKey(Integer.parseInt(cells[0]), Integer.parseInt(cells[1])), series.size()});
+				series.add(values);
+			}
+		}
+		if (series.isEmpty())
+			throw new IOException("Latency trace without series");
+
+		int minQuantum = (int) Math.ceil(max * 1_000_000D / MAX_QUANTA);
+		if (minQuantum > quantumNanos) {
+			logger.warn("Latencies up to {}ms do not fit {}ns quanta, using {}ns", max, quantumNanos, minQuantum);
+			quantumNanos = minQuantum;
+		}
+
+		keys.sort(Comparator.comparingLong(k -> k[0]));
+		int numEpochs = series.get(0).length;
+
+		DataOutputStream out = new DataOutputStream(binary);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeShort(kind);
+		out.writeInt(series.size());
+		out.writeInt(numEpochs);
+		out.writeInt(epochMillis);
+		out.writeInt(quantumNanos);
+		for (long[] key : keys) {
+			out.writeInt((int) (key[0] >> 32));
+			out.writeInt((int) key[0]);
+		}
+		for (int e = 0; e < numEpochs; e++) {
+			for (long[] key : keys) {
+				float value = series.get((int) key[1])[e];
+				out.writeShort(Float.isNaN(value) ? UNCHANGED : (int) Math.round(value * 1_000_000D / quantumNanos));
+			}
+		}
+		out.flush();
+		logger.info("Converted latency trace with {} series of {} epochs", series.size(), numEpochs);
+	}
+
+	private static final class Snapshot {
+		final int epoch;
+		// per series, for link traces
+		final float[] values;
+		// per region pair, for region traces
+		final float[] deltas;
+		final int numRegions;
+
+		Snapshot(int epoch, float[] values, float[] deltas, int numRegions) {
+			this.epoch = epoch;
+			this.values = values;
+			this.deltas = deltas;
+			this.numRegions = numRegions;
+		}
+	}
+}
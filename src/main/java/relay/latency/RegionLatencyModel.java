@@ -0,0 +1,75 @@
+package relay.latency;
+
+import relay.util.ConfigUtils;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hosts grouped in regions: the latency between two hosts is the access latency of the sender, the latency between
+ * their regions and the access latency of the receiver.
+ * <p>
+ * The {@code [regions]} section holds the inter-region matrix, one row per line, where row {@code r} holds the
+ * latencies from region {@code r}. The {@code [hosts]} section holds one {@code region access_latency} line per host,
+ * in host list order.
+ */
+public class RegionLatencyModel extends CompactLatencyModel {
+
+	static final String REGIONS_SECTION = "regions";
+	static final String HOSTS_SECTION = "hosts";
+
+	private final float[][] regionLatency;
+	private final int[] region;
+	private final float[] access;
+
+	public RegionLatencyModel(HostIndex index, InputStream config, boolean symmetric) throws IOException {
+		super(index, symmetric);
+		Map<String, List<String[]>> sections = ConfigUtils.readSections(config);
+
+		List<String[]> regions = section(sections, REGIONS_SECTION, true);
+		int numRegions = regions.size();
+		regionLatency = new float[numRegions][numRegions];
+		for (int r = 0; r < numRegions; r++) {
+			String[] row = regions.get(r);
+			if (row.length != numRegions)
+				throw new IOException("Region latency row " + r + " has " + row.length + " columns, expected " + numRegions);
+			for (int s = 0; s < numRegions; s++)
+				regionLatency[r][s] = Float.parseFloat(row[s]);
+		}
+
+		List<String[]> hosts = section(sections, HOSTS_SECTION, true);
+		if (hosts.size() < numHosts())
+			throw new IOException("Region model has " + hosts.size() + " hosts, expected " + numHosts());
+		region = new int[numHosts()];
+		access = new float[numHosts()];
+		for (int i = 0; i < numHosts(); i++) {
+			String[] host = hosts.get(i);
+			region[i] = Integer.parseInt(host[0]);
+			if (region[i] < 0 || region[i] >= numRegions)
+				throw new IOException("Host " + i + " in unknown region " + region[i]);
+			access[i] = host.length > 1 ? Float.parseFloat(host[1]) : 0;
+		}
+
+		readOverrides(sections);
+	}
+
+	public int getNumRegions() {
+		return regionLatency.length;
+	}
+
+	public int getRegion(int host) {
+		return region[host];
+	}
+
+	public float getRegionLatency(int from, int to) {
+		return regionLatency[from][to];
+	}
+
+	@Override
+	protected float modelLatency(int from, int to) {
+		return access[from] + regionLatency[region[from]][region[to]] + access[to];
+	}
+}
@@ -1,50 +1,150 @@
 package relay.latency;
 
-import io.netty.channel.DefaultEventLoop;
 import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayMessage;
+import relay.util.HostIndex;
 
-import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Fires delayed sends from timing wheels, either on threads of its own or, when sharded, on the Netty event loops of
+ * the peers' channels.
+ * <p>
+ * Sharded, each peer is owned by the loop of its channel, given by {@link #assign(Host, EventLoop)}: its events are
+ * fired there, and added there without any handoff when they come from that same loop. Events from any other thread
+ * cross over through the wheel's lock-free queue. Every wheel is created up front, so {@link #getQueued(int)} covers
+ * all events waiting to fire.
+ */
 public class Scheduler {
 
-	private final Map<Host, Queue<SendMessageEvent>> eventQueuePerPeer;
-	private final Map<Host, Thread> eventThreadPerPeer;
+	private static final Logger logger = LogManager.getLogger(Scheduler.class);
+
+	public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long HIGH_RES_TICK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final TimingWheel[] wheels;
+	private final HostIndex peerIndex;
+	// by position in the peer list
+	private final AtomicReferenceArray<TimingWheel> wheelPerPeer;
+	// null unless sharded
+	private final Map<EventLoop, TimingWheel> wheelPerLoop;
 
 	public Scheduler(List<Host> peerList) {
-		eventQueuePerPeer = new HashMap<>(peerList.size());
-		eventThreadPerPeer = new HashMap<>(peerList.size());
-		for (Host peer : peerList) {
-			Queue<SendMessageEvent> eventQueue = new PriorityBlockingQueue<>();
-			eventQueuePerPeer.put(peer, eventQueue);
-			Thread eventThread = new Thread(() -> this.eventLoop(eventQueue, new DefaultEventLoop()));
-			eventThreadPerPeer.put(peer, eventThread);
-			eventThread.start();
-		}
+		this(peerList, DEFAULT_THREADS);
 	}
 
-	private void eventLoop(Queue<SendMessageEvent> eventQueue, EventLoop loop) {
-		while (true) {
-			SendMessageEvent event = eventQueue.peek();
+	public Scheduler(List<Host> peerList, int numThreads) {
+		this(peerList, numThreads, false);
+	}
 
-			long toSleep = event != null ? event.getSendTime() - System.currentTimeMillis() : Long.MAX_VALUE;
+	/**
+	 * @param highResolution fire each event at its exact deadline, spinning for the last stretch of the wait,
+	 *                       instead of at the end of the millisecond it falls in
+	 */
+	public Scheduler(List<Host> peerList, int numThreads, boolean highResolution) {
+		HybridWaiter waiter = highResolution ? HybridWaiter.calibrate() : HybridWaiter.PARK_ONLY;
+		long tickNanos = highResolution ? HIGH_RES_TICK_NANOS : TICK_NANOS;
 
-			if (toSleep <= 0) {
-				SendMessageEvent e = eventQueue.remove();
-				loop.submit(e.getRunnable());
-			} else {
-				try {
-					Thread.sleep(toSleep);
-				} catch (InterruptedException ignored) {
-				}
+		wheels = new TimingWheel[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			wheels[i] = new TimingWheel(tickNanos, waiter, highResolution);
+			Thread wheelThread = new Thread(wheels[i], "Scheduler-" + i);
+			wheelThread.start();
+		}
+
+		// all events of a sender go through the same wheel, keeping them in order
+		peerIndex = new HostIndex(peerList);
+		wheelPerPeer = new AtomicReferenceArray<>(peerList.size());
+		for (int i = 0; i < peerList.size(); i++)
+			wheelPerPeer.set(i, wheels[i % numThreads]);
+		wheelPerLoop = null;
+	}
+
+	/**
+	 * Sharded scheduler, with one wheel per event loop of {@code group} and no threads of its own.
+	 */
+	public Scheduler(List<Host> peerList, EventLoopGroup group) {
+		wheelPerLoop = new ConcurrentHashMap<>();
+		List<TimingWheel> loopWheels = new ArrayList<>();
+		for (EventExecutor executor : group) {
+			if (executor instanceof EventLoop) {
+				TimingWheel wheel = new TimingWheel(TICK_NANOS, (EventLoop) executor);
+				wheelPerLoop.put((EventLoop) executor, wheel);
+				loopWheels.add(wheel);
 			}
 		}
+		if (loopWheels.isEmpty())
+			throw new IllegalArgumentException("No event loops to shard the scheduler over");
+		wheels = loopWheels.toArray(new TimingWheel[0]);
+		peerIndex = new HostIndex(peerList);
+		wheelPerPeer = new AtomicReferenceArray<>(peerList.size());
+	}
+
+	public boolean isSharded() {
+		return wheelPerLoop != null;
+	}
+
+	/**
+	 * Makes {@code loop} the owner of the events sent by {@code peer}, and of those sent to it by peers without an
+	 * owner. Ignored unless sharded, for peers outside the peer list, and for loops outside the scheduler's group.
+	 * <p>
+	 * Only events added afterwards follow the new owner: those of a {@link DelayLine} stay on the wheel its first event
+	 * went to.
+	 */
+	public void assign(Host peer, EventLoop loop) {
+		int index = peerIndex.indexOf(peer);
+		if (wheelPerLoop == null || index == HostIndex.UNKNOWN)
+			return;
+		TimingWheel wheel = wheelPerLoop.get(loop);
+		if (wheel == null)
+			logger.warn("Event loop of {} is outside the scheduler's group, keeping its events where they are", peer);
+		else
+			wheelPerPeer.set(index, wheel);
+	}
+
+	public int getNumThreads() {
+		return wheels.length;
+	}
+
+	/**
+	 * @return events of the given thread, or event loop if sharded, waiting to fire
+	 */
+	public long getQueued(int thread) {
+		return wheels[thread].size();
 	}
 
 	public void addEvent(SendMessageEvent event) {
-		Host sender = event.getMsg().getFrom();
-		eventQueuePerPeer.get(sender).add(event);
-		eventThreadPerPeer.get(sender).interrupt();
+		wheelFor(event.getMsg()).add(event);
+	}
+
+	/**
+	 * @return the wheel currently firing the events of {@code msg}'s sender towards its receiver
+	 */
+	TimingWheel wheelFor(RelayMessage msg) {
+		Host sender = msg.getFrom();
+		TimingWheel wheel = wheelOf(sender);
+		// a remote sender keeps its order towards each receiver
+		if (wheel == null)
+			wheel = wheelOf(msg.getTo());
+		if (wheel == null)
+			wheel = wheels[Math.floorMod(sender.hashCode(), wheels.length)];
+		return wheel;
+	}
+
+	private TimingWheel wheelOf(Host peer) {
+		int index = peerIndex.indexOf(peer);
+		return index == HostIndex.UNKNOWN ? null : wheelPerPeer.get(index);
 	}
 }
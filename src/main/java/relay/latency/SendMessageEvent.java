@@ -2,35 +2,69 @@ package relay.latency;
 
 import relay.messaging.RelayMessage;
 
-public class SendMessageEvent implements Comparable<SendMessageEvent> {
+public class SendMessageEvent {
 
-	private final RelayMessage msg;
 	private final Runnable runnable;
-	private final long sendTime;
+	// reassigned when the event is reused
+	private RelayMessage msg;
+	private long deadline;
 
+	// bookkeeping of the timing wheel that holds this event
+	long remainingRounds;
+	long order;
+
+	/**
+	 * @param delay delay in milliseconds, fractions of a millisecond are kept
+	 */
 	public SendMessageEvent(RelayMessage msg, Runnable runnable, float delay) {
+		this(msg, runnable, System.nanoTime() + (long) (delay * 1_000_000D));
+	}
+
+	private SendMessageEvent(RelayMessage msg, Runnable runnable, long deadline) {
 		this.msg = msg;
 		this.runnable = runnable;
-		this.sendTime = System.currentTimeMillis() + Math.round(delay);
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @param deadline absolute deadline, in {@link System#nanoTime()} units
+	 */
+	public static SendMessageEvent at(RelayMessage msg, Runnable runnable, long deadline) {
+		return new SendMessageEvent(msg, runnable, deadline);
+	}
+
+	/**
+	 * For owners that keep at most one event of theirs in the scheduler at a time and {@link #reset} it before each
+	 * use, instead of allocating an event per message.
+	 */
+	public static SendMessageEvent reusable(Runnable runnable) {
+		return new SendMessageEvent(null, runnable, 0L);
+	}
+
+	/**
+	 * Points the event at another message and deadline. Only allowed while the event is not in a scheduler, i.e.,
+	 * before it is added or once it has fired.
+	 *
+	 * @return this event
+	 */
+	public SendMessageEvent reset(RelayMessage msg, long deadline) {
+		this.msg = msg;
+		this.deadline = deadline;
+		return this;
 	}
 
 	public Runnable getRunnable() {
 		return runnable;
 	}
 
-	public long getSendTime() {
-		return sendTime;
+	/**
+	 * @return time at which the event should fire, in {@link System#nanoTime()} units
+	 */
+	public long getDeadline() {
+		return deadline;
 	}
 
 	public RelayMessage getMsg() {
 		return msg;
 	}
-
-	@Override
-	public int compareTo(SendMessageEvent other) {
-		if (this.msg.getFrom().equals(other.msg.getFrom()) && this.msg.getTo().equals(other.msg.getTo()) && this.msg.getSeqN() != -1 && other.msg.getSeqN() != -1)
-			return this.msg.getSeqN() - other.msg.getSeqN();
-		else
-			return (int) (this.sendTime - other.sendTime);
-	}
 }
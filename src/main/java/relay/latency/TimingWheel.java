@@ -0,0 +1,231 @@
+package relay.latency;
+
+import io.netty.channel.EventLoop;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import relay.util.MpscRingBuffer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel driven by a single thread.
+ * <p>
+ * Producers hand events over through a {@link MpscRingBuffer}, which the wheel thread drains once per tick into its
+ * slots.
+ * Every tick, all events that are due are fired as one batch, ordered by deadline and, for equal deadlines, by
+ * arrival order, so events of the same sender keep the order in which they were added.
+ * <p>
+ * In precise mode a slot is expired at the start of its tick and each event of the batch is fired at its own
+ * deadline, waiting for it with a {@link HybridWaiter}. Otherwise events fire at the end of the tick they fall in.
+ * <p>
+ * A wheel may instead be driven by a Netty {@link EventLoop}, as a task repeated every tick. Events added from that
+ * loop go straight into their slot; events added from other threads still go through the ring.
+ */
+class TimingWheel implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(TimingWheel.class);
+
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+	private static final int PENDING_CAPACITY = 1 << 16;
+	private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+	private static final Comparator<SendMessageEvent> FIRE_ORDER = (e1, e2) -> {
+		int c = Long.compare(e1.getDeadline(), e2.getDeadline());
+		return c != 0 ? c : Long.compare(e1.order, e2.order);
+	};
+
+	private final long tickNanos;
+	private final EventLoop loop;
+	private final HybridWaiter waiter;
+	private final boolean precise;
+	private final MpscRingBuffer<SendMessageEvent> pending;
+	private final Consumer<SendMessageEvent> inserter;
+	private final List<SendMessageEvent>[] slots;
+	private final List<SendMessageEvent> batch;
+	private final LongAdder queued;
+	private long startTime;
+	private long tick;
+	private long order;
+
+	// firing precision since the last report
+	private long firedEvents;
+	private long totalLateness;
+	private long maxLateness;
+	private long lastReport;
+
+	TimingWheel(long tickNanos, HybridWaiter waiter, boolean precise) {
+		this(tickNanos, waiter, precise, null);
+	}
+
+	/**
+	 * Starts a wheel driven by {@code loop}, which fires events at the end of the tick they fall in.
+	 */
+	TimingWheel(long tickNanos, EventLoop loop) {
+		this(tickNanos, HybridWaiter.PARK_ONLY, false, loop);
+		startTime = System.nanoTime();
+		lastReport = startTime;
+		loop.scheduleAtFixedRate(() -> advanceTo(System.nanoTime()), tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private TimingWheel(long tickNanos, HybridWaiter waiter, boolean precise, EventLoop loop) {
+		this.tickNanos = tickNanos;
+		this.loop = loop;
+		this.waiter = waiter;
+		this.precise = precise;
+		pending = new MpscRingBuffer<>(PENDING_CAPACITY);
+		inserter = this::insert;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		List<SendMessageEvent>[] slots = new List[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			slots[i] = new ArrayList<>();
+		this.slots = slots;
+		batch = new ArrayList<>();
+		queued = new LongAdder();
+	}
+
+	void add(SendMessageEvent event) {
+		queued.increment();
+		if (loop != null && loop.inEventLoop())
+			insert(event);
+		else
+			pending.offer(event);
+	}
+
+	/**
+	 * @return events added and not fired yet
+	 */
+	long size() {
+		return queued.sum();
+	}
+
+	@Override
+	public void run() {
+		startTime = System.nanoTime();
+		lastReport = startTime;
+		tick = 0;
+
+		while (!Thread.currentThread().isInterrupted()) {
+			waiter.awaitUntil(startTime + (precise ? tick : tick + 1) * tickNanos);
+
+			transferPending();
+			expireSlot(slots[(int) (tick & MASK)]);
+			fireBatch();
+			tick++;
+
+			if (precise)
+				reportPrecision();
+		}
+	}
+
+	/**
+	 * Fires every event of the ticks that ended by {@code now}, for wheels driven by an event loop.
+	 */
+	private void advanceTo(long now) {
+		transferPending();
+		long target = (now - startTime) / tickNanos;
+		for (; tick < target; tick++)
+			expireSlot(slots[(int) (tick & MASK)]);
+		fireBatch();
+	}
+
+	private void transferPending() {
+		pending.drain(inserter);
+	}
+
+	private void insert(SendMessageEvent event) {
+		long eventTick = Math.max((event.getDeadline() - startTime) / tickNanos, tick);
+		event.remainingRounds = (eventTick - tick) / WHEEL_SIZE;
+		event.order = order++;
+		slots[(int) (eventTick & MASK)].add(event);
+	}
+
+	private void expireSlot(List<SendMessageEvent> slot) {
+		int kept = 0;
+		for (int i = 0; i < slot.size(); i++) {
+			SendMessageEvent event = slot.get(i);
+			if (event.remainingRounds <= 0) {
+				batch.add(event);
+			} else {
+				event.remainingRounds--;
+				slot.set(kept++, event);
+			}
+		}
+		for (int i = slot.size() - 1; i >= kept; i--)
+			slot.remove(i);
+	}
+
+	private void fireBatch() {
+		if (batch.isEmpty())
+			return;
+
+		sort(batch);
+		for (int i = 0; i < batch.size(); i++) {
+			SendMessageEvent event = batch.get(i);
+			if (precise)
+				waiter.awaitUntil(event.getDeadline());
+
+			long lateness = System.nanoTime() - event.getDeadline();
+			firedEvents++;
+			totalLateness += lateness;
+			maxLateness = Math.max(maxLateness, lateness);
+
+			try {
+				event.getRunnable().run();
+			} catch (Throwable t) {
+				logger.error("Error firing event for {}: {}", event.getMsg(), t.getMessage());
+			}
+		}
+		queued.add(-batch.size());
+		batch.clear();
+	}
+
+	/**
+	 * Heapsort by {@link #FIRE_ORDER}, in place: {@link List#sort} allocates scratch space for lists of more than a
+	 * few dozen elements, on every tick. No two events compare equal, so stability does not matter.
+	 */
+	private static void sort(List<SendMessageEvent> events) {
+		int n = events.size();
+		for (int i = n / 2 - 1; i >= 0; i--)
+			siftDown(events, i, n);
+		for (int end = n - 1; end > 0; end--) {
+			SendMessageEvent last = events.get(end);
+			events.set(end, events.get(0));
+			events.set(0, last);
+			siftDown(events, 0, end);
+		}
+	}
+
+	private static void siftDown(List<SendMessageEvent> heap, int i, int n) {
+		SendMessageEvent event = heap.get(i);
+		int child;
+		while ((child = 2 * i + 1) < n) {
+			if (child + 1 < n && FIRE_ORDER.compare(heap.get(child + 1), heap.get(child)) > 0)
+				child++;
+			if (FIRE_ORDER.compare(heap.get(child), event) <= 0)
+				break;
+			heap.set(i, heap.get(child));
+			i = child;
+		}
+		heap.set(i, event);
+	}
+
+	private void reportPrecision() {
+		long now = System.nanoTime();
+		if (now - lastReport < REPORT_INTERVAL)
+			return;
+
+		if (firedEvents > 0)
+			logger.info("Fired {} events, lateness mean {}us, max {}us", firedEvents,
+					String.format("%.1f", totalLateness / (firedEvents * 1000D)), String.format("%.1f", maxLateness / 1000D));
+		firedEvents = 0;
+		totalLateness = 0;
+		maxLateness = 0;
+		lastReport = now;
+	}
+}
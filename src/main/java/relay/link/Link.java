@@ -0,0 +1,188 @@
+package relay.link;
+
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.bandwidth.Shaper;
+import relay.latency.DelayLine;
+import relay.messaging.RelayMessage;
+
+/**
+ * One direction of a peer pair: everything needed to route a message from {@link #getFrom()} to {@link #getTo()},
+ * resolved once when the pair is first seen instead of on every message.
+ * <p>
+ * Peers may open a connection to each other in both directions, so each direction keeps the state of the
+ * connection opened by its sender.
+ */
+public class Link {
+
+	public enum State {
+		CLOSED, OPENING, ESTABLISHED
+	}
+
+	private final Host from;
+	private final Host to;
+	private final boolean toLocal;
+	Link reverse;
+
+	private volatile State state;
+	private volatile float latency;
+	private volatile int fromIndex = -1;
+	private volatile int toIndex = -1;
+	private volatile Shaper outShaper;
+	private volatile Shaper inShaper;
+	private volatile Shaper pathShaper;
+	private volatile DelayLine delayLine;
+	private volatile Connection<RelayMessage> destination;
+
+	Link(Host from, Host to, boolean toLocal) {
+		this.from = from;
+		this.to = to;
+		this.toLocal = toLocal;
+		this.state = State.CLOSED;
+	}
+
+	public Host getFrom() {
+		return from;
+	}
+
+	public Host getTo() {
+		return to;
+	}
+
+	/**
+	 * @return whether the receiver is a peer of this relay, rather than of another relay
+	 */
+	public boolean isToLocal() {
+		return toLocal;
+	}
+
+	/**
+	 * @return whether the sender is a peer of this relay
+	 */
+	public boolean isFromLocal() {
+		return reverse.toLocal;
+	}
+
+	public Link getReverse() {
+		return reverse;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return false if the sender already had a connection open to the receiver
+	 */
+	public synchronized boolean open() {
+		if (state != State.CLOSED)
+			return false;
+		state = State.OPENING;
+		return true;
+	}
+
+	/**
+	 * @return false if the sender had no connection open to the receiver
+	 */
+	public synchronized boolean accept() {
+		if (state == State.CLOSED)
+			return false;
+		state = State.ESTABLISHED;
+		return true;
+	}
+
+	/**
+	 * @return false if the sender had no connection open to the receiver
+	 */
+	public synchronized boolean close() {
+		if (state == State.CLOSED)
+			return false;
+		state = State.CLOSED;
+		return true;
+	}
+
+	/**
+	 * @return whether messages may flow between both peers, i.e., either of them opened a connection to the other
+	 */
+	public boolean isUsable() {
+		return state != State.CLOSED || reverse.state != State.CLOSED;
+	}
+
+	public float getLatency() {
+		return latency;
+	}
+
+	public void setLatency(float latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @return position of the sender in the peer list, -1 if unknown
+	 */
+	public int getFromIndex() {
+		return fromIndex;
+	}
+
+	public int getToIndex() {
+		return toIndex;
+	}
+
+	public void setIndices(int fromIndex, int toIndex) {
+		this.fromIndex = fromIndex;
+		this.toIndex = toIndex;
+	}
+
+	/**
+	 * @return shaper of the traffic leaving the sender, shared with its other links
+	 */
+	public Shaper getOutShaper() {
+		return outShaper;
+	}
+
+	/**
+	 * @return shaper of the traffic arriving at the receiver, shared with its other links
+	 */
+	public Shaper getInShaper() {
+		return inShaper;
+	}
+
+	public void setShapers(Shaper outShaper, Shaper inShaper) {
+		this.outShaper = outShaper;
+		this.inShaper = inShaper;
+	}
+
+	/**
+	 * @return cap of the path between the sender and the receiver, shared with other links, null if uncapped
+	 */
+	public Shaper getPathShaper() {
+		return pathShaper;
+	}
+
+	public void setPathShaper(Shaper pathShaper) {
+		this.pathShaper = pathShaper;
+	}
+
+	/**
+	 * @return delayed sends of the link, in the order they must leave
+	 */
+	public DelayLine getDelayLine() {
+		return delayLine;
+	}
+
+	public void setDelayLine(DelayLine delayLine) {
+		this.delayLine = delayLine;
+	}
+
+	public Connection<RelayMessage> getDestination() {
+		return destination;
+	}
+
+	public void setDestination(Connection<RelayMessage> destination) {
+		this.destination = destination;
+	}
+
+	@Override
+	public String toString() {
+		return "Link{" + from + "->" + to + ", state=" + state + '}';
+	}
+}
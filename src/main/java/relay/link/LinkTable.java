@@ -0,0 +1,190 @@
+package relay.link;
+
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayMessage;
+import relay.util.HostIndex;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Interned {@link Link}s of the peer pairs that went through this relay, with an adjacency index per peer.
+ * <p>
+ * Both directions of a pair are created and removed together. Lookups are lock-free; creation and removal are
+ * rare and serialized.
+ * <p>
+ * Links between peers of the peer list are also kept in a row per sender, sorted by receiver index, which the hot
+ * path searches without hashing hosts: {@link Host#hashCode()} allocates on every call. Rows are immutable and
+ * replaced whole when a pair is created or removed.
+ */
+public class LinkTable {
+
+	private final Map<Host, Map<Host, Link>> adjacency;
+	private final HostIndex peerIndex;
+	private final AtomicReferenceArray<Row> rows;
+	private final Predicate<Host> isLocal;
+	private final Consumer<Link> initializer;
+
+	/**
+	 * @param isLocal     whether a peer is handled by this relay
+	 * @param initializer resolves the latency, buckets and destination of a newly created link
+	 */
+	public LinkTable(HostIndex peerIndex, Predicate<Host> isLocal, Consumer<Link> initializer) {
+		this.adjacency = new ConcurrentHashMap<>(peerIndex.size());
+		this.peerIndex = peerIndex;
+		this.rows = new AtomicReferenceArray<>(peerIndex.size());
+		this.isLocal = isLocal;
+		this.initializer = initializer;
+	}
+
+	public Link get(Host from, Host to) {
+		int sender = peerIndex.indexOf(from);
+		int receiver = peerIndex.indexOf(to);
+		if (sender != HostIndex.UNKNOWN && receiver != HostIndex.UNKNOWN) {
+			Row row = rows.get(sender);
+			return row == null ? null : row.get(receiver);
+		}
+		Map<Host, Link> links = adjacency.get(from);
+		return links == null ? null : links.get(to);
+	}
+
+	/**
+	 * Pairs are created closed. A pair created for a message outside any open pair, such as a connection failure,
+	 * stays in the table until either peer disconnects, so later messages of the pair reuse its link.
+	 */
+	public synchronized Link getOrCreate(Host from, Host to) {
+		Link link = get(from, to);
+		if (link != null)
+			return link;
+
+		link = create(from, to);
+		Link reverse = link.reverse;
+		adjacency.computeIfAbsent(from, k -> new ConcurrentHashMap<>()).put(to, link);
+		adjacency.computeIfAbsent(to, k -> new ConcurrentHashMap<>()).put(from, reverse);
+		index(link);
+		index(reverse);
+		return link;
+	}
+
+	private Link create(Host from, Host to) {
+		Link link = new Link(from, to, isLocal.test(to));
+		Link reverse = new Link(to, from, isLocal.test(from));
+		link.reverse = reverse;
+		reverse.reverse = link;
+		initializer.accept(link);
+		initializer.accept(reverse);
+		return link;
+	}
+
+	/**
+	 * Removes both directions of the pair.
+	 */
+	public synchronized void remove(Link link) {
+		removeDirection(link);
+		removeDirection(link.reverse);
+	}
+
+	private void removeDirection(Link link) {
+		Map<Host, Link> links = adjacency.get(link.getFrom());
+		if (links != null) {
+			links.remove(link.getTo(), link);
+			if (links.isEmpty())
+				adjacency.remove(link.getFrom());
+		}
+		int sender = peerIndex.indexOf(link.getFrom());
+		int receiver = peerIndex.indexOf(link.getTo());
+		if (sender != HostIndex.UNKNOWN && receiver != HostIndex.UNKNOWN) {
+			Row row = rows.get(sender);
+			if (row != null && row.get(receiver) == link)
+				rows.set(sender, row.without(receiver));
+		}
+	}
+
+	private void index(Link link) {
+		int sender = peerIndex.indexOf(link.getFrom());
+		int receiver = peerIndex.indexOf(link.getTo());
+		if (sender != HostIndex.UNKNOWN && receiver != HostIndex.UNKNOWN) {
+			Row row = rows.get(sender);
+			rows.set(sender, row == null ? Row.EMPTY.with(receiver, link) : row.with(receiver, link));
+		}
+	}
+
+	/**
+	 * Makes every link that was sending to {@code con} resolve its destination again.
+	 */
+	public void forgetDestination(Connection<RelayMessage> con) {
+		for (Map<Host, Link> links : adjacency.values()) {
+			for (Link link : links.values()) {
+				if (link.getDestination() == con)
+					link.setDestination(null);
+			}
+		}
+	}
+
+	/**
+	 * @return the links that have {@code peer} as sender
+	 */
+	public Collection<Link> linksOf(Host peer) {
+		Map<Host, Link> links = adjacency.get(peer);
+		return links == null ? Collections.emptyList() : links.values();
+	}
+
+	/**
+	 * Links of a sender, sorted by receiver index.
+	 */
+	private static final class Row {
+		static final Row EMPTY = new Row(new int[0], new Link[0]);
+
+		final int[] receivers;
+		final Link[] links;
+
+		Row(int[] receivers, Link[] links) {
+			this.receivers = receivers;
+			this.links = links;
+		}
+
+		Link get(int receiver) {
+			int i = Arrays.binarySearch(receivers, receiver);
+			return i < 0 ? null : links[i];
+		}
+
+		Row with(int receiver, Link link) {
+			int i = Arrays.binarySearch(receivers, receiver);
+			if (i >= 0) {
+				Link[] replaced = links.clone();
+				replaced[i] = link;
+				return new Row(receivers, replaced);
+			}
+			int at = -i - 1;
+			int[] newReceivers = new int[receivers.length + 1];
+			Link[] newLinks = new Link[links.length + 1];
+			System.arraycopy(receivers, 0, newReceivers, 0, at);
+			System.arraycopy(links, 0, newLinks, 0, at);
+			newReceivers[at] = receiver;
+			newLinks[at] = link;
+			System.arraycopy(receivers, at, newReceivers, at + 1, receivers.length - at);
+			System.arraycopy(links, at, newLinks, at + 1, links.length - at);
+			return new Row(newReceivers, newLinks);
+		}
+
+		Row without(int receiver) {
+			int at = Arrays.binarySearch(receivers, receiver);
+			if (at < 0)
+				return this;
+			int[] newReceivers = new int[receivers.length - 1];
+			Link[] newLinks = new Link[links.length - 1];
+			System.arraycopy(receivers, 0, newReceivers, 0, at);
+			System.arraycopy(links, 0, newLinks, 0, at);
+			System.arraycopy(receivers, at + 1, newReceivers, at, newReceivers.length - at);
+			System.arraycopy(links, at + 1, newLinks, at, newLinks.length - at);
+			return new Row(newReceivers, newLinks);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package relay.loadgen;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU time consumed by the relay under load.
+ */
+public interface CpuClock {
+
+	/**
+	 * @return CPU time in nanoseconds since some fixed point, or -1 if unavailable
+	 */
+	long cpuNanos();
+
+	/**
+	 * CPU time of this JVM, for relays running in the same process as the load generator, whose own work is then
+	 * accounted to the relay as well.
+	 */
+	static CpuClock ofThisProcess() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (!(os instanceof com.sun.management.OperatingSystemMXBean))
+			return () -> -1;
+		return ((com.sun.management.OperatingSystemMXBean) os)::getProcessCpuTime;
+	}
+
+	/**
+	 * CPU time of another process on this Linux box, read from {@code /proc/<pid>/stat}.
+	 */
+	static CpuClock ofProcess(long pid) {
+		// USER_HZ is 100 on every mainstream Linux architecture
+		long nanosPerTick = TimeUnit.SECONDS.toNanos(1) / 100;
+		return () -> {
+			try {
+				String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")));
+				// the command name may contain spaces, the fields after it do not
+				String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+				return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * nanosPerTick;
+			} catch (IOException | RuntimeException e) {
+				return -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,85 @@
+package relay.loadgen;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Promise;
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Attributes;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.Relay;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+
+import java.util.function.Consumer;
+
+/**
+ * Connection of a synthetic peer as seen by a relay in the same process: messages are handed over as objects,
+ * without serialization or sockets.
+ * <p>
+ * A message counts as written once the downlink returns, and the relay then releases it, so the downlink must not
+ * keep or release the messages it is given.
+ */
+public class InProcessConnection implements Connection<RelayMessage> {
+
+	private final Host peer;
+	private final Attributes peerAttributes;
+	private final EventLoop loop;
+	private final Consumer<RelayMessage> downlink;
+
+	/**
+	 * @param downlink receives the messages the relay sends to the peer
+	 */
+	public InProcessConnection(Host peer, EventLoop loop, Consumer<RelayMessage> downlink) {
+		this.peer = peer;
+		this.loop = loop;
+		this.downlink = downlink;
+		peerAttributes = new Attributes();
+		peerAttributes.putHost(Relay.LISTEN_ADDRESS_ATTRIBUTE, peer);
+		peerAttributes.putShort(Relay.WIRE_VERSION_ATTRIBUTE, RelayMessageSerializer.CURRENT_VERSION);
+	}
+
+	@Override
+	public Host getPeer() {
+		return peer;
+	}
+
+	@Override
+	public Attributes getPeerAttributes() {
+		return peerAttributes;
+	}
+
+	@Override
+	public Attributes getSelfAttributes() {
+		return new Attributes();
+	}
+
+	@Override
+	public void disconnect() {
+	}
+
+	@Override
+	public boolean isInbound() {
+		return true;
+	}
+
+	@Override
+	public boolean isOutbound() {
+		return false;
+	}
+
+	@Override
+	public void sendMessage(RelayMessage msg, Promise<Void> promise) {
+		sendMessage(msg);
+		if (promise != null)
+			promise.trySuccess(null);
+	}
+
+	@Override
+	public void sendMessage(RelayMessage msg) {
+		downlink.accept(msg);
+	}
+
+	@Override
+	public EventLoop getLoop() {
+		return loop;
+	}
+}
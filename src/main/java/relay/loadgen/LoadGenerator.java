@@ -0,0 +1,195 @@
+package relay.loadgen;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.latency.LatencyModel;
+import relay.messaging.*;
+import relay.util.HostIndex;
+import relay.util.Histogram;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drives synthetic peers against one or more relays: each peer opens a connection to its targets and then sends them
+ * application messages at a fixed rate.
+ * <p>
+ * Every payload starts with the {@link System#nanoTime()} at which it was sent, so the receiving peer measures the
+ * emulation error, i.e., how much later than the latency of the {@link LatencyModel} the message arrived. Relays and
+ * load generator must run on the same machine for this to hold.
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int TIMESTAMP_SIZE = Long.BYTES;
+
+	private final HostIndex index;
+	private final SyntheticPeer[] peers;
+	private final LatencyModel latencyModel;
+	private final double ratePerPeer;
+	private final int payloadSize;
+
+	private final LongAdder sent;
+	private final LongAdder received;
+	private final LongAdder early;
+	private final Histogram error;
+
+	/**
+	 * @param ratePerPeer application messages per second sent by each peer, spread over its targets
+	 */
+	public LoadGenerator(List<Host> peerList, LatencyModel latencyModel, PeerGraph graph, int degree, double ratePerPeer, int payloadSize, long seed) {
+		this.index = new HostIndex(peerList);
+		this.latencyModel = latencyModel;
+		this.ratePerPeer = ratePerPeer;
+		this.payloadSize = Math.max(TIMESTAMP_SIZE, payloadSize);
+
+		Random random = new Random(seed);
+		peers = new SyntheticPeer[peerList.size()];
+		for (int i = 0; i < peers.length; i++)
+			peers[i] = new SyntheticPeer(peerList.get(i), graph.targets(i, peers.length, degree, random));
+
+		sent = new LongAdder();
+		received = new LongAdder();
+		early = new LongAdder();
+		error = new Histogram();
+	}
+
+	/**
+	 * @param uplink hands messages sent by the peer to its relay
+	 */
+	public void attach(int peer, Consumer<RelayMessage> uplink) {
+		peers[peer].attach(uplink);
+	}
+
+	/**
+	 * Handles a message the relay sent to one of the peers. May be called from any thread. The relay releases the
+	 * message once this returns.
+	 */
+	public void deliver(RelayMessage msg) {
+		if (msg.getType() == RelayMessage.Type.BATCH) {
+			List<RelayMessage> messages = ((RelayBatchMessage) msg).getMessages();
+			for (int i = 0; i < messages.size(); i++)
+				deliver(messages.get(i));
+			return;
+		}
+
+		int to = index.indexOf(msg.getTo());
+		if (to == HostIndex.UNKNOWN) {
+			logger.warn("Message to unknown peer {}", msg.getTo());
+			return;
+		}
+
+		switch (msg.getType()) {
+			case CONN_OPEN:
+				peers[to].send(new RelayConnectionAcceptMessage(-1, msg.getTo(), msg.getFrom(), System.currentTimeMillis()));
+				break;
+			case APP_MSG:
+				long now = System.nanoTime();
+				ByteBuf payload = ((RelayAppMessage) msg).getPayloadBuffer();
+				long sentAt = payload.getLong(payload.readerIndex());
+				float latency = latencyModel.getLatency(index.indexOf(msg.getFrom()), to);
+				long lateness = now - sentAt - (long) (latency * 1_000_000L);
+				if (lateness < 0)
+					early.increment();
+				error.record(lateness);
+				received.increment();
+				break;
+			default:
+				logger.debug("Peer {} got {} from {}", msg.getTo(), msg.getType(), msg.getFrom());
+		}
+	}
+
+	/**
+	 * Opens every link, waits for the relays to settle, and sends at the configured rate until the duration ends.
+	 */
+	public void run(long durationMillis, long reportMillis, CpuClock relayCpu) throws InterruptedException {
+		int attached = 0;
+		for (int i = 0; i < peers.length; i++) {
+			SyntheticPeer peer = peers[i];
+			if (!peer.isAttached())
+				continue;
+			attached++;
+			for (int target : peer.getTargets())
+				peer.send(new RelayConnectionOpenMessage(peer.nextSeqN(), peer.getHost(), peers[target].getHost(), System.currentTimeMillis()));
+		}
+		logger.info("{} of {} peers attached, opening links", attached, peers.length);
+		Thread.sleep(1000);
+
+		Histogram interval = new Histogram();
+		Histogram total = new Histogram();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		long nextReport = start + TimeUnit.MILLISECONDS.toNanos(reportMillis);
+		Sample last = new Sample(start, relayCpu);
+		Sample first = last;
+		double perTick = ratePerPeer * TICK_NANOS / TimeUnit.SECONDS.toNanos(1);
+
+		for (long tick = start; tick < end; tick += TICK_NANOS) {
+			LockSupport.parkNanos(tick - System.nanoTime());
+			for (SyntheticPeer peer : peers) {
+				if (!peer.isAttached() || peer.getTargets().length == 0)
+					continue;
+				for (int n = peer.addCredit(perTick); n > 0; n--)
+					sendApp(peer);
+			}
+
+			if (System.nanoTime() >= nextReport) {
+				Sample now = new Sample(System.nanoTime(), relayCpu);
+				error.drainTo(interval);
+				report("Interval", last, now, interval);
+				interval.drainTo(total);
+				last = now;
+				nextReport += TimeUnit.MILLISECONDS.toNanos(reportMillis);
+			}
+		}
+
+		Thread.sleep(1000);
+		Sample now = new Sample(System.nanoTime(), relayCpu);
+		error.drainTo(total);
+		report("Total", first, now, total);
+	}
+
+	private void sendApp(SyntheticPeer peer) {
+		ByteBuf payload = Unpooled.buffer(payloadSize);
+		payload.writeLong(System.nanoTime());
+		payload.writerIndex(payloadSize);
+		Host to = peers[peer.nextTarget()].getHost();
+		peer.send(new RelayAppMessage(peer.nextSeqN(), peer.getHost(), to, System.currentTimeMillis(), payload));
+		sent.increment();
+	}
+
+	private void report(String what, Sample from, Sample to, Histogram errors) {
+		double seconds = (to.time - from.time) / 1e9;
+		long msgs = to.received - from.received;
+		String cpu = from.cpu < 0 || to.cpu < 0 || msgs == 0 ? "n/a" : String.format("%.2f", (to.cpu - from.cpu) / 1000D / msgs);
+		logger.info("{}: sent {}/s, relayed {}/s, relay CPU {}us/msg, emulation error p50 {}us p99 {}us p99.9 {}us max {}us, {} early",
+				what, String.format("%.0f", (to.sent - from.sent) / seconds), String.format("%.0f", msgs / seconds), cpu,
+				errors.getPercentile(50) / 1000, errors.getPercentile(99) / 1000, errors.getPercentile(99.9) / 1000,
+				errors.getMax() / 1000, to.early - from.early);
+	}
+
+	private final class Sample {
+		final long time;
+		final long cpu;
+		final long sent;
+		final long received;
+		final long early;
+
+		Sample(long time, CpuClock relayCpu) {
+			this.time = time;
+			this.cpu = relayCpu.cpuNanos();
+			this.sent = LoadGenerator.this.sent.sum();
+			this.received = LoadGenerator.this.received.sum();
+			this.early = LoadGenerator.this.early.sum();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package relay.loadgen;
+
+import java.util.Random;
+
+/**
+ * Who each synthetic peer sends to.
+ */
+public enum PeerGraph {
+	/**
+	 * Every peer to every other peer; the degree is ignored.
+	 */
+	FULL {
+		@Override
+		int[] targets(int peer, int numPeers, int degree, Random random) {
+			int[] targets = new int[numPeers - 1];
+			for (int i = 0, t = 0; i < numPeers; i++)
+				if (i != peer)
+					targets[t++] = i;
+			return targets;
+		}
+	},
+	/**
+	 * Every peer to the {@code degree} peers after it.
+	 */
+	RING {
+		@Override
+		int[] targets(int peer, int numPeers, int degree, Random random) {
+			int[] targets = new int[Math.min(degree, numPeers - 1)];
+			for (int i = 0; i < targets.length; i++)
+				targets[i] = (peer + i + 1) % numPeers;
+			return targets;
+		}
+	},
+	/**
+	 * Every peer to {@code degree} distinct random peers.
+	 */
+	RANDOM {
+		@Override
+		int[] targets(int peer, int numPeers, int degree, Random random) {
+			int[] targets = new int[Math.min(degree, numPeers - 1)];
+			for (int i = 0; i < targets.length; i++) {
+				int target;
+				boolean taken;
+				do {
+					target = random.nextInt(numPeers);
+					taken = target == peer;
+					for (int j = 0; j < i && !taken; j++)
+						taken = targets[j] == target;
+				} while (taken);
+				targets[i] = target;
+			}
+			return targets;
+		}
+	};
+
+	abstract int[] targets(int peer, int numPeers, int degree, Random random);
+}
@@ -0,0 +1,65 @@
+package relay.loadgen;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayMessage;
+
+import java.util.function.Consumer;
+
+/**
+ * One emulated peer: the hosts it sends to and how its messages reach its relay.
+ */
+class SyntheticPeer {
+
+	private final Host host;
+	private final int[] targets;
+	private volatile Consumer<RelayMessage> uplink;
+	private int nextTarget;
+	private int seqN;
+	// messages owed to keep up with the configured rate
+	private double credit;
+
+	SyntheticPeer(Host host, int[] targets) {
+		this.host = host;
+		this.targets = targets;
+	}
+
+	Host getHost() {
+		return host;
+	}
+
+	int[] getTargets() {
+		return targets;
+	}
+
+	boolean isAttached() {
+		return uplink != null;
+	}
+
+	void attach(Consumer<RelayMessage> uplink) {
+		this.uplink = uplink;
+	}
+
+	void send(RelayMessage msg) {
+		uplink.accept(msg);
+	}
+
+	int nextSeqN() {
+		return seqN++;
+	}
+
+	int nextTarget() {
+		int target = targets[nextTarget];
+		nextTarget = (nextTarget + 1) % targets.length;
+		return target;
+	}
+
+	/**
+	 * @return number of messages to send now
+	 */
+	int addCredit(double messages) {
+		credit += messages;
+		int due = (int) credit;
+		credit -= due;
+		return due;
+	}
+}
@@ -1,14 +1,16 @@
 package relay.messaging;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.ObjectPool;
 
 public class RelayAppMessage extends RelayMessage {
 	public static final IRelaySerializer serializer = new IRelaySerializer<RelayAppMessage>() {
 		@Override
 		public void serialize(RelayAppMessage msg, ByteBuf out) {
-			out.writeInt(msg.payload.length);
-			out.writeBytes(msg.payload);
+			writePayload(msg, out);
 		}
 
 		@Override
@@ -20,14 +22,99 @@ public class RelayAppMessage extends RelayMessage {
 			return new RelayAppMessage(seqN, from, to, sentTime, content);
 		}
 	};
-	private final byte[] payload;
+
+	/**
+	 * Keeps the payload off the heap: large payloads stay a retained slice of the inbound buffer, small ones are
+	 * copied into a pooled buffer so they do not pin a whole inbound buffer while they wait out their latency. The
+	 * messages themselves are pooled too.
+	 * <p>
+	 * The payload is still copied once into the outbound frame, which the network layer's encoder allocates and
+	 * hands to the serializer: there is no way to append the payload to it as a buffer of its own.
+	 */
+	public static final IRelaySerializer<RelayAppMessage> forwardingSerializer = new IRelaySerializer<RelayAppMessage>() {
+		@Override
+		public void serialize(RelayAppMessage msg, ByteBuf out) {
+			writePayload(msg, out);
+		}
+
+		@Override
+		public RelayAppMessage deserialize(int seqN, Host from, Host to, long sentTime, ByteBuf in) {
+			int msgSize = in.readInt();
+			ByteBuf content;
+			if (msgSize >= SLICE_THRESHOLD)
+				content = in.readRetainedSlice(msgSize);
+			else
+				content = in.alloc().buffer(msgSize).writeBytes(in, msgSize);
+
+			return newInstance(seqN, from, to, sentTime, content);
+		}
+	};
+
+	private static final int SLICE_THRESHOLD = 1024;
+	private static final int POOL_CAPACITY = 1 << 14;
+	private static final ObjectPool<RelayAppMessage> pool = new ObjectPool<>(POOL_CAPACITY, RelayAppMessage::new);
+
+	private final ObjectPool.Handle<RelayAppMessage> handle;
+	private ByteBuf payload;
 
 	public RelayAppMessage(int seqN, Host from, Host to, long sentTime, byte[] payload) {
+		this(seqN, from, to, sentTime, Unpooled.wrappedBuffer(payload));
+	}
+
+	/**
+	 * @param payload takes ownership of one reference, released once the message is sent or dropped
+	 */
+	public RelayAppMessage(int seqN, Host from, Host to, long sentTime, ByteBuf payload) {
 		super(seqN, from, to, sentTime, Type.APP_MSG);
+		this.handle = null;
 		this.payload = payload;
 	}
 
+	private RelayAppMessage(ObjectPool.Handle<RelayAppMessage> handle) {
+		super(-1, null, null, 0, Type.APP_MSG);
+		this.handle = handle;
+	}
+
+	/**
+	 * @param payload takes ownership of one reference, released once the message is sent or dropped
+	 * @return a pooled message, which goes back to its pool when released
+	 */
+	public static RelayAppMessage newInstance(int seqN, Host from, Host to, long sentTime, ByteBuf payload) {
+		RelayAppMessage msg = pool.get();
+		msg.reuse(seqN, from, to, sentTime);
+		msg.payload = payload;
+		return msg;
+	}
+
+	// leaves the message untouched: the sender releases it once written
+	private static void writePayload(RelayAppMessage msg, ByteBuf out) {
+		out.writeInt(msg.payload.readableBytes());
+		out.writeBytes(msg.payload, msg.payload.readerIndex(), msg.payload.readableBytes());
+	}
+
 	public byte[] getPayload() {
+		if (payload.hasArray() && payload.arrayOffset() == 0 && payload.readerIndex() == 0 && payload.array().length == payload.readableBytes())
+			return payload.array();
+		return ByteBufUtil.getBytes(payload);
+	}
+
+	public ByteBuf getPayloadBuffer() {
 		return payload;
 	}
+
+	public int getPayloadSize() {
+		return payload.readableBytes();
+	}
+
+	@Override
+	public void release() {
+		if (payload == null)
+			return;
+		if (payload.refCnt() > 0)
+			payload.release();
+		if (handle != null) {
+			payload = null;
+			handle.recycle(this);
+		}
+	}
 }
@@ -0,0 +1,133 @@
+package relay.messaging;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.ObjectPool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several messages sharing one frame. The sender and receiver in the header are those of the first message and carry
+ * no meaning of their own; the relay unpacks the batch and handles each message as if it had arrived alone.
+ * <p>
+ * Only sent on connections whose negotiated wire version is {@link RelayMessageSerializer#V3} or later.
+ * <p>
+ * Batches framed by the relay and decoded from the wire are pooled: whoever takes the messages out of one
+ * {@link #recycle()}s it, and a batch that was sent is released with its messages.
+ */
+public class RelayBatchMessage extends RelayMessage {
+
+	public static final int MAX_MESSAGES = 64;
+	public static final int MAX_PAYLOAD_BYTES = 64 * 1024;
+
+	private static final int POOL_CAPACITY = 1 << 10;
+	private static final ObjectPool<RelayBatchMessage> pool = new ObjectPool<>(POOL_CAPACITY, RelayBatchMessage::new);
+
+	private final ObjectPool.Handle<RelayBatchMessage> handle;
+	private final List<RelayMessage> messages;
+	private final List<RelayMessage> view;
+
+	public RelayBatchMessage(List<RelayMessage> messages) {
+		this(-1, messages.get(0).getFrom(), messages.get(0).getTo(), System.currentTimeMillis(), messages);
+	}
+
+	public RelayBatchMessage(int seqN, Host from, Host to, long sentTime, List<RelayMessage> messages) {
+		super(seqN, from, to, sentTime, Type.BATCH);
+		this.handle = null;
+		this.messages = messages;
+		this.view = Collections.unmodifiableList(messages);
+	}
+
+	private RelayBatchMessage(ObjectPool.Handle<RelayBatchMessage> handle) {
+		super(-1, null, null, 0, Type.BATCH);
+		this.handle = handle;
+		this.messages = new ArrayList<>(MAX_MESSAGES);
+		this.view = Collections.unmodifiableList(messages);
+	}
+
+	/**
+	 * @param messages copied into the batch, which takes ownership of them
+	 * @return a pooled batch
+	 */
+	public static RelayBatchMessage newInstance(List<RelayMessage> messages) {
+		RelayBatchMessage batch = newInstance(-1, messages.get(0).getFrom(), messages.get(0).getTo(), System.currentTimeMillis());
+		// addAll copies through an array
+		for (int i = 0; i < messages.size(); i++)
+			batch.messages.add(messages.get(i));
+		return batch;
+	}
+
+	private static RelayBatchMessage newInstance(int seqN, Host from, Host to, long sentTime) {
+		RelayBatchMessage batch = pool.get();
+		batch.reuse(seqN, from, to, sentTime);
+		return batch;
+	}
+
+	public List<RelayMessage> getMessages() {
+		return view;
+	}
+
+	/**
+	 * Returns a pooled batch to its pool once its messages were taken out, without releasing them.
+	 */
+	public void recycle() {
+		if (handle == null)
+			return;
+		messages.clear();
+		handle.recycle(this);
+	}
+
+	@Override
+	public void release() {
+		for (int i = 0; i < messages.size(); i++)
+			messages.get(i).release();
+		recycle();
+	}
+
+	/**
+	 * Each message is written with its full header, in the same framing as the batch.
+	 *
+	 * @param elementSerializer serializer of the messages inside the batch
+	 */
+	static IRelaySerializer<RelayMessage> serializer(ISerializer<RelayMessage> elementSerializer) {
+		return new IRelaySerializer<RelayMessage>() {
+			@Override
+			public void serialize(RelayMessage msg, ByteBuf out) {
+				RelayBatchMessage batch = (RelayBatchMessage) msg;
+				out.writeShort(batch.messages.size());
+				try {
+					for (int i = 0; i < batch.messages.size(); i++) {
+						RelayMessage element = batch.messages.get(i);
+						element.setWireVersion(batch.getWireVersion());
+						elementSerializer.serialize(element, out);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public RelayMessage deserialize(int seqN, Host from, Host to, long sentTime, ByteBuf in) {
+				int size = in.readUnsignedShort();
+				RelayBatchMessage batch = newInstance(seqN, from, to, sentTime);
+				try {
+					for (int i = 0; i < size; i++) {
+						RelayMessage element = elementSerializer.deserialize(in);
+						batch.messages.add(element);
+						if (element.getType() == Type.BATCH)
+							throw new IOException("Nested batch from " + from);
+					}
+				} catch (IOException e) {
+					batch.release();
+					throw new UncheckedIOException(e);
+				}
+				return batch;
+			}
+		};
+	}
+}
@@ -5,11 +5,13 @@ import pt.unl.fct.di.novasys.network.data.Host;
 
 public abstract class RelayMessage {
 
-	private final Host from;
-	private final Host to;
-	private final int seqN;
 	private final Type type;
-	private final long sentTime;
+	// reassigned when a pooled message is reused
+	private Host from;
+	private Host to;
+	private int seqN;
+	private long sentTime;
+	private short wireVersion = RelayMessageSerializer.V1;
 
 	protected RelayMessage(Host from, Host to, Type type) {
 		this(-1, from, to, type);
@@ -27,6 +29,17 @@ public abstract class RelayMessage {
 		this.sentTime = sentTime;
 	}
 
+	/**
+	 * Gives a recycled message its new header.
+	 */
+	protected void reuse(int seqN, Host from, Host to, long sentTime) {
+		this.from = from;
+		this.to = to;
+		this.seqN = seqN;
+		this.sentTime = sentTime;
+		this.wireVersion = RelayMessageSerializer.V1;
+	}
+
 	public int getSeqN() {
 		return seqN;
 	}
@@ -47,6 +60,24 @@ public abstract class RelayMessage {
 		return sentTime;
 	}
 
+	/**
+	 * Frees buffers held by the message. Must be called on messages the relay drops; sent messages are released
+	 * once serialized. Pooled messages go back to their pool, so a released message must not be touched again.
+	 */
+	public void release() {
+	}
+
+	/**
+	 * @return framing this message was received with, or will be sent with
+	 */
+	public short getWireVersion() {
+		return wireVersion;
+	}
+
+	public void setWireVersion(short wireVersion) {
+		this.wireVersion = wireVersion;
+	}
+
 	@Override
 	public String toString() {
 		return "RelayMessage{" +
@@ -63,7 +94,9 @@ public abstract class RelayMessage {
 		CONN_CLOSE(2, RelayConnectionCloseMessage.serializer),
 		CONN_ACCEPT(3, RelayConnectionAcceptMessage.serializer),
 		CONN_FAIL(4, RelayConnectionFailMessage.serializer),
-		PEER_DISCONNECTED(5, RelayPeerDisconnectedMessage.serializer);
+		PEER_DISCONNECTED(5, RelayPeerDisconnectedMessage.serializer),
+		// framed by RelayMessageSerializer, which also serializes the messages inside
+		BATCH(6, null);
 
 		private static final Type[] opcodeIdx;
 
@@ -5,34 +5,185 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import pt.unl.fct.di.novasys.network.ISerializer;
 import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
+/**
+ * Encodes messages in one of two framings, chosen per message with {@link RelayMessage#setWireVersion(short)}:
+ * <ul>
+ *     <li>v1: int opcode, int seqN, both hosts in full and a long timestamp;</li>
+ *     <li>v2: one byte with the high bit set and the opcode, zigzag varint seqN, both hosts as varint indices into
+ *     the peer list and a long timestamp.</li>
+ * </ul>
+ * The first byte of a v1 frame is always zero, so the decoder tells both framings apart on its own.
+ * <p>
+ * v3 keeps the v2 framing and adds {@link RelayBatchMessage}s.
+ */
 public class RelayMessageSerializer implements ISerializer<RelayMessage> {
 
+	public static final short V1 = 1;
+	public static final short V2 = 2;
+	public static final short V3 = 3;
+	public static final short CURRENT_VERSION = V3;
+
 	private static final Logger logger = LogManager.getLogger(RelayMessageSerializer.class);
 
+	private static final int V2_MARKER = 0x80;
+
+	private final HostIndex peerIndex;
+	private final boolean forwarding;
+	private final TrafficListener listener;
+	private final RelayMessage.IRelaySerializer<RelayMessage> batchSerializer;
+
+	public RelayMessageSerializer(HostIndex peerIndex) {
+		this(peerIndex, false);
+	}
+
+	/**
+	 * @param forwarding keep application payloads in reference-counted buffers instead of copying them to the heap
+	 */
+	public RelayMessageSerializer(HostIndex peerIndex, boolean forwarding) {
+		this(peerIndex, forwarding, TrafficListener.NONE);
+	}
+
+	/**
+	 * @param listener told the size of every message framed
+	 */
+	public RelayMessageSerializer(HostIndex peerIndex, boolean forwarding, TrafficListener listener) {
+		this.peerIndex = peerIndex;
+		this.forwarding = forwarding;
+		this.listener = listener;
+		this.batchSerializer = RelayBatchMessage.serializer(this);
+	}
+
 	@Override
 	public void serialize(RelayMessage relayMessage, ByteBuf out) throws IOException {
-		out.writeInt(relayMessage.getType().opCode);
-		out.writeInt(relayMessage.getSeqN());
-		Host.serializer.serialize(relayMessage.getFrom(), out);
-		Host.serializer.serialize(relayMessage.getTo(), out);
+		int start = out.writerIndex();
+		int fromId, toId;
+		if (relayMessage.getWireVersion() >= V2
+				&& (fromId = peerIndex.indexOf(relayMessage.getFrom())) != HostIndex.UNKNOWN
+				&& (toId = peerIndex.indexOf(relayMessage.getTo())) != HostIndex.UNKNOWN) {
+			out.writeByte(V2_MARKER | relayMessage.getType().opCode);
+			writeVarInt(zigzag(relayMessage.getSeqN()), out);
+			writeVarInt(fromId, out);
+			writeVarInt(toId, out);
+		} else {
+			out.writeInt(relayMessage.getType().opCode);
+			out.writeInt(relayMessage.getSeqN());
+			Host.serializer.serialize(relayMessage.getFrom(), out);
+			Host.serializer.serialize(relayMessage.getTo(), out);
+		}
 		out.writeLong(relayMessage.getSentTime());
-		relayMessage.getType().serializer.serialize(relayMessage, out);
-		logger.trace("Serialized {} message {} to {} from {}", relayMessage.getType().name(), relayMessage.getSeqN(), relayMessage.getTo(), relayMessage.getFrom());
+		RelayMessage.Type type = relayMessage.getType();
+		if (logger.isTraceEnabled())
+			logger.trace("Serializing {} message {} to {} from {}", type.name(), relayMessage.getSeqN(), relayMessage.getTo(), relayMessage.getFrom());
+		try {
+			serializerOf(type).serialize(relayMessage, out);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		// messages of a batch are counted as they are framed
+		if (type != RelayMessage.Type.BATCH)
+			listener.serialized(type, out.writerIndex() - start);
 	}
 
 	@Override
 	public RelayMessage deserialize(ByteBuf in) throws IOException {
-		RelayMessage.Type type = RelayMessage.Type.fromOpcode(in.readInt());
-		int seqN = in.readInt();
-		Host from = Host.serializer.deserialize(in);
-		Host to = Host.serializer.deserialize(in);
+		int start = in.readerIndex();
+		RelayMessage.Type type;
+		int seqN;
+		Host from, to;
+		short version;
+		if ((in.getByte(in.readerIndex()) & V2_MARKER) != 0) {
+			type = RelayMessage.Type.fromOpcode(in.readUnsignedByte() & ~V2_MARKER);
+			seqN = unzigzag(readVarInt(in));
+			from = resolve(readVarInt(in));
+			to = resolve(readVarInt(in));
+			version = V2;
+		} else {
+			type = RelayMessage.Type.fromOpcode(in.readInt());
+			seqN = in.readInt();
+			from = Host.serializer.deserialize(in);
+			to = Host.serializer.deserialize(in);
+			version = V1;
+		}
 		long sentTime = in.readLong();
-		RelayMessage relayMessage = type.serializer.deserialize(seqN, from, to, sentTime, in);
-		logger.trace("Deserialized {} message {} to {} from {}", relayMessage.getType().name(), relayMessage.getSeqN(), relayMessage.getTo(), relayMessage.getFrom());
+		RelayMessage relayMessage;
+		try {
+			relayMessage = deserializerOf(type).deserialize(seqN, from, to, sentTime, in);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		relayMessage.setWireVersion(version);
+		if (type != RelayMessage.Type.BATCH)
+			listener.deserialized(type, in.readerIndex() - start);
+		if (logger.isTraceEnabled())
+			logger.trace("Deserialized {} message {} to {} from {}", type.name(), seqN, to, from);
 		return relayMessage;
 	}
 
+	private RelayMessage.IRelaySerializer<RelayMessage> serializerOf(RelayMessage.Type type) {
+		return type == RelayMessage.Type.BATCH ? batchSerializer : type.serializer;
+	}
+
+	private RelayMessage.IRelaySerializer<? extends RelayMessage> deserializerOf(RelayMessage.Type type) {
+		if (forwarding && type == RelayMessage.Type.APP_MSG)
+			return RelayAppMessage.forwardingSerializer;
+		return serializerOf(type);
+	}
+
+	private Host resolve(int id) throws IOException {
+		if (id < 0 || id >= peerIndex.size())
+			throw new IOException("Unknown host id " + id);
+		return peerIndex.get(id);
+	}
+
+	static void writeVarInt(int value, ByteBuf out) {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(ByteBuf in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Told the framed size of every message other than batches, whose messages are counted one by one instead.
+	 */
+	public interface TrafficListener {
+
+		TrafficListener NONE = new TrafficListener() {
+			@Override
+			public void serialized(RelayMessage.Type type, int bytes) {
+			}
+
+			@Override
+			public void deserialized(RelayMessage.Type type, int bytes) {
+			}
+		};
+
+		void serialized(RelayMessage.Type type, int bytes);
+
+		void deserialized(RelayMessage.Type type, int bytes);
+	}
 }
@@ -0,0 +1,34 @@
+package relay.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Monotonic counter over a {@link LongAdder}, so threads that count at once update separate cells instead of
+ * contending on one.
+ */
+public final class Counter implements DoubleSupplier {
+
+	private final LongAdder adder;
+
+	Counter() {
+		adder = new LongAdder();
+	}
+
+	public void increment() {
+		adder.increment();
+	}
+
+	public void add(long amount) {
+		adder.add(amount);
+	}
+
+	public long get() {
+		return adder.sum();
+	}
+
+	@Override
+	public double getAsDouble() {
+		return adder.sum();
+	}
+}
@@ -0,0 +1,79 @@
+package relay.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Publishes a {@link MetricsRegistry} in the Prometheus text exposition format, to a file rewritten periodically or
+ * on an HTTP endpoint bound to the loopback interface only.
+ */
+public class MetricsExporter {
+
+	private static final Logger logger = LogManager.getLogger(MetricsExporter.class);
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	public static final String PATH = "/metrics";
+
+	private final MetricsRegistry registry;
+	private HttpServer server;
+
+	public MetricsExporter(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Writes the metrics next to {@code file} and then moves them over it, so readers never see a partial dump.
+	 */
+	public void writeFile(Path file) {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				registry.writePrometheus(out);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Error writing metrics to {}: {}", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * Serves the metrics on {@value #PATH}, from a single thread of the HTTP server.
+	 *
+	 * @param port loopback port, 0 for any free port
+	 * @return port the server listens on
+	 */
+	public int startHttp(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(PATH, exchange -> {
+			StringWriter body = new StringWriter();
+			registry.writePrometheus(body);
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		});
+		server.start();
+		int bound = server.getAddress().getPort();
+		logger.info("Serving metrics on http://{}:{}{}", InetAddress.getLoopbackAddress().getHostAddress(), bound, PATH);
+		return bound;
+	}
+
+	public void stop() {
+		if (server != null)
+			server.stop(0);
+	}
+}
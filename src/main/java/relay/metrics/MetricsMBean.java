@@ -0,0 +1,82 @@
+package relay.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Read-only MBean with one attribute per sample of a {@link MetricsRegistry}, named as in
+ * {@link MetricsRegistry#snapshot()}.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private final MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Registers the MBean with the platform MBean server as {@code relay:type=Metrics,name=<name>}.
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("relay:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Double value = registry.get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Double value = registry.get(attribute);
+			if (value != null)
+				list.add(new Attribute(attribute, value));
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Relay metrics are read-only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Double> snapshot = registry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+		int i = 0;
+		for (String name : snapshot.keySet())
+			attributes[i++] = new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false);
+		return new MBeanInfo(getClass().getName(), "Relay metrics", attributes, new MBeanConstructorInfo[0],
+				new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+	}
+}
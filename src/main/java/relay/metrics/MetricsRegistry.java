@@ -0,0 +1,152 @@
+package relay.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntFunction;
+
+/**
+ * Named counters and gauges of the relay, optionally split by one label.
+ * <p>
+ * Counters are updated on the hot path, so they are striped {@link Counter}s; gauges are only evaluated when the
+ * metrics are read. Metrics are registered up front and then read by name, through {@link #snapshot()}, or all at once
+ * in the Prometheus text exposition format, through {@link #writePrometheus(Writer)}.
+ */
+public class MetricsRegistry {
+
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+
+	private final List<Family> families;
+
+	public MetricsRegistry() {
+		families = new CopyOnWriteArrayList<>();
+	}
+
+	public Counter counter(String name, String help) {
+		Counter counter = new Counter();
+		register(name, help, COUNTER, null, Collections.singletonList(new Sample(null, counter)));
+		return counter;
+	}
+
+	/**
+	 * @return one counter per label value, in the same order
+	 */
+	public Counter[] counters(String name, String help, String label, List<String> labelValues) {
+		Counter[] counters = new Counter[labelValues.size()];
+		List<Sample> samples = new ArrayList<>(labelValues.size());
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new Counter();
+			samples.add(new Sample(labelValues.get(i), counters[i]));
+		}
+		register(name, help, COUNTER, label, samples);
+		return counters;
+	}
+
+	public void gauge(String name, String help, DoubleSupplier value) {
+		register(name, help, GAUGE, null, Collections.singletonList(new Sample(null, value)));
+	}
+
+	/**
+	 * @param values value of the gauge for the label value at each position
+	 */
+	public void gauges(String name, String help, String label, List<String> labelValues, IntFunction<DoubleSupplier> values) {
+		List<Sample> samples = new ArrayList<>(labelValues.size());
+		for (int i = 0; i < labelValues.size(); i++)
+			samples.add(new Sample(labelValues.get(i), values.apply(i)));
+		register(name, help, GAUGE, label, samples);
+	}
+
+	private void register(String name, String help, String type, String label, List<Sample> samples) {
+		for (Family family : families) {
+			if (family.name.equals(name))
+				throw new IllegalArgumentException("Metric already registered: " + name);
+		}
+		families.add(new Family(name, help, type, label, samples));
+	}
+
+	/**
+	 * @return current value of every sample, keyed by the metric name followed by a dot and the label value, if any
+	 */
+	public Map<String, Double> snapshot() {
+		Map<String, Double> values = new LinkedHashMap<>();
+		for (Family family : families) {
+			for (Sample sample : family.samples)
+				values.put(sample.labelValue == null ? family.name : family.name + "." + sample.labelValue, sample.value.getAsDouble());
+		}
+		return values;
+	}
+
+	/**
+	 * @return current value of a sample named as in {@link #snapshot()}, null if there is no such sample
+	 */
+	public Double get(String sampleName) {
+		for (Family family : families) {
+			if (!sampleName.startsWith(family.name))
+				continue;
+			for (Sample sample : family.samples) {
+				String name = sample.labelValue == null ? family.name : family.name + "." + sample.labelValue;
+				if (name.equals(sampleName))
+					return sample.value.getAsDouble();
+			}
+		}
+		return null;
+	}
+
+	public void writePrometheus(Writer out) throws IOException {
+		for (Family family : families) {
+			out.write("# HELP " + family.name + " " + family.help + "\n");
+			out.write("# TYPE " + family.name + " " + family.type + "\n");
+			for (Sample sample : family.samples) {
+				out.write(family.name);
+				if (sample.labelValue != null)
+					out.write("{" + family.label + "=\"" + escape(sample.labelValue) + "\"}");
+				out.write(" ");
+				out.write(format(sample.value.getAsDouble()));
+				out.write("\n");
+			}
+		}
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static final class Family {
+		final String name;
+		final String help;
+		final String type;
+		final String label;
+		final List<Sample> samples;
+
+		Family(String name, String help, String type, String label, List<Sample> samples) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.label = label;
+			this.samples = samples;
+		}
+	}
+
+	private static final class Sample {
+		final String labelValue;
+		final DoubleSupplier value;
+
+		Sample(String labelValue, DoubleSupplier value) {
+			this.labelValue = labelValue;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package relay.metrics;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.bandwidth.DropListener;
+import relay.messaging.RelayMessage;
+import relay.messaging.RelayMessageSerializer;
+import relay.util.HostIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Traffic counters of a relay: messages and bytes per {@link RelayMessage.Type} in each direction, messages from and
+ * to each peer, and messages dropped for lack of room.
+ * <p>
+ * Messages are counted by the relay as it handles them, so those inside a batch count one by one. Bytes are counted by
+ * the {@link RelayMessageSerializer} as it frames them, including the header of each message.
+ */
+public class RelayMetrics implements RelayMessageSerializer.TrafficListener {
+
+	private final MetricsRegistry registry;
+	private final HostIndex peerIndex;
+	private final Counter[] messagesIn;
+	private final Counter[] messagesOut;
+	private final Counter[] bytesIn;
+	private final Counter[] bytesOut;
+	private final Counter[] peerMessagesIn;
+	private final Counter[] peerMessagesOut;
+	// one per drop reason of the bandwidth buckets, then the memory budget
+	private final Counter[] drops;
+	private final List<String> dropReasons;
+
+	public RelayMetrics(MetricsRegistry registry, HostIndex peerIndex) {
+		this.registry = registry;
+		this.peerIndex = peerIndex;
+
+		List<String> types = new ArrayList<>();
+		for (RelayMessage.Type type : RelayMessage.Type.values())
+			types.add(type.name());
+		messagesIn = registry.counters("relay_messages_received_total", "Messages received by the relay", "type", types);
+		messagesOut = registry.counters("relay_messages_sent_total", "Messages sent by the relay", "type", types);
+		bytesIn = registry.counters("relay_bytes_received_total", "Bytes of messages received, with their headers", "type", types);
+		bytesOut = registry.counters("relay_bytes_sent_total", "Bytes of messages sent, with their headers", "type", types);
+
+		List<String> peers = new ArrayList<>(peerIndex.size());
+		for (int i = 0; i < peerIndex.size(); i++)
+			peers.add(peerIndex.get(i).toString());
+		peerMessagesIn = registry.counters("relay_peer_messages_received_total", "Messages received from each peer", "peer", peers);
+		peerMessagesOut = registry.counters("relay_peer_messages_sent_total", "Messages sent to each peer", "peer", peers);
+
+		dropReasons = new ArrayList<>();
+		for (DropListener.Reason reason : DropListener.Reason.values())
+			dropReasons.add(reason.name().toLowerCase(Locale.ROOT));
+		dropReasons.add("memory_budget");
+		drops = registry.counters("relay_dropped_messages_total", "Application messages dropped by the relay", "reason", dropReasons);
+	}
+
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public void received(RelayMessage msg) {
+		messagesIn[msg.getType().ordinal()].increment();
+		count(peerMessagesIn, msg.getFrom());
+	}
+
+	public void sent(RelayMessage msg) {
+		messagesOut[msg.getType().ordinal()].increment();
+		count(peerMessagesOut, msg.getTo());
+	}
+
+	public void dropped(DropListener.Reason reason) {
+		drops[reason.ordinal()].increment();
+	}
+
+	public void droppedOverBudget() {
+		drops[drops.length - 1].increment();
+	}
+
+	public long getDropped() {
+		long total = 0;
+		for (Counter counter : drops)
+			total += counter.get();
+		return total;
+	}
+
+	/**
+	 * @return drops so far per reason, for logging
+	 */
+	public String describeDrops() {
+		StringBuilder description = new StringBuilder();
+		for (int i = 0; i < drops.length; i++)
+			description.append(i == 0 ? "" : ", ").append(drops[i].get()).append(' ').append(dropReasons.get(i));
+		return description.toString();
+	}
+
+	private void count(Counter[] perPeer, Host peer) {
+		int i = peerIndex.indexOf(peer);
+		if (i != HostIndex.UNKNOWN)
+			perPeer[i].increment();
+	}
+
+	@Override
+	public void serialized(RelayMessage.Type type, int bytes) {
+		bytesOut[type.ordinal()].add(bytes);
+	}
+
+	@Override
+	public void deserialized(RelayMessage.Type type, int bytes) {
+		bytesIn[type.ordinal()].add(bytes);
+	}
+}
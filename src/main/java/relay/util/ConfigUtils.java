@@ -3,12 +3,15 @@ package relay.util;
 import pt.unl.fct.di.novasys.network.data.Host;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ConfigUtils {
 
@@ -49,4 +52,30 @@ public class ConfigUtils {
 
 		return hostList;
 	}
+
+	/**
+	 * Reads a configuration split in sections, each starting with a {@code [name]} line. Blank lines and lines
+	 * starting with {@code #} are ignored.
+	 *
+	 * @return the whitespace-separated fields of every line, per section
+	 */
+	public static Map<String, List<String[]>> readSections(InputStream config) throws IOException {
+		Map<String, List<String[]>> sections = new HashMap<>();
+		List<String[]> current = null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(config));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			if (line.startsWith("[") && line.endsWith("]")) {
+				current = sections.computeIfAbsent(line.substring(1, line.length() - 1).trim(), k -> new ArrayList<>());
+			} else {
+				if (current == null)
+					throw new IOException("Configuration line outside of a section: " + line);
+				current.add(line.split("\\s+"));
+			}
+		}
+		return sections;
+	}
 }
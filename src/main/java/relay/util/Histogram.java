@@ -0,0 +1,120 @@
+package relay.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non-negative values with log-linear buckets, in the style of HdrHistogram: every power of
+ * two is split in {@code 2^subBucketBits} buckets. The default of {@value #DEFAULT_SUB_BUCKET_BITS} bits keeps values
+ * within about 1.5% of their magnitude using a fixed array of a few thousand counters, whatever their range; fewer
+ * bits trade precision for a smaller array, when many histograms are kept.
+ * <p>
+ * Recording is lock-free. Reading while values are recorded gives a slightly inconsistent but usable view.
+ */
+public class Histogram {
+
+	public static final int DEFAULT_SUB_BUCKET_BITS = 6;
+
+	private final int subBucketBits;
+	private final int subBuckets;
+	private final int numBuckets;
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong max;
+
+	public Histogram() {
+		this(DEFAULT_SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @param subBucketBits log2 of the buckets per power of two, between 1 and 16
+	 */
+	public Histogram(int subBucketBits) {
+		if (subBucketBits < 1 || subBucketBits > 16)
+			throw new IllegalArgumentException("Sub-bucket bits must be between 1 and 16: " + subBucketBits);
+		this.subBucketBits = subBucketBits;
+		this.subBuckets = 1 << subBucketBits;
+		this.numBuckets = (64 - subBucketBits) * subBuckets;
+		counts = new AtomicLongArray(numBuckets);
+		count = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	private int bucketOf(long value) {
+		if (value < 2 * subBuckets)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+		return (shift + 1) * subBuckets + (int) (value >>> shift) - subBuckets;
+	}
+
+	/**
+	 * @return highest value that falls in the bucket
+	 */
+	private long valueOf(int bucket) {
+		if (bucket < 2 * subBuckets)
+			return bucket;
+		int shift = bucket / subBuckets - 1;
+		long lowest = (long) (bucket % subBuckets + subBuckets) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		long prev;
+		while (value > (prev = max.get()) && !max.compareAndSet(prev, value)) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return value below which that percentage of the recorded values fall, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < numBuckets; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(valueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Moves everything recorded so far to {@code into}, leaving this histogram empty, for interval reporting.
+	 *
+	 * @param into histogram with the same number of sub-bucket bits
+	 */
+	public void drainTo(Histogram into) {
+		if (into.subBucketBits != subBucketBits)
+			throw new IllegalArgumentException("Histograms of different precision: " + subBucketBits + " and " + into.subBucketBits);
+		for (int i = 0; i < numBuckets; i++) {
+			long c = counts.getAndSet(i, 0);
+			if (c > 0)
+				into.counts.addAndGet(i, c);
+		}
+		into.count.addAndGet(count.getAndSet(0));
+		long m = max.getAndSet(0);
+		long prev;
+		while (m > (prev = into.max.get()) && !into.max.compareAndSet(prev, m)) {
+			// retry
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package relay.util;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers hosts by their position in the host list, so per-host state can live in plain arrays.
+ * <p>
+ * The hosts of the list are looked up by identity first: {@link Host#hashCode()} allocates on every call, and hosts
+ * decoded from the wire, or taken from {@link #get(int)}, are the very instances of the list.
+ */
+public class HostIndex {
+
+	public static final int UNKNOWN = -1;
+
+	private final Host[] hosts;
+	private final Map<Host, Integer> interned;
+	private final Map<Host, Integer> indices;
+
+	public HostIndex(List<Host> hostList) {
+		hosts = hostList.toArray(new Host[0]);
+		interned = new IdentityHashMap<>(hosts.length);
+		indices = new HashMap<>(hosts.length * 2);
+		for (int i = 0; i < hosts.length; i++) {
+			interned.put(hosts[i], i);
+			indices.put(hosts[i], i);
+		}
+	}
+
+	public int indexOf(Host host) {
+		Integer index = interned.get(host);
+		if (index == null)
+			index = indices.get(host);
+		return index == null ? UNKNOWN : index;
+	}
+
+	public Host get(int index) {
+		return hosts[index];
+	}
+
+	public int size() {
+		return hosts.length;
+	}
+}
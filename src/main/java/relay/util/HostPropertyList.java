@@ -15,8 +15,19 @@ public abstract class HostPropertyList<T> {
 	protected final Map<Host, T> propertyList;
 
 	protected HostPropertyList(List<Host> hostList, InputStream listConfig) throws IOException {
+		this();
+		readConfig(hostList, listConfig);
+	}
+
+	/**
+	 * For subclasses that need their own state set up before parsing, they must call
+	 * {@link #readConfig(List, InputStream)} themselves.
+	 */
+	protected HostPropertyList() {
 		propertyList = new ConcurrentHashMap<>();
+	}
 
+	protected final void readConfig(List<Host> hostList, InputStream listConfig) throws IOException {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(listConfig));
 		for (Host host : hostList) {
 			String strProperty = reader.readLine();
@@ -0,0 +1,58 @@
+package relay.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes the relay may hold in messages waiting to be sent, shared by all its queues.
+ */
+public class MemoryBudget {
+
+	private final long limit;
+	private final AtomicLong used;
+
+	/**
+	 * @param limit bytes that may be held at once, 0 for no limit
+	 */
+	public MemoryBudget(long limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("Memory budget cannot be negative: " + limit);
+		this.limit = limit;
+		this.used = new AtomicLong();
+	}
+
+	/**
+	 * @return false, taking nothing, if the bytes do not fit in what is left of the budget
+	 */
+	public boolean tryAcquire(long bytes) {
+		if (limit == 0) {
+			used.addAndGet(bytes);
+			return true;
+		}
+		long prev;
+		do {
+			prev = used.get();
+			if (prev + bytes > limit)
+				return false;
+		} while (!used.compareAndSet(prev, prev + bytes));
+		return true;
+	}
+
+	/**
+	 * Takes the bytes even if they go over the budget, for messages that must not be dropped.
+	 */
+	public void acquire(long bytes) {
+		used.addAndGet(bytes);
+	}
+
+	public void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	public long getUsed() {
+		return used.get();
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,165 @@
+package relay.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Multi-producer, single-consumer queue over a preallocated ring, for handing work over between threads.
+ * <p>
+ * Producers claim a slot with a single CAS and publish into it by bumping the slot's sequence, so a steady stream of
+ * handoffs takes no locks and allocates nothing. The consumer takes every published element in one batch.
+ * <p>
+ * A producer that finds the ring full does not wait for the consumer, which may itself be producing into a full
+ * ring of its own: it parks the element in an overflow list, under a lock, and so do all producers after it until the
+ * consumer has caught up. The consumer only takes the overflow once the ring is empty, so the elements of each
+ * producer are still taken in the order they were offered.
+ */
+public class MpscRingBuffer<E> {
+
+	private final Object[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail;
+	// consumer only
+	private long head;
+	private ArrayDeque<E> spare;
+
+	// guarded by this
+	private ArrayDeque<E> overflow;
+	private volatile boolean overflowing;
+
+	/**
+	 * @param capacity slots of the ring, rounded up to a power of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		buffer = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		mask = size - 1;
+		tail = new AtomicLong();
+		overflow = new ArrayDeque<>();
+		spare = new ArrayDeque<>();
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Queues the element, in the overflow list if the ring is full.
+	 */
+	public void offer(E element) {
+		if (!overflowing && tryPublish(element))
+			return;
+		synchronized (this) {
+			if (!overflowing && tryPublish(element))
+				return;
+			overflowing = true;
+			overflow.add(element);
+		}
+	}
+
+	/**
+	 * Queues the element only if there is a free slot in the ring, for callers that would rather let it go.
+	 *
+	 * @return false if the ring was full
+	 */
+	public boolean tryOffer(E element) {
+		return !overflowing && tryPublish(element);
+	}
+
+	private boolean tryPublish(E element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) (position & mask);
+			long available = sequences.get(index) - position;
+			if (available < 0)
+				return false;
+			if (available == 0 && tail.compareAndSet(position, position + 1)) {
+				buffer[index] = element;
+				sequences.set(index, position + 1);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Hands every element published so far to {@code consumer}, in the order they were offered by each producer. Must
+	 * only be called from the consumer thread.
+	 *
+	 * @return number of elements taken
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(Consumer<? super E> consumer) {
+		int drained = 0;
+		while (true) {
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1)
+				break;
+			E element = (E) buffer[index];
+			buffer[index] = null;
+			sequences.lazySet(index, head + buffer.length);
+			head++;
+			drained++;
+			consumer.accept(element);
+		}
+
+		// elements still being published in the ring were offered before anything in the overflow
+		if (overflowing && head == tail.get()) {
+			ArrayDeque<E> taken;
+			synchronized (this) {
+				taken = overflow;
+				overflow = spare;
+				overflowing = false;
+			}
+			E element;
+			while ((element = taken.poll()) != null) {
+				drained++;
+				consumer.accept(element);
+			}
+			spare = taken;
+		}
+		return drained;
+	}
+
+	/**
+	 * Takes the oldest element published so far. Must only be called from the consumer thread.
+	 *
+	 * @return null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		int index = (int) (head & mask);
+		if (sequences.get(index) == head + 1) {
+			E element = (E) buffer[index];
+			buffer[index] = null;
+			sequences.lazySet(index, head + buffer.length);
+			head++;
+			return element;
+		}
+
+		if (!overflowing || head != tail.get())
+			return null;
+		synchronized (this) {
+			E element = overflow.poll();
+			if (overflow.isEmpty())
+				overflowing = false;
+			return element;
+		}
+	}
+
+	/**
+	 * @return whether nothing is waiting for the consumer, as seen from the consumer thread
+	 */
+	public boolean isEmpty() {
+		return !overflowing && head == tail.get();
+	}
+}
@@ -0,0 +1,55 @@
+package relay.util;
+
+import io.netty.channel.Channel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pt.unl.fct.di.novasys.network.Connection;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the Netty {@link Channel} behind a network-layer {@link Connection}, which the network layer does not
+ * expose, by looking up a channel field in the connection's class. Callers must cope with a null result.
+ */
+public class NettyChannels {
+
+	private static final Logger logger = LogManager.getLogger(NettyChannels.class);
+
+	private static final Map<Class<?>, Optional<Field>> channelFields = new ConcurrentHashMap<>();
+
+	private NettyChannels() {
+	}
+
+	public static Channel channelOf(Connection<?> connection) {
+		Optional<Field> field = channelFields.computeIfAbsent(connection.getClass(), NettyChannels::findChannelField);
+		if (!field.isPresent())
+			return null;
+
+		try {
+			return (Channel) field.get().get(connection);
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	private static Optional<Field> findChannelField(Class<?> clazz) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Channel.class.isAssignableFrom(field.getType())) {
+					try {
+						field.setAccessible(true);
+						return Optional.of(field);
+					} catch (RuntimeException e) {
+						logger.warn("Cannot access channel of {}: {}", clazz.getName(), e.getMessage());
+						return Optional.empty();
+					}
+				}
+			}
+		}
+		logger.warn("No channel found in {}", clazz.getName());
+		return Optional.empty();
+	}
+}
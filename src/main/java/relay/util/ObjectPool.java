@@ -0,0 +1,57 @@
+package relay.util;
+
+import java.util.function.Function;
+
+/**
+ * Recycles objects of the hot path, so that a steady flow of messages allocates nothing once every pool holds as many
+ * objects as there are in flight.
+ * <p>
+ * Each thread takes objects from a pool of its own, a {@link MpscRingBuffer} of which it is the only consumer. An
+ * object remembers the pool it was created for, through its {@link Handle}, and goes back there when it is recycled,
+ * from whichever thread releases it. Objects recycled into a full pool are left to the garbage collector.
+ */
+public class ObjectPool<T> {
+
+	/**
+	 * Returns an object to the pool it was created for.
+	 */
+	public interface Handle<T> {
+		void recycle(T object);
+	}
+
+	private final int capacity;
+	private final Function<Handle<T>, T> factory;
+	private final ThreadLocal<LocalPool<T>> local;
+
+	/**
+	 * @param capacity objects kept by the pool of each thread
+	 * @param factory  creates an object that recycles itself through the given handle
+	 */
+	public ObjectPool(int capacity, Function<Handle<T>, T> factory) {
+		this.capacity = capacity;
+		this.factory = factory;
+		this.local = ThreadLocal.withInitial(() -> new LocalPool<>(this.capacity));
+	}
+
+	/**
+	 * @return a recycled object of the pool of this thread, or a new one if it is empty
+	 */
+	public T get() {
+		LocalPool<T> pool = local.get();
+		T object = pool.objects.poll();
+		return object != null ? object : factory.apply(pool);
+	}
+
+	private static final class LocalPool<T> implements Handle<T> {
+		final MpscRingBuffer<T> objects;
+
+		LocalPool(int capacity) {
+			this.objects = new MpscRingBuffer<>(capacity);
+		}
+
+		@Override
+		public void recycle(T object) {
+			objects.tryOffer(object);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package relay;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.loadgen.InProcessConnection;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayConnectionAcceptMessage;
+import relay.messaging.RelayConnectionOpenMessage;
+import relay.messaging.RelayMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BWLatencyRelayTest {
+
+	private static InputStream config(String str) {
+		return new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void dropsMessagesWhoseReceiverLeftWhileInFlight() throws IOException {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		int port = freePort();
+		Properties properties = new Properties();
+		properties.put(Relay.ADDRESS_KEY, "127.0.0.1");
+		properties.put(Relay.PORT_KEY, String.valueOf(port));
+		properties.put(Relay.NUM_NODES, "2");
+		properties.put(Relay.SHARDED_KEY, "true");
+		properties.put(Relay.WORKER_GROUP_KEY, channel.eventLoop());
+		BWLatencyRelay relay = new BWLatencyRelay(properties, config("127.0.0.1:31000\n127.0.0.1:31001\n"),
+				config("127.0.0.1:" + port + "\n"), config("0 50\n50 0\n"), config("1gbps 1gbps\n1gbps 1gbps\n"));
+
+		Host sender = relay.peerList.get(0);
+		Host receiver = relay.peerList.get(1);
+		List<RelayMessage> received = new ArrayList<>();
+		InProcessConnection senderConnection = new InProcessConnection(sender, channel.eventLoop(), received::add);
+		InProcessConnection receiverConnection = new InProcessConnection(receiver, channel.eventLoop(), received::add);
+		relay.inboundConnectionUp(senderConnection);
+		relay.inboundConnectionUp(receiverConnection);
+
+		relay.deliverMessage(new RelayConnectionOpenMessage(0, sender, receiver, System.currentTimeMillis()), senderConnection);
+		await(channel, () -> received.size() == 1);
+		relay.deliverMessage(new RelayConnectionAcceptMessage(0, receiver, sender, System.currentTimeMillis()), receiverConnection);
+		await(channel, () -> received.size() == 2);
+
+		ByteBuf payload = Unpooled.buffer().writeZero(8);
+		relay.deliverMessage(RelayAppMessage.newInstance(1, sender, receiver, System.currentTimeMillis(), payload), senderConnection);
+		relay.inboundConnectionDown(receiverConnection, null);
+		await(channel, () -> payload.refCnt() == 0);
+
+		assertEquals(0, payload.refCnt());
+		assertEquals(0, relay.memoryBudget.getUsed());
+		assertEquals(2, received.size());
+	}
+
+	private static void await(EmbeddedChannel channel, BooleanSupplier condition) {
+		long deadline = System.nanoTime() + 5_000_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+			channel.runPendingTasks();
+	}
+}
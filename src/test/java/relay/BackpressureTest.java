@@ -0,0 +1,154 @@
+package relay;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Promise;
+import pt.unl.fct.di.novasys.network.Connection;
+import pt.unl.fct.di.novasys.network.data.Attributes;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayMessage;
+import relay.metrics.MetricsRegistry;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackpressureTest {
+
+	@org.junit.jupiter.api.Test
+	void pausesPeerBetweenWatermarks() throws UnknownHostException {
+		ChannelConnection peer = new ChannelConnection(new EmbeddedChannel());
+		ConnectionStripes stripes = new ConnectionStripes(1);
+		stripes.set(0, peer);
+		Backpressure backpressure = new Backpressure(10, 19, 1000, 200, i -> i == 12 ? stripes : null, new MetricsRegistry());
+
+		backpressure.hold(12, 600);
+		assertTrue(peer.channel.config().isAutoRead());
+		backpressure.hold(12, 600);
+		assertFalse(peer.channel.config().isAutoRead());
+
+		backpressure.release(12, 600);
+		assertFalse(peer.channel.config().isAutoRead());
+		backpressure.release(12, 500);
+		assertTrue(peer.channel.config().isAutoRead());
+
+		// peers of other relays are not tracked
+		backpressure.hold(3, 5000);
+	}
+
+	@org.junit.jupiter.api.Test
+	void resumesOnceConcurrentHoldsAreReleased() throws Exception {
+		int threads = 8;
+		for (int round = 0; round < 50; round++) {
+			ChannelConnection peer = new ChannelConnection(new EmbeddedChannel());
+			ConnectionStripes stripes = new ConnectionStripes(1);
+			stripes.set(0, peer);
+			Backpressure backpressure = new Backpressure(0, 0, 1000, 200, i -> stripes, new MetricsRegistry());
+
+			CyclicBarrier start = new CyclicBarrier(threads);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> workers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				workers.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < 20000; i++) {
+						backpressure.hold(0, 300);
+						backpressure.release(0, 300);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers)
+				worker.get();
+			executor.shutdown();
+
+			assertTrue(peer.channel.config().isAutoRead(), "paused with nothing held in round " + round);
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void pausesRelayWhileDestinationIsNotWritable() throws UnknownHostException {
+		EmbeddedChannel out = new EmbeddedChannel();
+		out.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+		ChannelConnection destination = new ChannelConnection(out);
+		ChannelConnection source = new ChannelConnection(new EmbeddedChannel());
+		Backpressure backpressure = new Backpressure(0, 0, 1000, 200, i -> null, new MetricsRegistry());
+		backpressure.watch(destination);
+
+		backpressure.forwarding(source, destination);
+		assertTrue(source.channel.config().isAutoRead());
+
+		out.write(new byte[32]);
+		assertFalse(out.isWritable());
+		backpressure.forwarding(source, destination);
+		assertFalse(source.channel.config().isAutoRead());
+
+		out.flush();
+		out.runPendingTasks();
+		assertTrue(out.isWritable());
+		assertTrue(source.channel.config().isAutoRead());
+	}
+
+	private static final class ChannelConnection implements Connection<RelayMessage> {
+
+		private final Channel channel;
+		private final Host peer;
+
+		ChannelConnection(Channel channel) throws UnknownHostException {
+			this.channel = channel;
+			this.peer = new Host(InetAddress.getLoopbackAddress(), 5000);
+		}
+
+		@Override
+		public Host getPeer() {
+			return peer;
+		}
+
+		@Override
+		public Attributes getPeerAttributes() {
+			return new Attributes();
+		}
+
+		@Override
+		public Attributes getSelfAttributes() {
+			return new Attributes();
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean isInbound() {
+			return true;
+		}
+
+		@Override
+		public boolean isOutbound() {
+			return false;
+		}
+
+		@Override
+		public void sendMessage(RelayMessage msg, Promise<Void> promise) {
+		}
+
+		@Override
+		public void sendMessage(RelayMessage msg) {
+		}
+
+		@Override
+		public EventLoop getLoop() {
+			return channel.eventLoop();
+		}
+	}
+}
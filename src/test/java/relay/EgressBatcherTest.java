@@ -0,0 +1,83 @@
+package relay;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.loadgen.InProcessConnection;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EgressBatcherTest {
+
+	private EmbeddedChannel channel;
+	private List<RelayMessage> received;
+	private InProcessConnection con;
+	private Host from;
+	private Host to;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		channel = new EmbeddedChannel();
+		received = new ArrayList<>();
+		from = new Host(InetAddress.getLoopbackAddress(), 5000);
+		to = new Host(InetAddress.getLoopbackAddress(), 5001);
+		con = new InProcessConnection(to, channel.eventLoop(), received::add);
+	}
+
+	private RelayAppMessage message(ByteBuf payload) {
+		return new RelayAppMessage(0, from, to, 0L, payload);
+	}
+
+	@org.junit.jupiter.api.Test
+	void releasesMessagesOnceWritten() {
+		EgressBatcher egress = new EgressBatcher();
+		ByteBuf payload = Unpooled.buffer().writeZero(8);
+		egress.send(message(payload), con);
+		channel.runPendingTasks();
+
+		assertEquals(1, received.size());
+		assertEquals(0, payload.refCnt());
+	}
+
+	@org.junit.jupiter.api.Test
+	void releasesMessagesOfRemovedConnections() {
+		EgressBatcher egress = new EgressBatcher();
+		ByteBuf queued = Unpooled.buffer().writeZero(8);
+		egress.send(message(queued), con);
+		egress.remove(con);
+		channel.runPendingTasks();
+
+		ByteBuf late = Unpooled.buffer().writeZero(8);
+		egress.send(message(late), con);
+		channel.runPendingTasks();
+
+		assertEquals(0, received.size());
+		assertEquals(0, queued.refCnt());
+		assertEquals(0, late.refCnt());
+	}
+
+	@org.junit.jupiter.api.Test
+	void releasePromiseBehavesAsAPromise() {
+		ByteBuf payload = Unpooled.buffer().writeZero(8);
+		ReleasePromise promise = new ReleasePromise(channel.eventLoop(), message(payload));
+		boolean[] notified = {false};
+		promise.addListener(future -> notified[0] = future.isSuccess());
+
+		assertTrue(promise.trySuccess(null));
+		assertFalse(promise.trySuccess(null));
+		assertFalse(promise.cancel(false));
+		assertTrue(promise.isDone());
+		assertTrue(notified[0]);
+		assertEquals(0, payload.refCnt());
+	}
+}
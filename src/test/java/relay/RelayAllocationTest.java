@@ -0,0 +1,164 @@
+package relay;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.loadgen.InProcessConnection;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayBatchMessage;
+import relay.messaging.RelayConnectionAcceptMessage;
+import relay.messaging.RelayConnectionOpenMessage;
+import relay.messaging.RelayMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Relays messages between two in-process peers, with the scheduler and the peers' connections on an embedded event
+ * loop, so the whole path from {@link Relay#deliverMessage} to the receiving connection runs on the test thread and
+ * its allocations can be read off that thread alone.
+ */
+class RelayAllocationTest {
+
+	private static final int BURST = 256;
+	private static final int WARMUP_MESSAGES = BURST * 800;
+	private static final int MEASURED_MESSAGES = BURST * 400;
+	private static final int PAYLOAD_SIZE = 64;
+	// for the whole measured run, far less than a byte per message
+	private static final long ALLOCATION_BUDGET = 16 * 1024;
+	// the write promise of each frame, which carries up to a whole batch of messages
+	private static final int PROMISE_BYTES = 48;
+	private static final String HOSTS = "127.0.0.1:31000\n127.0.0.1:31001\n";
+	private static final String LATENCIES = "0 1\n1 0\n";
+
+	private int port;
+
+	private static InputStream config(String str) {
+		return new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void relayedMessagesAllocateNothing() throws IOException {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Relay relay = new Relay(properties(channel), config(HOSTS), config(relays()), config(LATENCIES));
+		assertAllocatesNothing(relay, channel);
+	}
+
+	@org.junit.jupiter.api.Test
+	void shapedMessagesAllocateNothing() throws IOException {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		// both hosts sit behind a shared site link, and every shaper has room for a whole burst
+		Relay relay = new BWLatencyRelay(properties(channel), config(HOSTS), config(relays()), config(LATENCIES),
+				config("10gbps 10gbps 0\n10gbps 10gbps 0\n[sites]\n10gbps 10gbps\n"));
+		assertAllocatesNothing(relay, channel);
+	}
+
+	@org.junit.jupiter.api.Test
+	void queuedShapedMessagesAllocateNothing() throws IOException {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		// a burst takes a few milliseconds to leave, so the shapers of the sender and of its site queue most of it
+		Relay relay = new BWLatencyRelay(properties(channel), config(HOSTS), config(relays()), config(LATENCIES),
+				config("50mbps/2KB 50mbps/2KB 0\n50mbps/2KB 50mbps/2KB 0\n[sites]\n50mbps/2KB 50mbps/2KB\n"));
+		assertAllocatesNothing(relay, channel);
+	}
+
+	private Properties properties(EmbeddedChannel channel) {
+		Properties properties = new Properties();
+		properties.put(Relay.ADDRESS_KEY, "127.0.0.1");
+		properties.put(Relay.PORT_KEY, String.valueOf(port));
+		properties.put(Relay.NUM_NODES, "2");
+		properties.put(Relay.SHARDED_KEY, "true");
+		properties.put(Relay.WORKER_GROUP_KEY, channel.eventLoop());
+		return properties;
+	}
+
+	private String relays() {
+		return "127.0.0.1:" + port + "\n";
+	}
+
+	private static void assertAllocatesNothing(Relay relay, EmbeddedChannel channel) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		Host sender = relay.peerList.get(0);
+		Host receiver = relay.peerList.get(1);
+		Downlink downlink = new Downlink();
+		InProcessConnection senderConnection = new InProcessConnection(sender, channel.eventLoop(), downlink);
+		InProcessConnection receiverConnection = new InProcessConnection(receiver, channel.eventLoop(), downlink);
+		relay.inboundConnectionUp(senderConnection);
+		relay.inboundConnectionUp(receiverConnection);
+
+		relay.deliverMessage(new RelayConnectionOpenMessage(0, sender, receiver, System.currentTimeMillis()), senderConnection);
+		awaitDelivered(channel, downlink, 1);
+		relay.deliverMessage(new RelayConnectionAcceptMessage(0, receiver, sender, System.currentTimeMillis()), receiverConnection);
+		awaitDelivered(channel, downlink, 2);
+
+		ByteBuf payload = Unpooled.directBuffer(PAYLOAD_SIZE).writeZero(PAYLOAD_SIZE);
+		relay(relay, channel, downlink, senderConnection, payload, WARMUP_MESSAGES);
+
+		long threadId = Thread.currentThread().getId();
+		long frames = downlink.frames;
+		long before = threads.getThreadAllocatedBytes(threadId);
+		relay(relay, channel, downlink, senderConnection, payload, MEASURED_MESSAGES);
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		frames = downlink.frames - frames;
+
+		assertEquals(2 + WARMUP_MESSAGES + MEASURED_MESSAGES, downlink.delivered);
+		assertEquals(1, payload.refCnt());
+		assertTrue(allocated <= ALLOCATION_BUDGET + PROMISE_BYTES * frames,
+				allocated + " bytes allocated relaying " + MEASURED_MESSAGES + " messages in " + frames + " frames");
+	}
+
+	private static void relay(Relay relay, EmbeddedChannel channel, Downlink downlink, InProcessConnection from, ByteBuf payload, int messages) {
+		Host sender = from.getPeer();
+		Host receiver = relay.peerList.get(1);
+		for (int sent = 0; sent < messages; sent += BURST) {
+			for (int i = 0; i < BURST; i++)
+				relay.deliverMessage(RelayAppMessage.newInstance(sent + i, sender, receiver, System.currentTimeMillis(), payload.retain()), from);
+			awaitDelivered(channel, downlink, downlink.delivered + BURST);
+		}
+	}
+
+	private static void awaitDelivered(EmbeddedChannel channel, Downlink downlink, long delivered) {
+		while (downlink.delivered < delivered)
+			channel.runPendingTasks();
+	}
+
+	/**
+	 * Receives for both peers, counting the frames written and the messages inside batches one by one.
+	 */
+	private static final class Downlink implements Consumer<RelayMessage> {
+		long frames;
+		long delivered;
+
+		@Override
+		public void accept(RelayMessage msg) {
+			frames++;
+			if (msg.getType() == RelayMessage.Type.BATCH) {
+				List<RelayMessage> messages = ((RelayBatchMessage) msg).getMessages();
+				delivered += messages.size();
+				return;
+			}
+			delivered++;
+		}
+	}
+}
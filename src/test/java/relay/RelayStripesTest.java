@@ -0,0 +1,102 @@
+package relay;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.loadgen.InProcessConnection;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayBatchMessage;
+import relay.messaging.RelayConnectionAcceptMessage;
+import relay.messaging.RelayConnectionOpenMessage;
+import relay.messaging.RelayMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RelayStripesTest {
+
+	private static InputStream config(String str) {
+		return new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void linksFallBackWhenTheirStripeGoesDown() throws IOException {
+		EmbeddedChannel channel = new EmbeddedChannel();
+		int port = freePort();
+		Properties properties = new Properties();
+		properties.put(Relay.ADDRESS_KEY, "127.0.0.1");
+		properties.put(Relay.PORT_KEY, String.valueOf(port));
+		properties.put(Relay.NUM_NODES, "2");
+		properties.put(Relay.SHARDED_KEY, "true");
+		properties.put(Relay.WORKER_GROUP_KEY, channel.eventLoop());
+		Relay relay = new Relay(properties, config("127.0.0.1:31000\n127.0.0.1:31001\n"), config("127.0.0.1:" + port + "\n"),
+				config("0 1\n1 0\n"));
+
+		Host sender = relay.peerList.get(0);
+		Host receiver = relay.peerList.get(1);
+		Downlink senderDownlink = new Downlink();
+		InProcessConnection senderConnection = new InProcessConnection(sender, channel.eventLoop(), senderDownlink);
+		Downlink[] stripeDownlinks = {new Downlink(), new Downlink()};
+		InProcessConnection[] stripes = new InProcessConnection[2];
+		for (short i = 0; i < stripes.length; i++) {
+			stripes[i] = new InProcessConnection(receiver, channel.eventLoop(), stripeDownlinks[i]);
+			stripes[i].getPeerAttributes().putShort(Relay.STRIPE_ATTRIBUTE, i);
+			stripes[i].getPeerAttributes().putShort(Relay.NUM_STRIPES_ATTRIBUTE, (short) stripes.length);
+		}
+		relay.inboundConnectionUp(senderConnection);
+		for (InProcessConnection stripe : stripes)
+			relay.inboundConnectionUp(stripe);
+
+		relay.deliverMessage(new RelayConnectionOpenMessage(0, sender, receiver, System.currentTimeMillis()), senderConnection);
+		relay.deliverMessage(new RelayConnectionAcceptMessage(0, receiver, sender, System.currentTimeMillis()), stripes[0]);
+		await(channel, () -> senderDownlink.delivered == 1);
+
+		relay.deliverMessage(new RelayAppMessage(1, sender, receiver, System.currentTimeMillis(), new byte[8]), senderConnection);
+		await(channel, () -> stripeDownlinks[0].delivered + stripeDownlinks[1].delivered == 2);
+		int used = stripeDownlinks[0].delivered == 2 ? 0 : 1;
+		int other = 1 - used;
+		assertEquals(0, stripeDownlinks[other].delivered);
+
+		relay.inboundConnectionDown(stripes[used], null);
+		relay.deliverMessage(new RelayAppMessage(2, sender, receiver, System.currentTimeMillis(), new byte[8]), senderConnection);
+		await(channel, () -> stripeDownlinks[other].delivered == 1);
+
+		assertEquals(1, stripeDownlinks[other].delivered);
+		assertEquals(2, stripeDownlinks[used].delivered);
+	}
+
+	private static void await(EmbeddedChannel channel, BooleanSupplier condition) {
+		long deadline = System.nanoTime() + 5_000_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+			channel.runPendingTasks();
+	}
+
+	private static final class Downlink implements Consumer<RelayMessage> {
+		int delivered;
+
+		@Override
+		public void accept(RelayMessage msg) {
+			if (msg.getType() == RelayMessage.Type.BATCH) {
+				List<RelayMessage> messages = ((RelayBatchMessage) msg).getMessages();
+				for (int i = 0; i < messages.size(); i++)
+					accept(messages.get(i));
+				return;
+			}
+			delivered++;
+		}
+	}
+}
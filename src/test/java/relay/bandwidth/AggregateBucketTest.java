@@ -0,0 +1,107 @@
+package relay.bandwidth;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.latency.Scheduler;
+import relay.messaging.RelayAppMessage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AggregateBucketTest {
+
+	private Host host1;
+	private Host host2;
+	private Scheduler scheduler;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws UnknownHostException {
+		host1 = new Host(InetAddress.getByName("localhost"), 5000);
+		host2 = new Host(InetAddress.getByName("localhost"), 5001);
+		List<Host> peers = new ArrayList<>();
+		peers.add(host1);
+		peers.add(host2);
+		scheduler = new Scheduler(peers, 1);
+	}
+
+	@org.junit.jupiter.api.Test
+	void busyChildDoesNotStarveOthers() throws InterruptedException {
+		// 100 KB/s with a burst of one packet: one packet of 920 bytes about every 10ms
+		AggregateBucket uplink = new AggregateBucket(scheduler, 100_000, 1000, QueueLimits.UNBOUNDED, DropListener.RELEASE);
+		Shaper busy = uplink.addChild(100_000);
+		Shaper quiet = uplink.addChild(100_000);
+
+		List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch latch = new CountDownLatch(13);
+		for (int i = 0; i < 10; i++) {
+			String name = "busy" + i;
+			busy.enqueue(new RelayAppMessage(i, host1, host2, System.currentTimeMillis(), new byte[900]), () -> {
+				sent.add(name);
+				latch.countDown();
+			});
+		}
+		for (int i = 0; i < 3; i++) {
+			String name = "quiet" + i;
+			quiet.enqueue(new RelayAppMessage(i, host2, host1, System.currentTimeMillis(), new byte[900]), () -> {
+				sent.add(name);
+				latch.countDown();
+			});
+		}
+		assertEquals(12, uplink.getQueued());
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertEquals(0, uplink.getQueued());
+		// the quiet child alternates with the busy one instead of waiting for all of its backlog
+		assertTrue(sent.indexOf("quiet2") < 8, "quiet child starved: " + sent);
+		for (int i = 1; i < 10; i++)
+			assertTrue(sent.indexOf("busy" + (i - 1)) < sent.indexOf("busy" + i));
+	}
+
+	@org.junit.jupiter.api.Test
+	void dropHeadDropsOldestOfAnyChild() {
+		// one packet leaves at once, the next ones in about a second
+		List<String> dropped = new ArrayList<>();
+		AggregateBucket uplink = new AggregateBucket(scheduler, 1000, 1000, new QueueLimits(2, 0, QueueLimits.Policy.DROP_HEAD),
+				(msg, reason) -> dropped.add((msg.getFrom().equals(host1) ? "first" : "second") + msg.getSeqN()));
+		Shaper first = uplink.addChild(1000);
+		Shaper second = uplink.addChild(1000);
+
+		first.enqueue(new RelayAppMessage(0, host1, host2, System.currentTimeMillis(), new byte[900]), () -> {
+		});
+		first.enqueue(new RelayAppMessage(1, host1, host2, System.currentTimeMillis(), new byte[900]), () -> {
+		});
+		second.enqueue(new RelayAppMessage(1, host2, host1, System.currentTimeMillis(), new byte[900]), () -> {
+		});
+		second.enqueue(new RelayAppMessage(2, host2, host1, System.currentTimeMillis(), new byte[900]), () -> {
+		});
+		first.enqueue(new RelayAppMessage(2, host1, host2, System.currentTimeMillis(), new byte[900]), () -> {
+		});
+
+		// the second child's first message went before the first child's last one
+		assertEquals(Arrays.asList("first1", "second1"), dropped);
+		assertEquals(2, uplink.getQueued());
+	}
+
+	@org.junit.jupiter.api.Test
+	void redDropsEarlyOnceTheLinkStaysBusy() {
+		List<DropListener.Reason> reasons = new ArrayList<>();
+		AggregateBucket uplink = new AggregateBucket(scheduler, 1000, 1000, new QueueLimits(10, 0, QueueLimits.Policy.RED),
+				(msg, reason) -> reasons.add(reason));
+		Shaper child = uplink.addChild(1000);
+
+		for (int i = 0; i < 5000; i++)
+			child.enqueue(new RelayAppMessage(i, host1, host2, System.currentTimeMillis(), new byte[900]), () -> {
+			});
+
+		assertTrue(reasons.contains(DropListener.Reason.EARLY), "no early drops among " + reasons.size());
+		assertTrue(uplink.getQueued() <= 10);
+	}
+}
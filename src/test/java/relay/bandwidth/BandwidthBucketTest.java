@@ -0,0 +1,87 @@
+package relay.bandwidth;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.bandwidth.units.ByteUnit;
+import relay.latency.Scheduler;
+import relay.messaging.RelayAppMessage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BandwidthBucketTest {
+
+	private Host host1;
+	private Host host2;
+	private Scheduler scheduler;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws UnknownHostException {
+		host1 = new Host(InetAddress.getByName("localhost"), 5000);
+		host2 = new Host(InetAddress.getByName("localhost"), 5001);
+		List<Host> peers = new ArrayList<>();
+		peers.add(host1);
+		peers.add(host2);
+		scheduler = new Scheduler(peers, 1);
+	}
+
+	@org.junit.jupiter.api.Test
+	void shapesAfterBurst() throws InterruptedException {
+		// 10 KB/s with one second of burst: 10 packets of 1000 bytes leave at once, then one every 100ms
+		BandwidthBucket bucket = new BandwidthBucket(scheduler, 10, ByteUnit.KB);
+		AtomicInteger sent = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(15);
+		long start = System.nanoTime();
+		long[] lastSent = new long[1];
+
+		for (int i = 0; i < 15; i++) {
+			RelayAppMessage msg = new RelayAppMessage(i, host1, host2, System.currentTimeMillis(), new byte[980]);
+			bucket.enqueue(msg, () -> {
+				sent.incrementAndGet();
+				lastSent[0] = System.nanoTime();
+				latch.countDown();
+			});
+		}
+		assertEquals(10, sent.get());
+
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(lastSent[0] - start);
+		assertTrue(elapsedMs >= 490, "shaped too fast: " + elapsedMs + "ms");
+	}
+
+	@org.junit.jupiter.api.Test
+	void dropsTailWhenFull() {
+		// the burst lets 10 packets through, the next 3 fit in the queue
+		List<Integer> dropped = new ArrayList<>();
+		BandwidthBucket bucket = new BandwidthBucket(scheduler, 10, ByteUnit.KB, new QueueLimits(3, 0, QueueLimits.Policy.DROP_TAIL),
+				(msg, reason) -> dropped.add(msg.getSeqN()));
+		for (int i = 0; i < 15; i++)
+			bucket.enqueue(new RelayAppMessage(i, host1, host2, System.currentTimeMillis(), new byte[980]), () -> {
+			});
+
+		assertEquals(3, bucket.getQueued());
+		assertEquals(Arrays.asList(13, 14), dropped);
+	}
+
+	@org.junit.jupiter.api.Test
+	void dropsHeadWhenFull() {
+		List<Integer> dropped = new ArrayList<>();
+		BandwidthBucket bucket = new BandwidthBucket(scheduler, 10, ByteUnit.KB, new QueueLimits(0, 3000, QueueLimits.Policy.DROP_HEAD),
+				(msg, reason) -> dropped.add(msg.getSeqN()));
+		for (int i = 0; i < 15; i++)
+			bucket.enqueue(new RelayAppMessage(i, host1, host2, System.currentTimeMillis(), new byte[980]), () -> {
+			});
+
+		assertEquals(3, bucket.getQueued());
+		assertEquals(3000, bucket.getQueuedBytes());
+		assertEquals(Arrays.asList(10, 11), dropped);
+	}
+}
@@ -0,0 +1,73 @@
+package relay.bandwidth;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.latency.Scheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HostBandwidthListTest {
+
+	private static List<Host> hosts(int n) throws IOException {
+		List<Host> hosts = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			hosts.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		return hosts;
+	}
+
+	private static HostBandwidthList list(List<Host> hosts, String config) throws IOException {
+		return new HostBandwidthList(hosts, new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)), new Scheduler(hosts, 1));
+	}
+
+	@org.junit.jupiter.api.Test
+	void plainHostLines() throws IOException {
+		List<Host> hosts = hosts(2);
+		HostBandwidthList list = list(hosts, "10mbps 10mbps\n1MB 2MB\n");
+		assertSame(list.getOutBandwidthBucket(hosts.get(1)), list.getOutShaper(hosts.get(1)));
+		assertSame(list.getInBandwidthBucket(hosts.get(1)), list.getInShaper(hosts.get(1)));
+		assertEquals(2_000_000, list.getOutBandwidthBucket(hosts.get(1)).getBytesPerSecond(), 1);
+		assertEquals(0, list.getSharedBuckets(true).size());
+	}
+
+	@org.junit.jupiter.api.Test
+	void hostsBehindSitesAndRegions() throws IOException {
+		List<Host> hosts = hosts(3);
+		HostBandwidthList list = list(hosts, "1gbps 1gbps 0\n1gbps/64KB 1gbps/64KB 1\n10mbps 10mbps\n"
+				+ "[sites]\n- 100mbps 0\n100mbps 100mbps\n"
+				+ "[regions]\n1gbps 500mbps/1MB\n");
+
+		assertNotSame(list.getOutBandwidthBucket(hosts.get(0)), list.getOutShaper(hosts.get(0)));
+		assertNotSame(list.getInBandwidthBucket(hosts.get(0)), list.getInShaper(hosts.get(0)));
+		assertNotSame(list.getOutBandwidthBucket(hosts.get(1)), list.getOutShaper(hosts.get(1)));
+		assertSame(list.getOutBandwidthBucket(hosts.get(2)), list.getOutShaper(hosts.get(2)));
+		// the inbound link of site 0 is uncapped
+		assertEquals(2, list.getSharedBuckets(false).size());
+		assertEquals(3, list.getSharedBuckets(true).size());
+	}
+
+	@org.junit.jupiter.api.Test
+	void parsesRatesAndBursts() {
+		HostBandwidthList.Rate rate = HostBandwidthList.parseRate("8mbps/2KB");
+		assertEquals(1_000_000, rate.bytesPerSecond, 1);
+		assertEquals(2000, rate.burstBytes, 50);
+		assertEquals(0, HostBandwidthList.parseRate("8mbps").burstBytes);
+		assertNull(HostBandwidthList.parseRate("-"));
+		assertThrows(IllegalArgumentException.class, () -> HostBandwidthList.parseRate("8mbps/2kbps"));
+	}
+
+	@org.junit.jupiter.api.Test
+	void rejectsUnknownSites() {
+		assertThrows(IOException.class, () -> list(hosts(1), "1gbps 1gbps 1\n[sites]\n1gbps 1gbps\n"));
+		assertThrows(IOException.class, () -> list(hosts(1), "1gbps 1gbps 0\n[sites]\n1gbps 1gbps 3\n"));
+	}
+}
@@ -0,0 +1,70 @@
+package relay.bandwidth;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.latency.Scheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LinkBandwidthCapsTest {
+
+	private static final String CONFIG = "[hosts]\n0\n0\n1\n1\n"
+			+ "[regions]\n- 10mbps\n# the way back is fat\n- -\n"
+			+ "[pairs]\n0 3 1mbps\n";
+
+	private static Scheduler scheduler() throws IOException {
+		List<Host> peers = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			peers.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		return new Scheduler(peers, 1);
+	}
+
+	private static LinkBandwidthCaps caps(String config) throws IOException {
+		return new LinkBandwidthCaps(4, new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)), scheduler(),
+				QueueLimits.UNBOUNDED, DropListener.RELEASE);
+	}
+
+	@org.junit.jupiter.api.Test
+	void regionPairsShareTheirCap() throws IOException {
+		LinkBandwidthCaps caps = caps(CONFIG);
+
+		BandwidthBucket crossRegion = caps.getBucket(0, 2);
+		assertNotNull(crossRegion);
+		assertSame(crossRegion, caps.getBucket(1, 2));
+		assertSame(crossRegion, caps.getBucket(1, 3));
+		assertNull(caps.getBucket(0, 1));
+		assertNull(caps.getBucket(2, 0));
+
+		BandwidthBucket pair = caps.getBucket(0, 3);
+		assertNotNull(pair);
+		assertNotSame(crossRegion, pair);
+		assertNull(caps.getBucket(3, 0));
+		assertEquals(2, caps.getBandwidthBuckets().size());
+	}
+
+	@org.junit.jupiter.api.Test
+	void pairsWithoutRegions() throws IOException {
+		LinkBandwidthCaps caps = caps("[pairs]\n1 2 5MB\n");
+		assertNotNull(caps.getBucket(1, 2));
+		assertNull(caps.getBucket(2, 1));
+		assertNull(caps.getBucket(0, 3));
+		assertNull(caps.getBucket(-1, 3));
+	}
+
+	@org.junit.jupiter.api.Test
+	void rejectsUnknownRegions() {
+		assertThrows(IOException.class, () -> caps("[hosts]\n0\n0\n2\n1\n[regions]\n- 10mbps\n- -\n"));
+		assertThrows(IOException.class, () -> caps("[hosts]\n0\n0\n[regions]\n- 10mbps\n- -\n"));
+	}
+}
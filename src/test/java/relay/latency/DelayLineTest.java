@@ -0,0 +1,53 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DelayLineTest {
+
+	@org.junit.jupiter.api.Test
+	void neverReorders() throws UnknownHostException, InterruptedException {
+		Host from = new Host(InetAddress.getByName("localhost"), 5000);
+		Host to = new Host(InetAddress.getByName("localhost"), 5001);
+		List<Host> peers = new ArrayList<>();
+		peers.add(from);
+		peers.add(to);
+		DelayLine line = new DelayLine(new Scheduler(peers, 1));
+
+		// the second message has an earlier deadline, as after a latency drop
+		long start = System.nanoTime();
+		long[] deadlines = {start + TimeUnit.MILLISECONDS.toNanos(30), start + TimeUnit.MILLISECONDS.toNanos(10), start + TimeUnit.MILLISECONDS.toNanos(40)};
+		CountDownLatch latch = new CountDownLatch(deadlines.length);
+		List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+		long[] firedAt = new long[deadlines.length];
+		for (int i = 0; i < deadlines.length; i++) {
+			int seqN = i;
+			RelayMessage msg = new RelayAppMessage(seqN, from, to, System.currentTimeMillis(), new byte[0]);
+			line.add(SendMessageEvent.at(msg, () -> {
+				firedAt[seqN] = System.nanoTime();
+				fired.add(seqN);
+				latch.countDown();
+			}, deadlines[i]));
+		}
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertEquals(0, line.size());
+		for (int i = 0; i < deadlines.length; i++) {
+			assertEquals(i, fired.get(i));
+			assertTrue(firedAt[i] >= deadlines[i], "fired too early: " + i);
+		}
+		assertTrue(firedAt[1] >= deadlines[0], "overtook the message ahead of it");
+	}
+}
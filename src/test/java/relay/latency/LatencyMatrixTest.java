@@ -0,0 +1,122 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyMatrixTest {
+
+	private HostIndex index;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		List<Host> hosts = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			hosts.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		index = new HostIndex(hosts);
+	}
+
+	private static InputStream matrix() {
+		String str = "0 1.5 2 3\n" +
+				"10 0 12 13\n" +
+				"20 21 0 0.25\n" +
+				"30 31 32 0";
+		return new ByteArrayInputStream(str.getBytes());
+	}
+
+	@org.junit.jupiter.api.Test
+	void symmetricUsesLocalRows() throws IOException {
+		LatencyMatrix matrix = new LatencyMatrix(index, matrix(), 2, 3, true);
+
+		assertEquals(0.25f, matrix.getLatency(2, 3));
+		assertEquals(21f, matrix.getLatency(2, 1));
+		assertEquals(21f, matrix.getLatency(1, 2));
+		assertEquals(31f, matrix.getLatency(index.get(1), index.get(3)));
+		assertTrue(Float.isNaN(matrix.getLatency(0, 1)));
+	}
+
+	@org.junit.jupiter.api.Test
+	void asymmetricKeepsDirections() throws IOException {
+		LatencyMatrix matrix = new LatencyMatrix(index, matrix(), 2, 3, false);
+
+		assertEquals(21f, matrix.getLatency(2, 1));
+		assertEquals(12f, matrix.getLatency(1, 2));
+		assertEquals(3f, matrix.getLatency(0, 3));
+		assertEquals(30f, matrix.getLatency(3, 0));
+		assertTrue(Float.isNaN(matrix.getLatency(0, 1)));
+
+		matrix.changeLatency(0, 3, 7f);
+		assertEquals(7f, matrix.getLatency(0, 3));
+		assertEquals(30f, matrix.getLatency(3, 0));
+	}
+
+	private static Path textMatrix(Path dir) throws IOException {
+		Path text = dir.resolve("matrix.txt");
+		Files.write(text, ("0 1.5 2 3\n" +
+				"10 0 12 13\n" +
+				"20 21 0 0.25\n" +
+				"30 31 32 0\n").getBytes());
+		return text;
+	}
+
+	@org.junit.jupiter.api.Test
+	void quantizedBinaryIsMapped(@org.junit.jupiter.api.io.TempDir Path dir) throws IOException {
+		Path binary = dir.resolve("matrix.bin");
+		try (OutputStream out = Files.newOutputStream(binary)) {
+			LatencyMatrixFile.convert(textMatrix(dir), out, LatencyMatrixFile.DEFAULT_QUANTUM_NANOS);
+		}
+		assertEquals(16 + 4 * 4 * 2, Files.size(binary));
+
+		LatencyMatrix matrix;
+		try (FileInputStream in = new FileInputStream(binary.toFile())) {
+			matrix = new LatencyMatrix(index, in, 2, 3, false);
+		}
+		assertEquals(0.25f, matrix.getLatency(2, 3), 0.01f);
+		assertEquals(12f, matrix.getLatency(1, 2), 0.01f);
+		assertEquals(30f, matrix.getLatency(3, 0), 0.01f);
+		assertTrue(Float.isNaN(matrix.getLatency(0, 1)));
+	}
+
+	@org.junit.jupiter.api.Test
+	void asymmetricBinaryReadsStoredColumns(@org.junit.jupiter.api.io.TempDir Path dir) throws IOException {
+		Path binary = dir.resolve("matrix.bin");
+		try (OutputStream out = Files.newOutputStream(binary)) {
+			LatencyMatrixFile.convert(textMatrix(dir), out, LatencyMatrixFile.DEFAULT_QUANTUM_NANOS, true);
+		}
+		assertEquals(16 + 2 * 4 * 4 * 2, Files.size(binary));
+
+		LatencyMatrix matrix;
+		try (FileInputStream in = new FileInputStream(binary.toFile())) {
+			matrix = new LatencyMatrix(index, in, 2, 3, false);
+		}
+		assertEquals(21f, matrix.getLatency(2, 1), 0.01f);
+		assertEquals(12f, matrix.getLatency(1, 2), 0.01f);
+		assertEquals(3f, matrix.getLatency(0, 3), 0.01f);
+		assertEquals(30f, matrix.getLatency(3, 0), 0.01f);
+		assertTrue(Float.isNaN(matrix.getLatency(0, 1)));
+	}
+
+	@org.junit.jupiter.api.Test
+	void floatBinaryFromStream(@org.junit.jupiter.api.io.TempDir Path dir) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LatencyMatrixFile.convert(textMatrix(dir), out, 0);
+
+		LatencyMatrix matrix = new LatencyMatrix(index, new ByteArrayInputStream(out.toByteArray()), 2, 3, true);
+		assertEquals(0.25f, matrix.getLatency(2, 3));
+		assertEquals(21f, matrix.getLatency(1, 2));
+	}
+}
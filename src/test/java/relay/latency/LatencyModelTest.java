@@ -0,0 +1,105 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LatencyModelTest {
+
+	private HostIndex index;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		List<Host> hosts = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			hosts.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		index = new HostIndex(hosts);
+	}
+
+	private static InputStream config(String str) {
+		return new ByteArrayInputStream(str.getBytes());
+	}
+
+	@org.junit.jupiter.api.Test
+	void regionAddsAccessLatencies() throws IOException {
+		LatencyModel model = LatencyModel.load(LatencyModel.REGION, index, config("[regions]\n" +
+				"1 50\n" +
+				"60 2\n" +
+				"[hosts]\n" +
+				"0 0.5\n" +
+				"0 1\n" +
+				"# third host\n" +
+				"1 3\n" +
+				"1\n" +
+				"[overrides]\n" +
+				"0 3 7\n"), 0, 3, false);
+
+		assertEquals(2.5f, model.getLatency(0, 1));
+		assertEquals(53.5f, model.getLatency(0, 2));
+		assertEquals(63.5f, model.getLatency(2, 0));
+		assertEquals(5f, model.getLatency(2, 3));
+		assertEquals(0f, model.getLatency(1, 1));
+		assertEquals(7f, model.getLatency(0, 3));
+		assertEquals(60.5f, model.getLatency(3, 0));
+	}
+
+	@org.junit.jupiter.api.Test
+	void coordinatesUseDistanceAndHeight() throws IOException {
+		LatencyModel model = LatencyModel.load(LatencyModel.COORDINATES, index, config("[coordinates]\n" +
+				"0 0 1\n" +
+				"3 4 1\n" +
+				"0 10 0\n" +
+				"6 8 0.5\n" +
+				"[overrides]\n" +
+				"1 2 20\n"), 0, 3, true);
+
+		assertEquals(7f, model.getLatency(0, 1));
+		assertEquals(7f, model.getLatency(index.get(1), index.get(0)));
+		assertEquals(11.5f, model.getLatency(0, 3));
+		assertEquals(20f, model.getLatency(2, 1));
+
+		model.changeLatency(0, 3, 1f);
+		assertEquals(1f, model.getLatency(3, 0));
+		assertTrue(Float.isNaN(model.getLatency(index.get(0), new Host(InetAddress.getLoopbackAddress(), 1))));
+	}
+
+	@org.junit.jupiter.api.Test
+	void overriddenLookupsAllocateNothing() throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		LatencyModel model = LatencyModel.load(LatencyModel.COORDINATES, index, config("[coordinates]\n" +
+				"0 0 1\n" +
+				"3 4 1\n" +
+				"0 10 0\n" +
+				"6 8 0.5\n" +
+				"[overrides]\n" +
+				"1 2 20\n"), 0, 3, true);
+
+		float sum = lookUp(model);
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		sum += lookUp(model);
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(sum > 0);
+		assertTrue(allocated < 1024, allocated + " bytes allocated by latency lookups");
+	}
+
+	private static float lookUp(LatencyModel model) {
+		float sum = 0;
+		for (int i = 0; i < 100_000; i++)
+			sum += model.getLatency(i & 3, (i >> 2) & 3);
+		return sum;
+	}
+}
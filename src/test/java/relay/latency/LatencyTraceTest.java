@@ -0,0 +1,74 @@
+package relay.latency;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyTraceTest {
+
+	private HostIndex index;
+	private LatencyModel regions;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		List<Host> hosts = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			hosts.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		index = new HostIndex(hosts);
+		regions = LatencyModel.load(LatencyModel.REGION, index, new ByteArrayInputStream(("[regions]\n" +
+				"0 50\n" +
+				"50 0\n" +
+				"[hosts]\n" +
+				"0 1\n" +
+				"0 1\n" +
+				"1 1\n").getBytes()), 0, 2, true);
+	}
+
+	private static Path trace(Path dir, String text) throws IOException {
+		Path textFile = dir.resolve("trace.txt");
+		Files.write(textFile, text.getBytes());
+		Path binary = dir.resolve("trace.bin");
+		try (OutputStream out = Files.newOutputStream(binary)) {
+			LatencyTrace.convert(textFile, out, LatencyMatrixFile.DEFAULT_QUANTUM_NANOS);
+		}
+		return binary;
+	}
+
+	@org.junit.jupiter.api.Test
+	void linkSeriesReplaceModel(@org.junit.jupiter.api.io.TempDir Path dir) throws IOException, InterruptedException {
+		LatencyTrace trace = new LatencyTrace(trace(dir, "link 100\n" +
+				"2 0 80 - -\n" +
+				"0 1 5 9.5 9.5\n"), regions);
+
+		assertEquals(0, trace.getEpoch());
+		assertEquals(5f, trace.getLatency(0, 1, 2f));
+		assertEquals(80f, trace.getLatency(2, 0, 52f));
+		assertEquals(52f, trace.getLatency(0, 2, 52f));
+
+		trace.start();
+		Thread.sleep(150);
+		trace.stop();
+		assertEquals(9.5f, trace.getLatency(0, 1, 2f));
+		assertEquals(52f, trace.getLatency(2, 0, 52f));
+	}
+
+	@org.junit.jupiter.api.Test
+	void regionSeriesReplaceInterRegionLatency(@org.junit.jupiter.api.io.TempDir Path dir) throws IOException {
+		LatencyTrace trace = new LatencyTrace(trace(dir, "region 1000\n" +
+				"0 1 70\n"), regions);
+
+		assertEquals(72f, trace.getLatency(0, 2, regions.getLatency(0, 2)));
+		assertEquals(52f, trace.getLatency(2, 0, regions.getLatency(2, 0)));
+		assertEquals(2f, trace.getLatency(0, 1, regions.getLatency(0, 1)));
+	}
+}
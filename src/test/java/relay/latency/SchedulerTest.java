@@ -0,0 +1,198 @@
+package relay.latency;
+
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.messaging.RelayAppMessage;
+import relay.messaging.RelayMessage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchedulerTest {
+
+	private Host host1;
+	private Host host2;
+	private Scheduler scheduler;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws UnknownHostException {
+		host1 = new Host(InetAddress.getByName("localhost"), 5000);
+		host2 = new Host(InetAddress.getByName("localhost"), 5001);
+		List<Host> peers = new ArrayList<>();
+		peers.add(host1);
+		peers.add(host2);
+		scheduler = new Scheduler(peers, 2);
+	}
+
+	@org.junit.jupiter.api.Test
+	void firesAfterDelay() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		long[] fired = new long[1];
+		RelayMessage msg = new RelayAppMessage(0, host1, host2, start, new byte[0]);
+		scheduler.addEvent(new SendMessageEvent(msg, () -> {
+			fired[0] = System.currentTimeMillis();
+			latch.countDown();
+		}, 20));
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertTrue(fired[0] - start >= 19, "fired too early: " + (fired[0] - start) + "ms");
+	}
+
+	@org.junit.jupiter.api.Test
+	void highResolutionKeepsSubMillisecondDelay() throws InterruptedException {
+		List<Host> peers = new ArrayList<>();
+		peers.add(host1);
+		Scheduler highRes = new Scheduler(peers, 1, true);
+
+		CountDownLatch latch = new CountDownLatch(1);
+		long[] elapsed = new long[1];
+		RelayMessage msg = new RelayAppMessage(0, host1, host2, System.currentTimeMillis(), new byte[0]);
+		long start = System.nanoTime();
+		highRes.addEvent(new SendMessageEvent(msg, () -> {
+			elapsed[0] = System.nanoTime() - start;
+			latch.countDown();
+		}, 0.4f));
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertTrue(elapsed[0] >= 400_000, "fired too early: " + elapsed[0] + "ns");
+	}
+
+	@org.junit.jupiter.api.Test
+	void keepsSenderOrder() throws InterruptedException {
+		int numEvents = 1000;
+		CountDownLatch latch = new CountDownLatch(numEvents);
+		List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+		long sentTime = System.currentTimeMillis();
+		for (int i = 0; i < numEvents; i++) {
+			int seqN = i;
+			RelayMessage msg = new RelayAppMessage(seqN, host1, host2, sentTime, new byte[0]);
+			scheduler.addEvent(new SendMessageEvent(msg, () -> {
+				fired.add(seqN);
+				latch.countDown();
+			}, 5));
+		}
+
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		for (int i = 0; i < numEvents; i++)
+			assertEquals(i, fired.get(i));
+	}
+
+	@org.junit.jupiter.api.Test
+	void shardedFiresOnOwnerLoop() throws InterruptedException {
+		EventLoopGroup group = new DefaultEventLoopGroup(2);
+		try {
+			List<Host> peers = new ArrayList<>();
+			peers.add(host1);
+			peers.add(host2);
+			Scheduler sharded = new Scheduler(peers, group);
+			EventLoop owner = group.next();
+			sharded.assign(host1, owner);
+
+			int numEvents = 100;
+			CountDownLatch latch = new CountDownLatch(numEvents);
+			List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+			boolean[] onOwner = {true};
+			long sentTime = System.currentTimeMillis();
+			for (int i = 0; i < numEvents; i++) {
+				int seqN = i;
+				RelayMessage msg = new RelayAppMessage(seqN, host1, host2, sentTime, new byte[0]);
+				SendMessageEvent event = new SendMessageEvent(msg, () -> {
+					onOwner[0] &= owner.inEventLoop();
+					fired.add(seqN);
+					latch.countDown();
+				}, 5);
+				// half of the events are added by the owner itself, without crossing over
+				if (i % 2 == 0)
+					sharded.addEvent(event);
+				else
+					owner.execute(() -> sharded.addEvent(event));
+			}
+
+			assertTrue(latch.await(1, TimeUnit.SECONDS));
+			assertTrue(onOwner[0], "fired outside the owner loop");
+			assertEquals(numEvents, fired.size());
+		} finally {
+			group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void delayLineKeepsItsWheelAcrossAssignments() throws InterruptedException {
+		EventLoopGroup group = new DefaultEventLoopGroup(2);
+		try {
+			List<Host> peers = new ArrayList<>();
+			peers.add(host1);
+			peers.add(host2);
+			Scheduler sharded = new Scheduler(peers, group);
+			DelayLine line = new DelayLine(sharded);
+			EventLoop first = group.next();
+			EventLoop second = group.next();
+			sharded.assign(host1, first);
+
+			int numEvents = 100;
+			CountDownLatch latch = new CountDownLatch(numEvents);
+			List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+			boolean[] onFirst = {true};
+			long sentTime = System.currentTimeMillis();
+			for (int i = 0; i < numEvents; i++) {
+				int seqN = i;
+				RelayMessage msg = new RelayAppMessage(seqN, host1, host2, sentTime, new byte[0]);
+				line.add(new SendMessageEvent(msg, () -> {
+					onFirst[0] &= first.inEventLoop();
+					fired.add(seqN);
+					latch.countDown();
+				}, 5));
+				if (i == numEvents / 2)
+					sharded.assign(host1, second);
+			}
+
+			assertTrue(latch.await(1, TimeUnit.SECONDS));
+			assertTrue(onFirst[0], "line moved to another loop");
+			for (int i = 0; i < numEvents; i++)
+				assertEquals(i, fired.get(i));
+		} finally {
+			group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void shardedIgnoresLoopsOutsideItsGroup() throws InterruptedException {
+		EventLoopGroup group = new DefaultEventLoopGroup(1);
+		EventLoopGroup other = new DefaultEventLoopGroup(1);
+		try {
+			List<Host> peers = new ArrayList<>();
+			peers.add(host1);
+			Scheduler sharded = new Scheduler(peers, group);
+			EventLoop owner = group.next();
+			sharded.assign(host1, owner);
+			sharded.assign(host1, other.next());
+
+			CountDownLatch latch = new CountDownLatch(1);
+			boolean[] onOwner = {false};
+			RelayMessage msg = new RelayAppMessage(0, host1, host2, System.currentTimeMillis(), new byte[0]);
+			sharded.addEvent(new SendMessageEvent(msg, () -> {
+				onOwner[0] = owner.inEventLoop();
+				latch.countDown();
+			}, 50));
+
+			assertEquals(1, sharded.getNumThreads());
+			assertEquals(1, sharded.getQueued(0));
+			assertTrue(latch.await(1, TimeUnit.SECONDS));
+			assertTrue(onOwner[0], "fired outside the scheduler's group");
+		} finally {
+			group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+			other.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package relay.messaging;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import pt.unl.fct.di.novasys.network.data.Host;
+import relay.util.HostIndex;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelayMessageSerializerTest {
+
+	private List<Host> hosts;
+	private RelayMessageSerializer serializer;
+
+	@org.junit.jupiter.api.BeforeEach
+	void beforeEach() throws IOException {
+		hosts = new ArrayList<>();
+		for (int i = 0; i < 300; i++)
+			hosts.add(new Host(InetAddress.getByName("localhost"), 5000 + i));
+		serializer = new RelayMessageSerializer(new HostIndex(hosts));
+	}
+
+	private RelayMessage roundTrip(RelayMessage msg, short version) throws IOException {
+		ByteBuf buf = Unpooled.buffer();
+		msg.setWireVersion(version);
+		serializer.serialize(msg, buf);
+		RelayMessage decoded = serializer.deserialize(buf);
+		assertEquals(0, buf.readableBytes());
+		return decoded;
+	}
+
+	@org.junit.jupiter.api.Test
+	void v1RoundTrip() throws IOException {
+		RelayAppMessage msg = new RelayAppMessage(42, hosts.get(3), hosts.get(299), 1234L, new byte[]{1, 2, 3});
+		RelayAppMessage decoded = (RelayAppMessage) roundTrip(msg, RelayMessageSerializer.V1);
+
+		assertEquals(RelayMessageSerializer.V1, decoded.getWireVersion());
+		assertEquals(42, decoded.getSeqN());
+		assertEquals(hosts.get(3), decoded.getFrom());
+		assertEquals(hosts.get(299), decoded.getTo());
+		assertEquals(1234L, decoded.getSentTime());
+		assertArrayEquals(new byte[]{1, 2, 3}, decoded.getPayload());
+	}
+
+	@org.junit.jupiter.api.Test
+	void v2RoundTripResolvesInternedHosts() throws IOException {
+		RelayMessage msg = new RelayConnectionFailMessage(hosts.get(200), hosts.get(1), 99L, new Throwable("failed"));
+		RelayMessage decoded = roundTrip(msg, RelayMessageSerializer.V2);
+
+		assertEquals(RelayMessageSerializer.V2, decoded.getWireVersion());
+		assertEquals(RelayMessage.Type.CONN_FAIL, decoded.getType());
+		assertEquals(-1, decoded.getSeqN());
+		assertSame(hosts.get(200), decoded.getFrom());
+		assertSame(hosts.get(1), decoded.getTo());
+		assertEquals(99L, decoded.getSentTime());
+	}
+
+	@org.junit.jupiter.api.Test
+	void v2HeaderIsSmaller() throws IOException {
+		RelayMessage msg = new RelayConnectionOpenMessage(7, hosts.get(0), hosts.get(1), 0L);
+		ByteBuf v1 = Unpooled.buffer();
+		ByteBuf v2 = Unpooled.buffer();
+		msg.setWireVersion(RelayMessageSerializer.V1);
+		serializer.serialize(msg, v1);
+		msg.setWireVersion(RelayMessageSerializer.V2);
+		serializer.serialize(msg, v2);
+
+		assertEquals(12, v2.readableBytes());
+		assertTrue(v2.readableBytes() < v1.readableBytes());
+	}
+
+	@org.junit.jupiter.api.Test
+	void batchRoundTrip() throws IOException {
+		List<RelayMessage> messages = new ArrayList<>();
+		messages.add(new RelayAppMessage(1, hosts.get(0), hosts.get(1), 10L, new byte[]{1}));
+		messages.add(new RelayConnectionOpenMessage(2, hosts.get(2), hosts.get(299), 20L));
+		messages.add(new RelayAppMessage(3, hosts.get(1), hosts.get(0), 30L, new byte[]{2, 3}));
+		RelayBatchMessage decoded = (RelayBatchMessage) roundTrip(new RelayBatchMessage(messages), RelayMessageSerializer.V3);
+
+		List<RelayMessage> elements = decoded.getMessages();
+		assertEquals(3, elements.size());
+		assertEquals(RelayMessage.Type.CONN_OPEN, elements.get(1).getType());
+		assertSame(hosts.get(299), elements.get(1).getTo());
+		assertEquals(30L, elements.get(2).getSentTime());
+		assertArrayEquals(new byte[]{2, 3}, ((RelayAppMessage) elements.get(2)).getPayload());
+	}
+
+	@org.junit.jupiter.api.Test
+	void forwardingKeepsInboundBufferUntilReleased() throws IOException {
+		RelayMessageSerializer forwarding = new RelayMessageSerializer(new HostIndex(hosts), true);
+		byte[] payload = new byte[4096];
+		payload[4095] = 7;
+
+		ByteBuf in = Unpooled.directBuffer();
+		RelayMessage msg = new RelayAppMessage(1, hosts.get(0), hosts.get(1), 0L, payload);
+		msg.setWireVersion(RelayMessageSerializer.V2);
+		forwarding.serialize(msg, in);
+
+		RelayAppMessage decoded = (RelayAppMessage) forwarding.deserialize(in);
+		assertEquals(2, in.refCnt());
+		assertEquals(4096, decoded.getPayloadSize());
+
+		ByteBuf out = Unpooled.buffer();
+		forwarding.serialize(decoded, out);
+		ByteBuf again = Unpooled.buffer();
+		forwarding.serialize(decoded, again);
+		assertEquals(2, in.refCnt());
+		assertEquals(out, again);
+
+		decoded.release();
+		assertEquals(1, in.refCnt());
+		in.release();
+
+		RelayAppMessage forwarded = (RelayAppMessage) serializer.deserialize(out);
+		assertArrayEquals(payload, forwarded.getPayload());
+	}
+}
@@ -0,0 +1,61 @@
+package relay.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsRegistryTest {
+
+	@org.junit.jupiter.api.Test
+	void writesPrometheusTextFormat() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter[] counters = registry.counters("relay_messages_total", "Messages", "type", Arrays.asList("APP_MSG", "CONN_OPEN"));
+		registry.gauge("relay_backlog_seconds", "Backlog", () -> 0.25);
+		counters[0].add(3);
+		counters[1].increment();
+
+		StringWriter out = new StringWriter();
+		registry.writePrometheus(out);
+		assertEquals("# HELP relay_messages_total Messages\n"
+				+ "# TYPE relay_messages_total counter\n"
+				+ "relay_messages_total{type=\"APP_MSG\"} 3\n"
+				+ "relay_messages_total{type=\"CONN_OPEN\"} 1\n"
+				+ "# HELP relay_backlog_seconds Backlog\n"
+				+ "# TYPE relay_backlog_seconds gauge\n"
+				+ "relay_backlog_seconds 0.25\n", out.toString());
+
+		assertEquals(3.0, registry.get("relay_messages_total.APP_MSG"));
+		assertEquals(0.25, registry.snapshot().get("relay_backlog_seconds"));
+		assertNull(registry.get("relay_messages_total"));
+	}
+
+	@org.junit.jupiter.api.Test
+	void servesMetricsOnLoopback() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("relay_test_total", "Test").add(7);
+		MetricsExporter exporter = new MetricsExporter(registry);
+		int port = exporter.startHttp(0);
+		try {
+			HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:" + port + MetricsExporter.PATH).openConnection();
+			assertEquals(200, con.getResponseCode());
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = con.getInputStream()) {
+				byte[] buf = new byte[1024];
+				int n;
+				while ((n = in.read(buf)) > 0)
+					body.write(buf, 0, n);
+			}
+			assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("relay_test_total 7\n"));
+		} finally {
+			exporter.stop();
+		}
+	}
+}
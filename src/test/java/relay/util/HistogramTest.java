@@ -0,0 +1,49 @@
+package relay.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+	@org.junit.jupiter.api.Test
+	void percentilesWithinBucketPrecision() {
+		Histogram histogram = new Histogram();
+		for (long v = 1; v <= 100_000; v++)
+			histogram.record(v * 1000);
+
+		assertEquals(100_000, histogram.getCount());
+		assertEquals(100_000_000L, histogram.getMax());
+		long p50 = histogram.getPercentile(50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(Math.abs(p50 - 50_000_000L) < 50_000_000L * 0.02, "p50 " + p50);
+		assertTrue(Math.abs(p99 - 99_000_000L) < 99_000_000L * 0.02, "p99 " + p99);
+		assertEquals(100_000_000L, histogram.getPercentile(100));
+	}
+
+	@org.junit.jupiter.api.Test
+	void drainMovesEverything() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(3);
+		histogram.record(70);
+
+		Histogram total = new Histogram();
+		histogram.drainTo(total);
+		assertEquals(0, histogram.getCount());
+		assertEquals(3, total.getCount());
+		assertEquals(0, total.getPercentile(10));
+		assertEquals(70, total.getMax());
+	}
+
+	@org.junit.jupiter.api.Test
+	void fewerSubBucketsKeepCoarserPercentiles() {
+		Histogram histogram = new Histogram(4);
+		for (long v = 1; v <= 10_000; v++)
+			histogram.record(v * 1000);
+
+		long p90 = histogram.getPercentile(90);
+		assertTrue(Math.abs(p90 - 9_000_000L) < 9_000_000L * 0.07, "p90 " + p90);
+		assertThrows(IllegalArgumentException.class, () -> histogram.drainTo(new Histogram()));
+	}
+}
@@ -0,0 +1,58 @@
+package relay.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MpscRingBufferTest {
+
+	@org.junit.jupiter.api.Test
+	void drainsInOfferOrder() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(5);
+		assertEquals(8, ring.capacity());
+
+		// wraps around the ring and spills into the overflow
+		List<Integer> taken = new ArrayList<>();
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 20; i++)
+				ring.offer(round * 20 + i);
+			assertEquals(20, ring.drain(taken::add));
+			assertTrue(ring.isEmpty());
+		}
+		for (int i = 0; i < 60; i++)
+			assertEquals(i, taken.get(i));
+	}
+
+	@org.junit.jupiter.api.Test
+	void keepsOrderOfEachProducer() throws InterruptedException {
+		int producers = 4;
+		int perProducer = 100_000;
+		MpscRingBuffer<long[]> ring = new MpscRingBuffer<>(64);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int producer = p;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perProducer; i++)
+					ring.offer(new long[]{producer, i});
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		long[] next = new long[producers];
+		boolean[] inOrder = {true};
+		int taken = 0;
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (taken < producers * perProducer && System.currentTimeMillis() < deadline) {
+			taken += ring.drain(e -> inOrder[0] &= next[(int) e[0]]++ == e[1]);
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(producers * perProducer, taken);
+		assertTrue(inOrder[0], "elements of a producer taken out of order");
+	}
+}
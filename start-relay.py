@@ -19,10 +19,50 @@ def generate_command(args):
          "-p", str(args.port)])
     if args.latency_matrix:
         command.extend(["-lm", args.latency_matrix])
+    if args.latency_model:
+        command.extend(["-lt", args.latency_model])
+    if args.latency_trace:
+        command.extend(["-ltr", args.latency_trace])
+    if args.asymmetric_latency:
+        command.append("-al")
     if args.bandwidth_config:
         command.extend(["-bc", args.bandwidth_config])
+    if args.link_bandwidth_config:
+        command.extend(["-lbc", args.link_bandwidth_config])
+    if args.zero_copy:
+        command.append("-zc")
     if args.sleep:
         command.extend(["-s", args.sleep])
+    if args.high_resolution:
+        command.append("-hr")
+    if args.sharded:
+        command.append("-sh")
+    if args.scheduler_threads:
+        command.extend(["-st", str(args.scheduler_threads)])
+    if args.relay_stripes:
+        command.extend(["-rs", str(args.relay_stripes)])
+    if args.accuracy_warning:
+        command.extend(["-aw", str(args.accuracy_warning)])
+    if args.queue_max_messages:
+        command.extend(["-qm", str(args.queue_max_messages)])
+    if args.queue_max_bytes:
+        command.extend(["-qb", str(args.queue_max_bytes)])
+    if args.queue_policy:
+        command.extend(["-qp", args.queue_policy])
+    if args.memory_budget:
+        command.extend(["-mb", str(args.memory_budget)])
+    if args.backpressure:
+        command.append("-bp")
+    if args.backpressure_high:
+        command.extend(["-bph", str(args.backpressure_high)])
+    if args.backpressure_low:
+        command.extend(["-bpl", str(args.backpressure_low)])
+    if args.metrics_file:
+        command.extend(["-mf", args.metrics_file])
+    if args.metrics_port:
+        command.extend(["-mp", str(args.metrics_port)])
+    if args.metrics_interval:
+        command.extend(["-mi", str(args.metrics_interval)])
     # command.append("&")
     return command
 
@@ -43,14 +83,35 @@ def main() -> int:
     parser.add_argument("-Xms", help="min memory heap size")
     parser.add_argument("-Xmx", help="max memory heap size")
     parser.add_argument("-mbs", "--max_buffer_size", help="max buffer size")
-    parser.add_argument("-no_gc", action="store_true", help="disable garbage collector")
+    parser.add_argument("-no_gc", action="store_true", help="disable garbage collector, best with -zc, which recycles relayed messages")
     parser.add_argument("-lf", "--logfolder", default="logs/", help="log folder")
     parser.add_argument("-a", "--address", default=socket.gethostbyname(socket.gethostname()),
                         help="local private address")
     parser.add_argument("-p", "--port", type=int, default=9082, help="relay port")
     parser.add_argument("-lm", "--latency_matrix", help="file with latency matrix")
+    parser.add_argument("-lt", "--latency_model", choices=["matrix", "region", "coordinates"],
+                        help="format of the latency file")
+    parser.add_argument("-ltr", "--latency_trace", help="file with latency time series")
+    parser.add_argument("-al", "--asymmetric_latency", action="store_true", help="latency matrix is not symmetric, binary matrices should be converted with --columns")
     parser.add_argument("-bc", "--bandwidth_config", help="file with bandwidth configuration")
+    parser.add_argument("-lbc", "--link_bandwidth_config", help="file with bandwidth caps between regions or pairs of nodes")
+    parser.add_argument("-zc", "--zero_copy", action="store_true", help="forward payloads without copying them to the heap")
     parser.add_argument("-s", "--sleep", help="sleep time in ms before connecting to other relays")
+    parser.add_argument("-hr", "--high_resolution", action="store_true", help="sub-millisecond latency emulation")
+    parser.add_argument("-sh", "--sharded", action="store_true", help="run each peer's delays and shaping on its channel's event loop")
+    parser.add_argument("-st", "--scheduler_threads", type=int, help="number of threads driving the latency scheduler")
+    parser.add_argument("-rs", "--relay_stripes", type=int, help="number of parallel connections to each other relay")
+    parser.add_argument("-aw", "--accuracy_warning", type=int, help="warn when the p99 emulation error in us crosses this")
+    parser.add_argument("-qm", "--queue_max_messages", type=int, help="messages each host bandwidth queue holds at most")
+    parser.add_argument("-qb", "--queue_max_bytes", type=int, help="bytes each host bandwidth queue holds at most")
+    parser.add_argument("-qp", "--queue_policy", choices=["drop-tail", "drop-head", "red"], help="drop policy of full bandwidth queues")
+    parser.add_argument("-mb", "--memory_budget", type=int, help="MB of messages the relay holds at most")
+    parser.add_argument("-bp", "--backpressure", action="store_true", help="pause reading from peers and relays that overload the relay")
+    parser.add_argument("-bph", "--backpressure_high", type=int, help="KB held for a peer above which reading from it pauses")
+    parser.add_argument("-bpl", "--backpressure_low", type=int, help="KB held for a peer below which reading from it resumes")
+    parser.add_argument("-mf", "--metrics_file", help="file rewritten with the relay metrics in Prometheus text format")
+    parser.add_argument("-mp", "--metrics_port", type=int, help="loopback port serving the relay metrics")
+    parser.add_argument("-mi", "--metrics_interval", type=int, help="ms between rewrites of the metrics file")
     parser.add_argument("-v", "--verbose", action="store_true", help="show process being launched for debugging")
 
     args = parser.parse_args()